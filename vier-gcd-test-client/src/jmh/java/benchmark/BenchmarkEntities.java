@@ -0,0 +1,66 @@
+package benchmark;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.Value;
+
+/**
+ * Entities shaped like the ones written by ClientTest3/ClientTest6, with a
+ * configurable number of properties and string value size.
+ */
+final class BenchmarkEntities {
+
+	static final String KIND = "ClientTest3";
+
+	private BenchmarkEntities() {
+	}
+
+	/**
+	 * The first three properties are {@code str}, {@code number} and
+	 * {@code createDate} as in the put loops. Further properties cycle through
+	 * string, integer and timestamp values.
+	 */
+	static Entity.Builder newEntity(int i, int propertyCount, String stringValue) {
+		Entity.Builder entity = Entity.newBuilder();
+		entity.setKey(Key.newBuilder().addPathElement(
+				Key.PathElement.newBuilder().setKind(KIND).setName("keyName" + i)));
+		for (int p = 0; p < propertyCount; p++) {
+			Value.Builder value = Value.newBuilder();
+			switch (p % 3) {
+			case 0:
+				value.setStringValue(stringValue);
+				break;
+			case 1:
+				value.setIntegerValue(i);
+				break;
+			default:
+				value.setTimestampMicrosecondsValue(System.currentTimeMillis() * 1000);
+				break;
+			}
+			entity.addProperty(Property.newBuilder().setName(propertyName(p)).addValue(value));
+		}
+		return entity;
+	}
+
+	static String propertyName(int p) {
+		switch (p) {
+		case 0:
+			return "str";
+		case 1:
+			return "number";
+		case 2:
+			return "createDate";
+		default:
+			return "p" + p;
+		}
+	}
+
+	static String stringOfSize(int size) {
+		StringBuilder sb = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		return sb.toString();
+	}
+}
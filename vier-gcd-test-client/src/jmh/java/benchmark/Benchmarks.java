@@ -0,0 +1,32 @@
+package benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of {@code target/benchmarks.jar}.
+ *
+ * Without arguments, runs every benchmark in this package with the GC
+ * profiler, which adds allocation rate and bytes allocated per operation to
+ * the results. With arguments, behaves as the standard JMH command line, e.g.
+ * {@code java -jar target/benchmarks.jar ReadBenchmark -p batchSize=500 -prof gc}.
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		run();
+	}
+
+	private static void run() throws RunnerException {
+		Options options = new OptionsBuilder().include(Benchmarks.class.getPackage().getName() + "\\.")
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,92 @@
+package benchmark;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.QueryResultBatch;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.DatastoreHelper;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Client-side cost of the query loop: parsing a RunQueryResponse and decoding
+ * its entities with {@link DatastoreHelper#getPropertyMap}. Times are per
+ * response of {@code batchSize} entities.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadBenchmark {
+
+	@Param({ "3", "20" })
+	int propertyCount;
+
+	@Param({ "16", "1024" })
+	int valueSize;
+
+	@Param({ "10", "500" })
+	int batchSize;
+
+	private byte[] responseBytes;
+	private RunQueryResponse response;
+
+	@Setup
+	public void setUp() {
+		String stringValue = BenchmarkEntities.stringOfSize(valueSize);
+		QueryResultBatch.Builder batch = QueryResultBatch.newBuilder()
+				.setEntityResultType(EntityResult.ResultType.FULL)
+				.setMoreResults(QueryResultBatch.MoreResultsType.MORE_RESULTS_AFTER_LIMIT);
+		for (int i = 1; i <= batchSize; i++) {
+			batch.addEntityResult(EntityResult.newBuilder().setEntity(
+					BenchmarkEntities.newEntity(i, propertyCount, stringValue)));
+		}
+		response = RunQueryResponse.newBuilder().setBatch(batch).build();
+		responseBytes = response.toByteArray();
+	}
+
+	/** Protobuf parsing of the response body. */
+	@Benchmark
+	public RunQueryResponse parseResponse() throws InvalidProtocolBufferException {
+		return RunQueryResponse.parseFrom(responseBytes);
+	}
+
+	/** {@code getPropertyMap} for every result, as the query loops do. */
+	@Benchmark
+	public void decodePropertyMap(Blackhole bh) {
+		for (EntityResult result : response.getBatch().getEntityResultList()) {
+			Map<String, Object> propertyMap = DatastoreHelper.getPropertyMap(result.getEntity());
+			bh.consume(propertyMap.get("str"));
+			bh.consume(propertyMap.get("number"));
+			bh.consume(propertyMap.get("createDate"));
+		}
+	}
+
+	/** Parse and decode, i.e. the query loop without the network. */
+	@Benchmark
+	public void parseAndDecode(Blackhole bh) throws InvalidProtocolBufferException {
+		RunQueryResponse parsed = RunQueryResponse.parseFrom(responseBytes);
+		for (EntityResult result : parsed.getBatch().getEntityResultList()) {
+			Map<String, Object> propertyMap = DatastoreHelper.getPropertyMap(result.getEntity());
+			bh.consume(propertyMap.get("str"));
+			bh.consume(propertyMap.get("number"));
+			bh.consume(propertyMap.get("createDate"));
+		}
+	}
+}
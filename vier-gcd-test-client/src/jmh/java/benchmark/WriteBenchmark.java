@@ -0,0 +1,79 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+
+/**
+ * Client-side cost of one iteration of the put loop: building the entity,
+ * building the BlindWriteRequest and serializing it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteBenchmark {
+
+	@Param({ "3", "20" })
+	int propertyCount;
+
+	@Param({ "16", "1024" })
+	int valueSize;
+
+	private String stringValue;
+	private Entity entity;
+	private BlindWriteRequest request;
+	private int i;
+
+	@Setup
+	public void setUp() {
+		stringValue = BenchmarkEntities.stringOfSize(valueSize);
+		entity = BenchmarkEntities.newEntity(1, propertyCount, stringValue).build();
+		BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
+		req.getMutationBuilder().addUpsert(entity);
+		request = req.build();
+	}
+
+	/** Entity.Builder, Key.Builder and Property construction. */
+	@Benchmark
+	public Entity buildEntity() {
+		return BenchmarkEntities.newEntity(++i, propertyCount, stringValue).build();
+	}
+
+	/** {@code req.build()} of a single upsert request. */
+	@Benchmark
+	public BlindWriteRequest buildRequest() {
+		BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
+		req.getMutationBuilder().addUpsert(entity);
+		return req.build();
+	}
+
+	/** Protobuf serialization of the request, as done before it is sent. */
+	@Benchmark
+	public byte[] serializeRequest() {
+		return request.toByteArray();
+	}
+
+	/** All of the above, i.e. one put loop iteration without the network. */
+	@Benchmark
+	public byte[] putIteration() {
+		BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
+		req.getMutationBuilder().addUpsert(BenchmarkEntities.newEntity(++i, propertyCount, stringValue));
+		return req.build().toByteArray();
+	}
+}
@@ -0,0 +1,134 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Paces requests to an allowed rate that adapts with AIMD: every success
+ * raises the rate so that it grows by about {@code additiveIncrease} requests
+ * per second each second, and every throttling error multiplies it by
+ * {@code decreaseFactor}. Errors arriving within one interval of the last cut
+ * are counted but do not cut again, so that a burst of failures from the
+ * same overload only halves the rate once.
+ */
+public class AdaptiveRateLimiter {
+
+	/** Minimum time between two decreases. */
+	private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+	private final String name;
+	private final double minRate;
+	private final double maxRate;
+	private final double additiveIncrease;
+	private final double decreaseFactor;
+
+	private double rate;
+	private long nextFreeNanos = System.nanoTime();
+	private long lastDecreaseNanos;
+
+	private final AtomicLong successes = new AtomicLong();
+	private final AtomicLong throttles = new AtomicLong();
+	private final AtomicLong decreases = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	/**
+	 * @param initialRate requests per second to start with
+	 * @param additiveIncrease requests per second added per second of
+	 *            successes
+	 * @param decreaseFactor multiplier applied on throttling, e.g. 0.5
+	 */
+	public AdaptiveRateLimiter(String name, double initialRate, double minRate, double maxRate,
+			double additiveIncrease, double decreaseFactor) {
+		if (minRate <= 0 || minRate > maxRate) {
+			throw new IllegalArgumentException("invalid rate range: " + minRate + ".." + maxRate);
+		}
+		if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+			throw new IllegalArgumentException("decreaseFactor must be between 0 and 1: " + decreaseFactor);
+		}
+		this.name = name;
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.additiveIncrease = additiveIncrease;
+		this.decreaseFactor = decreaseFactor;
+		this.rate = Math.max(minRate, Math.min(maxRate, initialRate));
+		this.lastDecreaseNanos = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+	}
+
+	/**
+	 * True for the codes the backend uses to push back: 409 (contention),
+	 * 429 (too many requests) and 503 (unavailable).
+	 */
+	public static boolean isThrottling(DatastoreException exception) {
+		return exception.code == 409 || exception.code == 429 || exception.code == 503;
+	}
+
+	/** Blocks until the next request is allowed at the current rate. */
+	public void acquire() throws InterruptedException {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long start = Math.max(now, nextFreeNanos);
+			nextFreeNanos = start + (long) (1e9 / rate);
+			wait = start - now;
+		}
+		if (wait > 0) {
+			waitNanos.addAndGet(wait);
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	public synchronized void onSuccess() {
+		successes.incrementAndGet();
+		rate = Math.min(maxRate, rate + additiveIncrease / rate);
+	}
+
+	/** Records the outcome of a failed request; only throttling errors lower the rate. */
+	public void onError(DatastoreException exception) {
+		if (isThrottling(exception)) {
+			onThrottle();
+		}
+	}
+
+	public synchronized void onThrottle() {
+		throttles.incrementAndGet();
+		long now = System.nanoTime();
+		if (now - lastDecreaseNanos < DECREASE_INTERVAL_NANOS) {
+			return;
+		}
+		lastDecreaseNanos = now;
+		decreases.incrementAndGet();
+		rate = Math.max(minRate, rate * decreaseFactor);
+	}
+
+	/** Currently allowed requests per second. */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSuccessCount() {
+		return successes.get();
+	}
+
+	public long getThrottleCount() {
+		return throttles.get();
+	}
+
+	public long getDecreaseCount() {
+		return decreases.get();
+	}
+
+	/** Total time callers spent waiting in {@link #acquire()}. */
+	public long getWaitNanos() {
+		return waitNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: rate=%.1f/sec successes=%d throttled=%d decreases=%d waited=%.1f ms", name,
+				getRate(), successes.get(), throttles.get(), decreases.get(), waitNanos.get() / 1e6);
+	}
+}
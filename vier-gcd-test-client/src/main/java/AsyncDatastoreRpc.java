@@ -0,0 +1,196 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionResponse;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.DatastoreV1.RollbackResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Runs the RPCs of a {@link DatastoreRpc} on an executor and returns
+ * CompletableFutures, so that a few caller threads can keep many requests
+ * outstanding.
+ *
+ * At most {@code maxInFlight} requests run at a time; a call beyond that
+ * blocks the caller until a request completes. Futures fail with the
+ * {@link DatastoreException} of the RPC. Permits are released before the
+ * future completes, so callbacks may send the next request.
+ */
+public class AsyncDatastoreRpc implements AutoCloseable {
+
+	private final DatastoreRpc datastore;
+	private final int maxInFlight;
+	private final Semaphore permits;
+	private final Executor executor;
+	/** The executor created by this instance, shut down by {@link #close()}. */
+	private final ExecutorService ownExecutor;
+
+	/** Runs the requests on a pool of {@code maxInFlight} daemon threads. */
+	public AsyncDatastoreRpc(DatastoreRpc datastore, int maxInFlight) {
+		this(datastore, maxInFlight, newPool(maxInFlight), true);
+	}
+
+	/**
+	 * Runs the requests on the given executor, which is not shut down by
+	 * {@link #close()}. It needs {@code maxInFlight} threads to actually reach
+	 * that concurrency, since the underlying client blocks.
+	 */
+	public AsyncDatastoreRpc(DatastoreRpc datastore, int maxInFlight, Executor executor) {
+		this(datastore, maxInFlight, executor, false);
+	}
+
+	private AsyncDatastoreRpc(DatastoreRpc datastore, int maxInFlight, Executor executor, boolean owned) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		}
+		this.datastore = datastore;
+		this.maxInFlight = maxInFlight;
+		this.permits = new Semaphore(maxInFlight);
+		this.executor = executor;
+		this.ownExecutor = owned ? (ExecutorService) executor : null;
+	}
+
+	public CompletableFuture<BlindWriteResponse> blindWrite(final BlindWriteRequest request) {
+		return submit(new Call<BlindWriteResponse>() {
+			@Override
+			public BlindWriteResponse call() throws DatastoreException {
+				return datastore.blindWrite(request);
+			}
+		});
+	}
+
+	public CompletableFuture<LookupResponse> lookup(final LookupRequest request) {
+		return submit(new Call<LookupResponse>() {
+			@Override
+			public LookupResponse call() throws DatastoreException {
+				return datastore.lookup(request);
+			}
+		});
+	}
+
+	public CompletableFuture<RunQueryResponse> runQuery(final RunQueryRequest request) {
+		return submit(new Call<RunQueryResponse>() {
+			@Override
+			public RunQueryResponse call() throws DatastoreException {
+				return datastore.runQuery(request);
+			}
+		});
+	}
+
+	public CompletableFuture<BeginTransactionResponse> beginTransaction(final BeginTransactionRequest request) {
+		return submit(new Call<BeginTransactionResponse>() {
+			@Override
+			public BeginTransactionResponse call() throws DatastoreException {
+				return datastore.beginTransaction(request);
+			}
+		});
+	}
+
+	public CompletableFuture<CommitResponse> commit(final CommitRequest request) {
+		return submit(new Call<CommitResponse>() {
+			@Override
+			public CommitResponse call() throws DatastoreException {
+				return datastore.commit(request);
+			}
+		});
+	}
+
+	public CompletableFuture<RollbackResponse> rollback(final RollbackRequest request) {
+		return submit(new Call<RollbackResponse>() {
+			@Override
+			public RollbackResponse call() throws DatastoreException {
+				return datastore.rollback(request);
+			}
+		});
+	}
+
+	/** Number of requests sent and not completed yet. */
+	public int getInFlight() {
+		return maxInFlight - permits.availablePermits();
+	}
+
+	/** Waits until no request is in flight. */
+	public void awaitIdle() throws InterruptedException {
+		permits.acquire(maxInFlight);
+		permits.release(maxInFlight);
+	}
+
+	/**
+	 * Waits for the requests in flight and shuts down the executor if it was
+	 * created by this instance.
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		awaitIdle();
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+			ownExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private <T> CompletableFuture<T> submit(final Call<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+			return future;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					T result = null;
+					Throwable error = null;
+					try {
+						result = call.call();
+					} catch (Throwable t) {
+						error = t;
+					} finally {
+						permits.release();
+					}
+					if (error != null) {
+						future.completeExceptionally(error);
+					} else {
+						future.complete(result);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	private static ExecutorService newPool(int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "datastore-async");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	private interface Call<T> {
+		T call() throws DatastoreException;
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * Reports the writes of a {@link BatchWriter} to a {@link ProgressReporter}.
+ * An entity counts as an operation once its batch is sent, not when it is
+ * queued, and the entities dropped with a failed batch count as errors.
+ *
+ * Not thread-safe, like the writer.
+ */
+public class BatchProgress {
+
+	private final BatchWriter writer;
+	private final ProgressReporter progress;
+	private long queued;
+	private long sent;
+	private long lost;
+	private Object lastKey;
+
+	public BatchProgress(BatchWriter writer, ProgressReporter progress) {
+		this.writer = writer;
+		this.progress = progress;
+	}
+
+	/** Call after each {@link BatchWriter#upsert}, whether or not it failed. */
+	public void queued(Object key) {
+		queued++;
+		lastKey = key;
+		update();
+	}
+
+	/** Call after {@link BatchWriter#flush}, whether or not it failed. */
+	public void update() {
+		long nowSent = writer.getEntityCount();
+		long nowLost = queued - nowSent - writer.getPendingCount();
+		if (nowSent > sent) {
+			progress.success(nowSent - sent, lastKey);
+			sent = nowSent;
+		}
+		if (nowLost > lost) {
+			progress.error(nowLost - lost);
+			lost = nowLost;
+		}
+	}
+}
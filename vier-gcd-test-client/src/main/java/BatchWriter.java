@@ -0,0 +1,123 @@
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Collects upserts into a single {@link Mutation} and sends them with one
+ * blindWrite once the batch reaches the entity count or byte size limit.
+ *
+ * Not thread-safe. Use one writer per thread.
+ */
+public class BatchWriter {
+	private static final Logger logger = Logger.getLogger(BatchWriter.class.getName());
+
+	/** Default upper bound of the serialized mutation size. */
+	public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	private final DatastoreRpc datastore;
+	private final int maxEntities;
+	private final int maxBytes;
+
+	private BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
+	private int pendingBytes;
+
+	private long batchCount;
+	private long entityCount;
+	private long byteCount;
+	private long writeNanos;
+
+	public BatchWriter(DatastoreRpc datastore, int maxEntities) {
+		this(datastore, maxEntities, DEFAULT_MAX_BYTES);
+	}
+
+	public BatchWriter(DatastoreRpc datastore, int maxEntities, int maxBytes) {
+		if (maxEntities < 1) {
+			throw new IllegalArgumentException("maxEntities must be positive: " + maxEntities);
+		}
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		}
+		this.datastore = datastore;
+		this.maxEntities = maxEntities;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Adds an upsert to the pending batch, flushing first if the entity would
+	 * push the batch over the byte limit and flushing after if the batch is
+	 * full.
+	 */
+	public void upsert(Entity entity) throws DatastoreException {
+		int size = CodedOutputStream.computeMessageSize(Mutation.UPSERT_FIELD_NUMBER, entity);
+		if (pendingBytes > 0 && pendingBytes + size > maxBytes) {
+			flush();
+		}
+		req.getMutationBuilder().addUpsert(entity);
+		pendingBytes += size;
+		if (req.getMutationBuilder().getUpsertCount() >= maxEntities || pendingBytes >= maxBytes) {
+			flush();
+		}
+	}
+
+	public void upsert(Entity.Builder entity) throws DatastoreException {
+		upsert(entity.build());
+	}
+
+	/**
+	 * Sends the pending batch. The batch is discarded even if the RPC fails,
+	 * same as the single entity loop which logs the error and moves on.
+	 */
+	public void flush() throws DatastoreException {
+		int count = req.getMutationBuilder().getUpsertCount();
+		if (count == 0) {
+			return;
+		}
+		BlindWriteRequest request = req.build();
+		int bytes = pendingBytes;
+		req = BlindWriteRequest.newBuilder();
+		pendingBytes = 0;
+
+		long start = System.nanoTime();
+		datastore.blindWrite(request);
+		long elapsed = System.nanoTime() - start;
+
+		batchCount++;
+		entityCount += count;
+		byteCount += bytes;
+		writeNanos += elapsed;
+		logger.info(String.format("batch #%d: %d entities, %d bytes, %.1f ms, %.1f entities/sec", batchCount,
+				count, bytes, elapsed / 1e6, count * 1e9 / elapsed));
+	}
+
+	/** Upserts waiting for the next flush. */
+	public int getPendingCount() {
+		return req.getMutationBuilder().getUpsertCount();
+	}
+
+	public long getBatchCount() {
+		return batchCount;
+	}
+
+	public long getEntityCount() {
+		return entityCount;
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * Logs total throughput. {@code elapsedMillis} is the wall time of the
+	 * whole loop, e.g. {@code StopWatch#getTime()}.
+	 */
+	public void logSummary(long elapsedMillis) {
+		logger.info(String.format("wrote %d entities in %d batches (%d bytes), rpc %.1f ms, "
+				+ "%.1f entities/sec (wall), %.1f entities/sec (rpc)", entityCount, batchCount, byteCount,
+				writeNanos / 1e6, elapsedMillis == 0 ? 0.0 : entityCount * 1000.0 / elapsedMillis,
+				writeNanos == 0 ? 0.0 : entityCount * 1e9 / writeNanos));
+	}
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.services.bigquery.Bigquery;
+
+/**
+ * Streams rows into a BigQuery table with {@code tabledata.insertAll}, in
+ * requests of at most {@code batchSize} rows. The key path is sent as the
+ * insert id, so a retried request does not duplicate rows.
+ *
+ * The request is built on the client's request factory rather than a typed
+ * {@code tabledata().insertAll()} method, which older client libraries lack.
+ * Rows rejected by BigQuery are counted and the first error of each request
+ * is logged; the table must already exist.
+ */
+public class BigQueryInsertAllSink implements ExportSink {
+	private static final Logger logger = Logger.getLogger(BigQueryInsertAllSink.class.getName());
+
+	private final Bigquery bigquery;
+	private final GenericUrl url;
+	private final int batchSize;
+	private final AtomicLong inserted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public BigQueryInsertAllSink(Bigquery bigquery, String projectId, String datasetId, String tableId, int batchSize) {
+		this.bigquery = bigquery;
+		this.url = new GenericUrl(bigquery.getBaseUrl() + "projects/" + projectId + "/datasets/" + datasetId
+				+ "/tables/" + tableId + "/insertAll");
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public void write(int shard, List<Map<String, Object>> rows) throws IOException {
+		for (int from = 0; from < rows.size(); from += batchSize) {
+			insert(rows.subList(from, Math.min(rows.size(), from + batchSize)));
+		}
+	}
+
+	public long getInsertedCount() {
+		return inserted.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	@Override
+	public void close() {
+		logger.info("insertAll: " + inserted.get() + " rows inserted, " + rejected.get() + " rejected");
+	}
+
+	private void insert(List<Map<String, Object>> rows) throws IOException {
+		List<Map<String, Object>> items = new ArrayList<Map<String, Object>>(rows.size());
+		for (Map<String, Object> row : rows) {
+			Map<String, Object> item = new LinkedHashMap<String, Object>();
+			item.put("insertId", row.get(EntityRows.KEY_COLUMN));
+			item.put("json", row);
+			items.add(item);
+		}
+		Map<String, Object> body = new LinkedHashMap<String, Object>();
+		body.put("kind", "bigquery#tableDataInsertAllRequest");
+		body.put("rows", items);
+
+		HttpRequest request = bigquery.getRequestFactory().buildPostRequest(url,
+				new JsonHttpContent(bigquery.getJsonFactory(), body));
+		request.setParser(new JsonObjectParser(bigquery.getJsonFactory()));
+		GenericJson response = request.execute().parseAs(GenericJson.class);
+
+		Object errors = response.get("insertErrors");
+		int failed = errors instanceof List ? ((List<?>) errors).size() : 0;
+		if (failed > 0) {
+			logger.warning(failed + " of " + rows.size() + " rows rejected, first: " + ((List<?>) errors).get(0));
+		}
+		rejected.addAndGet(failed);
+		inserted.addAndGet(rows.size() - failed);
+	}
+}
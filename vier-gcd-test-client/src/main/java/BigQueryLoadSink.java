@@ -0,0 +1,99 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.api.client.http.FileContent;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfiguration;
+import com.google.api.services.bigquery.model.JobConfigurationLoad;
+import com.google.api.services.bigquery.model.TableReference;
+
+/**
+ * Writes the rows to newline-delimited JSON files with an
+ * {@link NdjsonFileSink} and, when closed, loads the files into a BigQuery
+ * table with one {@code jobs.insert} load job per file. This is the bulk
+ * path: a load job is free and has no row rate limit, unlike
+ * {@link BigQueryInsertAllSink}, but the rows only appear once the jobs are
+ * done.
+ *
+ * The rows are appended; the table must already exist. {@link #close} waits
+ * for all jobs and fails if any of them failed.
+ */
+public class BigQueryLoadSink implements ExportSink {
+	private static final Logger logger = Logger.getLogger(BigQueryLoadSink.class.getName());
+
+	private static final long POLL_INTERVAL_MILLIS = 1000;
+
+	private final Bigquery bigquery;
+	private final TableReference table;
+	private final NdjsonFileSink files;
+
+	public BigQueryLoadSink(Bigquery bigquery, String projectId, String datasetId, String tableId,
+			NdjsonFileSink files) {
+		this.bigquery = bigquery;
+		this.table = new TableReference().setProjectId(projectId).setDatasetId(datasetId).setTableId(tableId);
+		this.files = files;
+	}
+
+	@Override
+	public void write(int shard, List<Map<String, Object>> rows) throws IOException {
+		files.write(shard, rows);
+	}
+
+	/** Closes the files, then loads them and waits for the load jobs. */
+	@Override
+	public void close() throws IOException {
+		files.close();
+		List<Job> jobs = new ArrayList<Job>();
+		for (File file : files.getFiles()) {
+			jobs.add(submit(file));
+		}
+		IOException failure = null;
+		for (Job job : jobs) {
+			try {
+				await(job);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		logger.info("loaded " + jobs.size() + " files into " + table.getDatasetId() + "." + table.getTableId());
+	}
+
+	private Job submit(File file) throws IOException {
+		JobConfigurationLoad load = new JobConfigurationLoad().setDestinationTable(table)
+				.setSourceFormat("NEWLINE_DELIMITED_JSON").setWriteDisposition("WRITE_APPEND")
+				.setCreateDisposition("CREATE_NEVER");
+		Job job = new Job().setConfiguration(new JobConfiguration().setLoad(load));
+		Job submitted = bigquery.jobs()
+				.insert(table.getProjectId(), job, new FileContent("application/octet-stream", file)).execute();
+		logger.info("load job " + submitted.getJobReference().getJobId() + ": " + file + " (" + file.length()
+				+ " bytes)");
+		return submitted;
+	}
+
+	private void await(Job job) throws IOException {
+		String jobId = job.getJobReference().getJobId();
+		while (!"DONE".equals(job.getStatus().getState())) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted waiting for load job " + jobId, e);
+			}
+			job = bigquery.jobs().get(table.getProjectId(), jobId).execute();
+		}
+		ErrorProto error = job.getStatus().getErrorResult();
+		if (error != null) {
+			throw new IOException("load job " + jobId + " failed: " + error.getMessage());
+		}
+	}
+}
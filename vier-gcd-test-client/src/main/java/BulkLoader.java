@@ -0,0 +1,312 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Loads a CSV or JSONL file into Datastore.
+ *
+ * The file is memory-mapped and split into byte ranges at line breaks; each
+ * range is parsed by one parser thread straight from the mapping. Parsed
+ * entities are handed over in batches through a bounded queue to writer
+ * threads, each sending them with its own {@link BatchWriter}, so memory use
+ * is bounded by the queue size whatever the file size is.
+ *
+ * A CSV file must start with a header line naming the columns. Records that
+ * cannot be parsed are logged and skipped.
+ */
+public class BulkLoader {
+	private static final Logger logger = Logger.getLogger(BulkLoader.class.getName());
+
+	public enum Format {
+		CSV, JSONL
+	}
+
+	/** Upper bound of one record; a range is mapped this far past its end. */
+	private static final int MAX_RECORD_BYTES = 1024 * 1024;
+	/** Upper bound of one range, so that it can be mapped at once. */
+	private static final long MAX_RANGE_BYTES = 1L << 30;
+	/** Tells a writer thread that no more batches will come. */
+	private static final List<Entity> END = Collections.emptyList();
+	/** How often a thread blocked on the full queue checks for a failed writer. */
+	private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+	private final DatastoreRpc datastore;
+	private final String kind;
+	private final Format format;
+	private final RecordParser.Column[] columns;
+	private int parserThreads = Runtime.getRuntime().availableProcessors();
+	private int writerThreads = 8;
+	private int batchSize = 500;
+
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong parseErrors = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong writeErrors = new AtomicLong();
+
+	public BulkLoader(DatastoreRpc datastore, String kind, Format format, RecordParser.Column[] columns) {
+		this.datastore = datastore;
+		this.kind = kind;
+		this.format = format;
+		this.columns = columns.clone();
+	}
+
+	public void setParserThreads(int parserThreads) {
+		this.parserThreads = parserThreads;
+	}
+
+	public void setWriterThreads(int writerThreads) {
+		this.writerThreads = writerThreads;
+	}
+
+	/** Entities per blindWrite, and per batch handed to the writers. */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Loads the whole file and logs the totals.
+	 *
+	 * @throws IllegalArgumentException if the CSV header lacks a column
+	 */
+	public void load(File file) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long dataStart = 0;
+			RecordParser.Column[] csvColumns = null;
+			if (format == Format.CSV) {
+				MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						Math.min(size, MAX_RECORD_BYTES));
+				int lineEnd = findLineEnd(head, 0, head.limit());
+				byte[] header = new byte[lineEnd];
+				head.get(header);
+				csvColumns = CsvRecordParser.mapHeader(trimCr(new String(header, StandardCharsets.UTF_8)), columns);
+				dataStart = Math.min(size, lineEnd + 1);
+			}
+			List<long[]> ranges = split(dataStart, size);
+			logger.info(String.format("loading %s (%d bytes) in %d ranges, %d parser and %d writer threads",
+					file, size, ranges.size(), parserThreads, writerThreads));
+
+			BlockingQueue<List<Entity>> queue = new ArrayBlockingQueue<List<Entity>>(writerThreads * 2);
+			AtomicReference<Throwable> writerFailure = new AtomicReference<Throwable>();
+			ExecutorService writers = Executors.newFixedThreadPool(writerThreads);
+			ExecutorService parsers = Executors.newFixedThreadPool(parserThreads);
+			try {
+				List<Future<?>> writerFutures = new ArrayList<Future<?>>();
+				for (int i = 0; i < writerThreads; i++) {
+					writerFutures.add(writers.submit(newWriter(queue, writerFailure)));
+				}
+				List<Future<?>> parserFutures = new ArrayList<Future<?>>();
+				for (long[] range : ranges) {
+					parserFutures.add(parsers.submit(newParserTask(channel, size, range[0], range[1], csvColumns,
+							queue, writerFailure)));
+				}
+				await(parserFutures);
+				for (int i = 0; i < writerThreads; i++) {
+					put(queue, END, writerFailure);
+				}
+				await(writerFutures);
+			} finally {
+				parsers.shutdownNow();
+				writers.shutdownNow();
+			}
+			long elapsed = System.nanoTime() - start;
+			logger.info(String.format(
+					"loaded %d of %d records (%d parse errors, %d write errors) in %.1f ms, %.1f records/sec, %.1f MB/sec",
+					written.get(), records.get(), parseErrors.get(), writeErrors.get(), elapsed / 1e6, records.get()
+							* 1e9 / elapsed, size * 1e3 / elapsed));
+		}
+	}
+
+	public long getRecordCount() {
+		return records.get();
+	}
+
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	public long getParseErrorCount() {
+		return parseErrors.get();
+	}
+
+	public long getWriteErrorCount() {
+		return writeErrors.get();
+	}
+
+	/** Ranges of at most MAX_RANGE_BYTES, at least one per parser thread. */
+	private List<long[]> split(long start, long end) {
+		long length = end - start;
+		long count = Math.max(parserThreads, (length + MAX_RANGE_BYTES - 1) / MAX_RANGE_BYTES);
+		long rangeSize = Math.max(1, (length + count - 1) / count);
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (long s = start; s < end; s += rangeSize) {
+			ranges.add(new long[] { s, Math.min(end, s + rangeSize) });
+		}
+		return ranges;
+	}
+
+	private RecordParser newParser(RecordParser.Column[] csvColumns) {
+		return format == Format.CSV ? new CsvRecordParser(kind, csvColumns) : new JsonlRecordParser(kind, columns);
+	}
+
+	/**
+	 * Parses the records that start in {@code [rangeStart, rangeEnd)}. A range
+	 * not at the beginning of the data skips the partial record it starts in,
+	 * which belongs to the previous range.
+	 */
+	private Callable<Void> newParserTask(final FileChannel channel, final long fileSize, final long rangeStart,
+			final long rangeEnd, final RecordParser.Column[] csvColumns, final BlockingQueue<List<Entity>> queue,
+			final AtomicReference<Throwable> writerFailure) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				RecordParser parser = newParser(csvColumns);
+				// Map one byte before the range to see whether it starts a line.
+				long mapStart = Math.max(0, rangeStart - 1);
+				long mapEnd = Math.min(fileSize, rangeEnd + MAX_RECORD_BYTES);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+				int limit = buffer.limit();
+				int rangeLimit = (int) (rangeEnd - mapStart);
+				int pos = (int) (rangeStart - mapStart);
+				if (rangeStart > 0 && buffer.get(pos - 1) != '\n') {
+					pos = findLineEnd(buffer, pos, limit) + 1;
+				}
+				List<Entity> batch = new ArrayList<Entity>(batchSize);
+				while (pos < rangeLimit) {
+					int lineEnd = findLineEnd(buffer, pos, limit);
+					if (lineEnd == limit && mapEnd < fileSize) {
+						throw new IllegalStateException("record longer than " + MAX_RECORD_BYTES + " bytes at offset "
+								+ (mapStart + pos));
+					}
+					int recordEnd = lineEnd > pos && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+					if (recordEnd > pos) {
+						records.incrementAndGet();
+						try {
+							batch.add(parser.parse(buffer, pos, recordEnd));
+						} catch (IllegalArgumentException exception) {
+							parseErrors.incrementAndGet();
+							logger.warning("skipping record at offset " + (mapStart + pos) + ": "
+									+ exception.getMessage());
+						}
+						if (batch.size() >= batchSize) {
+							put(queue, batch, writerFailure);
+							batch = new ArrayList<Entity>(batchSize);
+						}
+					}
+					pos = lineEnd + 1;
+				}
+				if (!batch.isEmpty()) {
+					put(queue, batch, writerFailure);
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * A writer that takes batches until END. If it dies on an unchecked
+	 * exception, it leaves the exception in {@code writerFailure} so that the
+	 * parsers stop instead of waiting for room in the queue forever.
+	 */
+	private Callable<Void> newWriter(final BlockingQueue<List<Entity>> queue,
+			final AtomicReference<Throwable> writerFailure) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws InterruptedException {
+				try {
+					BatchWriter writer = new BatchWriter(datastore, batchSize);
+					for (List<Entity> batch = queue.take(); batch != END; batch = queue.take()) {
+						for (Entity entity : batch) {
+							write(writer, entity);
+						}
+					}
+					long before = writer.getEntityCount();
+					try {
+						writer.flush();
+						written.addAndGet(writer.getEntityCount() - before);
+					} catch (DatastoreException exception) {
+						writeErrors.incrementAndGet();
+						logger.log(Level.SEVERE, "error", exception);
+					}
+					return null;
+				} catch (RuntimeException | Error e) {
+					writerFailure.compareAndSet(null, e);
+					throw e;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Queues a batch, waiting for room as long as no writer has failed.
+	 *
+	 * @throws IllegalStateException if a writer failed
+	 */
+	private static void put(BlockingQueue<List<Entity>> queue, List<Entity> batch,
+			AtomicReference<Throwable> writerFailure) throws InterruptedException {
+		while (!queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			Throwable failure = writerFailure.get();
+			if (failure != null) {
+				throw new IllegalStateException("a writer thread failed", failure);
+			}
+		}
+	}
+
+	private void write(BatchWriter writer, Entity entity) {
+		long before = writer.getEntityCount();
+		try {
+			writer.upsert(entity);
+			written.addAndGet(writer.getEntityCount() - before);
+		} catch (DatastoreException exception) {
+			writeErrors.incrementAndGet();
+			logger.log(Level.SEVERE, "error", exception);
+		}
+	}
+
+	/** Position of the next '\n' at or after pos, or limit if there is none. */
+	private static int findLineEnd(MappedByteBuffer buffer, int pos, int limit) {
+		while (pos < limit && buffer.get(pos) != '\n') {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static String trimCr(String line) {
+		return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+	}
+
+	private static void await(List<Future<?>> futures) throws InterruptedException, IOException {
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+}
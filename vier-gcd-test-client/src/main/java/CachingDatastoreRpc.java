@@ -0,0 +1,220 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Serves lookups from a bounded LRU cache whose entries expire after a TTL.
+ * Both found and missing keys are cached. Keys written through
+ * {@link #blindWrite} or {@link #commit} of this instance are invalidated;
+ * writes by other clients are only picked up after the TTL.
+ *
+ * Lookups inside a transaction always go to the delegate.
+ */
+public class CachingDatastoreRpc extends ForwardingDatastoreRpc {
+	private static final Logger logger = Logger.getLogger(CachingDatastoreRpc.class.getName());
+
+	private final int maxSize;
+	private final long ttlNanos;
+	private final LinkedHashMap<Key, CacheEntry> cache;
+
+	/**
+	 * Incremented before every write, so that a lookup which overlapped a
+	 * write does not put stale results into the cache.
+	 */
+	private final AtomicLong writeGeneration = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public CachingDatastoreRpc(DatastoreRpc delegate, int maxSize, long ttl, TimeUnit unit) {
+		super(delegate);
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.ttlNanos = unit.toNanos(ttl);
+		this.cache = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest) {
+				if (size() > CachingDatastoreRpc.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+		if (request.getReadOptions().hasTransaction()) {
+			return delegate.lookup(request);
+		}
+		LookupResponse.Builder response = LookupResponse.newBuilder();
+		LookupRequest.Builder uncached = request.toBuilder().clearKey();
+		long now = System.nanoTime();
+		synchronized (cache) {
+			for (Key key : request.getKeyList()) {
+				Key cacheKey = DatastoreKeys.withoutDatasetId(key);
+				CacheEntry entry = cache.get(cacheKey);
+				if (entry != null && now - entry.loadedNanos > ttlNanos) {
+					cache.remove(cacheKey);
+					evictions.incrementAndGet();
+					entry = null;
+				}
+				if (entry == null) {
+					misses.incrementAndGet();
+					uncached.addKey(key);
+				} else if (entry.entity != null) {
+					hits.incrementAndGet();
+					response.addFound(EntityResult.newBuilder().setEntity(entry.entity));
+				} else {
+					hits.incrementAndGet();
+					response.addMissing(EntityResult.newBuilder().setEntity(Entity.newBuilder().setKey(key)));
+				}
+			}
+		}
+		if (uncached.getKeyCount() == 0) {
+			return response.build();
+		}
+
+		long generation = writeGeneration.get();
+		LookupResponse fetched = delegate.lookup(uncached.build());
+		synchronized (cache) {
+			boolean cacheable = generation == writeGeneration.get();
+			long loaded = System.nanoTime();
+			for (EntityResult result : fetched.getFoundList()) {
+				if (cacheable) {
+					cache.put(DatastoreKeys.withoutDatasetId(result.getEntity().getKey()),
+							new CacheEntry(result.getEntity(), loaded));
+				}
+				response.addFound(result);
+			}
+			for (EntityResult result : fetched.getMissingList()) {
+				if (cacheable) {
+					cache.put(DatastoreKeys.withoutDatasetId(result.getEntity().getKey()),
+							new CacheEntry(null, loaded));
+				}
+				response.addMissing(result);
+			}
+		}
+		response.addAllDeferred(fetched.getDeferredList());
+		return response.build();
+	}
+
+	@Override
+	public BlindWriteResponse blindWrite(BlindWriteRequest request) throws DatastoreException {
+		List<Key> keys = DatastoreKeys.mutatedKeys(request.getMutation());
+		invalidate(keys);
+		try {
+			return delegate.blindWrite(request);
+		} finally {
+			// The write may have been applied even if it failed.
+			invalidate(keys);
+		}
+	}
+
+	@Override
+	public CommitResponse commit(CommitRequest request) throws DatastoreException {
+		List<Key> keys = DatastoreKeys.mutatedKeys(request.getMutation());
+		invalidate(keys);
+		try {
+			return delegate.commit(request);
+		} finally {
+			invalidate(keys);
+		}
+	}
+
+	/** Removes all entries. */
+	public void invalidateAll() {
+		writeGeneration.incrementAndGet();
+		synchronized (cache) {
+			invalidations.addAndGet(cache.size());
+			cache.clear();
+		}
+	}
+
+	/** Removes entries whose TTL has passed. */
+	public void evictExpired() {
+		long now = System.nanoTime();
+		synchronized (cache) {
+			for (Iterator<CacheEntry> it = cache.values().iterator(); it.hasNext();) {
+				if (now - it.next().loadedNanos > ttlNanos) {
+					it.remove();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/** Entries removed because of the size bound or the TTL. */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/** Entries removed because of a write. */
+	public long getInvalidationCount() {
+		return invalidations.get();
+	}
+
+	public void logStats() {
+		long h = hits.get();
+		long m = misses.get();
+		logger.info(String.format("lookup cache: size=%d hits=%d misses=%d hitRate=%.1f%% evictions=%d invalidations=%d",
+				size(), h, m, h + m == 0 ? 0.0 : h * 100.0 / (h + m), evictions.get(), invalidations.get()));
+	}
+
+	private void invalidate(List<Key> keys) {
+		writeGeneration.incrementAndGet();
+		synchronized (cache) {
+			for (Key key : keys) {
+				if (cache.remove(DatastoreKeys.withoutDatasetId(key)) != null) {
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static class CacheEntry {
+		/** Null for a key that was missing. */
+		final Entity entity;
+		final long loadedNanos;
+
+		CacheEntry(Entity entity, long loadedNanos) {
+			this.entity = entity;
+			this.loadedNanos = loadedNanos;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.logging.Logger;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.compute.ComputeCredential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreFactory;
+import com.google.api.services.datastore.client.DatastoreOptions;
+
+/**
+ * Owns one pooled keep-alive HTTP transport and one JSON factory, and builds
+ * the credentials, the Datastore client and the BigQuery client on top of
+ * them, so that they all reuse the same connections.
+ *
+ * The shared instance is configured by system properties:
+ * <ul>
+ * <li>{@code -Dhttp.poolSize}: max connections, per host and in total (default 20)</li>
+ * <li>{@code -Dhttp.connectTimeout}: milliseconds (default 20000)</li>
+ * <li>{@code -Dhttp.readTimeout}: milliseconds (default 20000)</li>
+ * </ul>
+ */
+public class ClientFactory {
+	private static final Logger logger = Logger.getLogger(ClientFactory.class.getName());
+
+	public static final String APPLICATION_NAME = "vier-gcd-test-client/0.1";
+
+	/** The Compute Engine metadata server, which issues its credentials. */
+	private static final String METADATA_HOST = "169.254.169.254";
+
+	private static ClientFactory instance;
+
+	private final HttpTransport transport;
+	private final JsonFactory jsonFactory = new JacksonFactory();
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+	/** Builds the RPC request factory with {@link #initializer}, so that the timeouts apply to Datastore too. */
+	private final DatastoreFactory datastoreFactory = new DatastoreFactory() {
+		@Override
+		public HttpRequestFactory makeClient(DatastoreOptions options) {
+			HttpTransport rpcTransport = options.getTransport() != null ? options.getTransport() : transport;
+			return rpcTransport.createRequestFactory(initializer(options.getCredential()));
+		}
+	};
+
+	public ClientFactory(int poolSize, int connectTimeoutMillis, int readTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.transport = new ApacheHttpTransport(newHttpClient(poolSize, connectTimeoutMillis, readTimeoutMillis));
+		logger.info(String.format("HTTP pool: %d connections, connect timeout %d ms, read timeout %d ms", poolSize,
+				connectTimeoutMillis, readTimeoutMillis));
+	}
+
+	/** The shared instance, created on first use. */
+	public static synchronized ClientFactory get() {
+		if (instance == null) {
+			instance = new ClientFactory(Integer.getInteger("http.poolSize", 20), Integer.getInteger(
+					"http.connectTimeout", 20000), Integer.getInteger("http.readTimeout", 20000));
+		}
+		return instance;
+	}
+
+	public HttpTransport getTransport() {
+		return transport;
+	}
+
+	public JsonFactory getJsonFactory() {
+		return jsonFactory;
+	}
+
+	/** GoogleCredential builder using the shared transport, also for token requests. */
+	public GoogleCredential.Builder newCredentialBuilder() {
+		return new GoogleCredential.Builder().setTransport(transport).setJsonFactory(jsonFactory)
+				.setRequestInitializer(initializer(null));
+	}
+
+	/** Options with the shared transport; dataset, host and credential are left to the caller. */
+	public DatastoreOptions.Builder newDatastoreOptions() {
+		return new DatastoreOptions.Builder().transport(transport);
+	}
+
+	/**
+	 * Like {@code DatastoreHelper.getOptionsfromEnv()}, but on the shared
+	 * transport: dataset and host from DATASTORE_DATASET and DATASTORE_HOST,
+	 * and the Compute Engine credential if there is one, else the service
+	 * account of DATASTORE_SERVICE_ACCOUNT and DATASTORE_PRIVATE_KEY_FILE,
+	 * else none (e.g. for LocalDatastoreServer).
+	 */
+	public DatastoreOptions.Builder newDatastoreOptionsFromEnv() throws GeneralSecurityException, IOException {
+		DatastoreOptions.Builder options = newDatastoreOptions();
+		options.dataset(System.getenv("DATASTORE_DATASET"));
+		options.host(System.getenv("DATASTORE_HOST"));
+		Credential credential = getComputeEngineCredential();
+		String account = System.getenv("DATASTORE_SERVICE_ACCOUNT");
+		String privateKeyFile = System.getenv("DATASTORE_PRIVATE_KEY_FILE");
+		if (credential == null && account != null && privateKeyFile != null) {
+			credential = newCredentialBuilder().setServiceAccountId(account)
+					.setServiceAccountScopes(Collections.singleton(DatastoreOptions.SCOPE))
+					.setServiceAccountPrivateKeyFromP12File(new File(privateKeyFile)).build();
+		}
+		options.credential(credential);
+		return options;
+	}
+
+	/**
+	 * True if the Compute Engine metadata server accepts a connection within
+	 * {@code -Dcredential.metadataTimeout} milliseconds (default 300).
+	 * Outside Compute Engine this gives up after that time, not after the
+	 * HTTP timeouts of a token request.
+	 */
+	public boolean isOnComputeEngine() {
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(METADATA_HOST, 80), Integer.getInteger("credential.metadataTimeout",
+					300));
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The Compute Engine service account credential, or null outside Compute
+	 * Engine, see {@link #isOnComputeEngine()}.
+	 */
+	public Credential getComputeEngineCredential() {
+		if (!isOnComputeEngine()) {
+			return null;
+		}
+		ComputeCredential credential = new ComputeCredential.Builder(transport, jsonFactory).setRequestInitializer(
+				initializer(null)).build();
+		try {
+			credential.refreshToken();
+			return credential;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a Datastore client whose requests get the configured timeouts.
+	 * The options should come from {@link #newDatastoreOptions()}; without a
+	 * transport they get the shared one.
+	 */
+	public Datastore createDatastore(DatastoreOptions options) {
+		return datastoreFactory.create(options);
+	}
+
+	public Bigquery createBigquery(Credential credential) {
+		return new Bigquery.Builder(transport, jsonFactory, credential).setApplicationName(APPLICATION_NAME)
+				.setHttpRequestInitializer(initializer(credential)).build();
+	}
+
+	/**
+	 * Applies the configured timeouts, then the credential if it is not null.
+	 */
+	public HttpRequestInitializer initializer(final HttpRequestInitializer credential) {
+		return new HttpRequestInitializer() {
+			@Override
+			public void initialize(HttpRequest request) throws IOException {
+				request.setConnectTimeout(connectTimeoutMillis);
+				request.setReadTimeout(readTimeoutMillis);
+				if (credential != null) {
+					credential.initialize(request);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Thread-safe connection manager with keep-alive. HttpClient's own
+	 * retries are disabled; retries are the caller's decision.
+	 */
+	private static DefaultHttpClient newHttpClient(int poolSize, int connectTimeoutMillis, int readTimeoutMillis) {
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis);
+		HttpConnectionParams.setSoTimeout(params, readTimeoutMillis);
+		HttpConnectionParams.setSocketBufferSize(params, 8192);
+		ConnManagerParams.setMaxTotalConnections(params, poolSize);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(poolSize));
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, registry);
+
+		DefaultHttpClient client = new DefaultHttpClient(connectionManager, params);
+		client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+		return client;
+	}
+}
@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -12,8 +13,6 @@ import com.google.api.services.datastore.DatastoreV1.Property;
 import com.google.api.services.datastore.DatastoreV1.Value;
 import com.google.api.services.datastore.client.Datastore;
 import com.google.api.services.datastore.client.DatastoreException;
-import com.google.api.services.datastore.client.DatastoreFactory;
-import com.google.api.services.datastore.client.DatastoreHelper;
 import com.google.api.services.datastore.client.DatastoreOptions;
 
 /**
@@ -43,13 +42,13 @@ public class ClientTest {
 			// Compute Engine上て動作している場合はComputeEngine用のCredentialを、
 			// それ以外の環境で、かつ環境変数が適切に設定されている場合は
 			// Serivce Account FlowのCredentialを生成する。
-			DatastoreOptions.Builder builder = DatastoreHelper.getOptionsfromEnv();
+			DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
 
 			DatastoreOptions options = builder.dataset(datasetId).build();
 			logger.info("options.getHost():" + options.getHost());
 			logger.info("options.getDataset():" + options.getDataset());
 
-			datastore = DatastoreFactory.get().create(options);
+			datastore = ClientFactory.get().createDatastore(options);
 
 		} catch (GeneralSecurityException exception) {
 			logger.severe("Security error connecting to the datastore: " + exception.getMessage());
@@ -59,6 +58,12 @@ public class ClientTest {
 			System.exit(1);
 		}
 
+		// 同じKeyのlookupはキャッシュから返す
+		// (「-DcacheSize=N」「-DcacheTtl=秒」でキャッシュの上限、「-DlookupCount=N」でlookupの回数を指定する)
+		CachingDatastoreRpc rpc = new CachingDatastoreRpc(new DirectDatastoreRpc(datastore), Integer.getInteger(
+				"cacheSize", 1000), Integer.getInteger("cacheTtl", 60), TimeUnit.SECONDS);
+		int lookupCount = Integer.getInteger("lookupCount", 1);
+
 		try {
 			// トランザクション外で更新するためのRPC requestを作成する
 			BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
@@ -80,15 +85,19 @@ public class ClientTest {
 			req.getMutationBuilder().addUpsert(entity);
 			// 同期的にRPCを実行して結果を無視する
 			// (「返り値を無視する」の意味であって、システムエラー時には例外が発生する)
-			datastore.blindWrite(req.build());
+			rpc.blindWrite(req.build());
 
 			// KeyでEntityを「get」するための RPC リクエストを作成する
 			LookupRequest.Builder lreq = LookupRequest.newBuilder();
 			// 登録したEntityを「get」するためにKeyを一つ指定する
 			// (おそらく複数指定するとbatch get)
 			lreq.addKey(key);
-			// RPCを実行して結果を取得する
-			LookupResponse lresp = datastore.lookup(lreq.build());
+			// RPCを実行して結果を取得する (2回目以降はキャッシュから返る)
+			LookupResponse lresp = rpc.lookup(lreq.build());
+			for (int i = 1; i < lookupCount; i++) {
+				lresp = rpc.lookup(lreq.build());
+			}
+			rpc.logStats();
 			// 結果として一つのEntityを取得する.
 			Entity entityFound = lresp.getFound(0).getEntity();
 			// 「question」 propertyの値を取得する。
@@ -0,0 +1,108 @@
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.api.services.datastore.client.DatastoreOptions;
+
+/**
+ * Exports a kind to BigQuery, or to local newline-delimited JSON files, with
+ * {@link DatastoreExporter}. The bigquery sink streams the rows with
+ * insertAll; the load sink writes files and loads them with load jobs.
+ *
+ * Options: -Dsink=file|bigquery|load (file), -Doutput=dir (export, file and
+ * load sinks), -Dbigquery.project=id (the dataset id), -Dbigquery.dataset=id
+ * (required for the bigquery and load sinks), -Dbigquery.table=id (the
+ * kind), -Dshards=N (16),
+ * -Dthreads=N (shards), -DpageSize=N (500), -DbatchSize=N rows per write
+ * (500), -Dretries=N.
+ */
+public class ClientTest10 {
+	private static final Logger logger = Logger.getLogger(ClientTest10.class.getName());
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ClientTest10 <DATASET_ID> <KIND>");
+			System.exit(1);
+		}
+
+		String datasetId = args[0];
+		String kind = args[1];
+		int shards = Integer.getInteger("shards", 16);
+		int batchSize = Integer.getInteger("batchSize", 500);
+		Datastore datastore = null;
+		ExportSink sink = null;
+		try {
+			// The BigQuery scope is included in ClientTest4's service account credential.
+			DatastoreOptions options = ClientTest4.getOptionsfromEnv().dataset(datasetId).build();
+			datastore = ClientFactory.get().createDatastore(options);
+
+			String sinkType = System.getProperty("sink", "file");
+			String bigqueryDataset = System.getProperty("bigquery.dataset");
+			if (!"file".equals(sinkType) && bigqueryDataset == null) {
+				System.err.println("-Dbigquery.dataset is required for the " + sinkType + " sink");
+				System.exit(1);
+			}
+			if ("bigquery".equals(sinkType)) {
+				sink = new BigQueryInsertAllSink(ClientFactory.get().createBigquery(options.getCredential()),
+						System.getProperty("bigquery.project", datasetId), bigqueryDataset, System.getProperty(
+								"bigquery.table", kind), batchSize);
+			} else {
+				File output = new File(System.getProperty("output", "export"));
+				NdjsonFileSink files = new NdjsonFileSink(output, kind);
+				logger.info("writing to " + output.getAbsolutePath());
+				if ("load".equals(sinkType)) {
+					sink = new BigQueryLoadSink(ClientFactory.get().createBigquery(options.getCredential()),
+							System.getProperty("bigquery.project", datasetId), bigqueryDataset, System.getProperty(
+									"bigquery.table", kind), files);
+				} else {
+					sink = files;
+				}
+			}
+
+		} catch (GeneralSecurityException exception) {
+			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		} catch (IOException exception) {
+			System.err.println("I/O error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		}
+
+		TimedDatastoreRpc rpc = new TimedDatastoreRpc(new DirectDatastoreRpc(datastore));
+		DatastoreRpc client = rpc;
+		RetryingDatastoreRpc retrying = null;
+		if (Integer.getInteger("retries") != null) {
+			retrying = RetryingDatastoreRpc.fromProperties(rpc);
+			client = retrying;
+		}
+
+		DatastoreExporter exporter = new DatastoreExporter(client, kind, sink);
+		exporter.setShards(shards);
+		exporter.setThreads(Integer.getInteger("threads", shards));
+		exporter.setPageSize(Integer.getInteger("pageSize", 500));
+		exporter.setBatchSize(batchSize);
+		try {
+			exporter.export();
+			sink.close();
+		} catch (DatastoreException exception) {
+			System.err.println(String.format("DatastoreException(%s): %s %s", exception.getMessage(),
+					exception.methodName, exception.code));
+			logger.log(Level.SEVERE, "error", exception);
+			System.exit(1);
+		} catch (IOException exception) {
+			logger.log(Level.SEVERE, "failed to write rows", exception);
+			System.exit(1);
+		} catch (InterruptedException exception) {
+			logger.log(Level.SEVERE, "interrupted", exception);
+			System.exit(1);
+		}
+
+		rpc.logSummary();
+		if (retrying != null) {
+			retrying.logStats();
+		}
+	}
+}
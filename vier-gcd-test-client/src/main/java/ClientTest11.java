@@ -0,0 +1,131 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreOptions;
+
+/**
+ * Runs a workload with {@link WorkloadRunner} and prints the result.
+ *
+ * The workload is a properties file or the name of a bundled one:
+ * workloada (50% read, 50% write), workloadb (95/5), workloadc (read only),
+ * workloadd (read latest), workloade (short key scans), clienttest3 (the
+ * ClientTest3 puts) and clienttest5 (the ClientTest5 queries).
+ *
+ * Options: -Dformat=json|csv (json), -Doutput=file (standard output; csv
+ * lines are appended, with a header when the file is new), -Dlabel=text
+ * stored with the result, -Dworkload.name=value overrides a workload
+ * property, -Dretries=N, -Drecord=file logs the requests for ClientTest12.
+ */
+public class ClientTest11 {
+	private static final Logger logger = Logger.getLogger(ClientTest11.class.getName());
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ClientTest11 <DATASET_ID> <WORKLOAD>");
+			System.exit(1);
+		}
+
+		String datasetId = args[0];
+		Datastore datastore = null;
+		Workload workload = null;
+		try {
+			workload = Workload.load(args[1]);
+			DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
+			DatastoreOptions options = builder.dataset(datasetId).build();
+			datastore = ClientFactory.get().createDatastore(options);
+
+		} catch (GeneralSecurityException exception) {
+			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		} catch (IOException exception) {
+			System.err.println("I/O error: " + exception.getMessage());
+			System.exit(1);
+		}
+
+		// -Dmetrics=true publishes the RPC metrics as MBeans, -DmetricsPort=N also
+		// at http://localhost:N/metrics for Prometheus.
+		TimedDatastoreRpc rpc = new TimedDatastoreRpc(MetricsDatastoreRpc.fromProperties(new DirectDatastoreRpc(
+				datastore), "ClientTest11"));
+		DatastoreRpc client = rpc;
+		RetryingDatastoreRpc retrying = null;
+		if (Integer.getInteger("retries") != null) {
+			retrying = RetryingDatastoreRpc.fromProperties(rpc);
+			client = retrying;
+		}
+		// -Drecord=file logs the requests for ClientTest12 to replay.
+		WorkloadRecorder recorder = null;
+		try {
+			recorder = WorkloadRecorder.fromProperties(client);
+		} catch (IOException exception) {
+			System.err.println("I/O error opening the record file: " + exception.getMessage());
+			System.exit(1);
+		}
+		if (recorder != null) {
+			client = recorder;
+		}
+
+		WorkloadRunner.Result result = null;
+		try {
+			result = new WorkloadRunner(client, workload).run();
+		} catch (InterruptedException exception) {
+			logger.log(Level.SEVERE, "interrupted", exception);
+			System.exit(1);
+		}
+		if (recorder != null) {
+			try {
+				recorder.close();
+			} catch (IOException exception) {
+				logger.log(Level.SEVERE, "error", exception);
+			}
+		}
+		rpc.logSummary();
+		// Stop the -DmetricsPort server, which would keep the JVM running.
+		MetricsHttpServer.stopAll();
+		if (retrying != null) {
+			retrying.logStats();
+		}
+
+		boolean csv = "csv".equalsIgnoreCase(System.getProperty("format", "json"));
+		String output = System.getProperty("output");
+		try {
+			if (output == null) {
+				Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+				write(result, csv, true, out);
+				out.flush();
+			} else {
+				File file = new File(output);
+				boolean header = !file.exists() || file.length() == 0;
+				Writer out = new OutputStreamWriter(new FileOutputStream(file, csv), StandardCharsets.UTF_8);
+				try {
+					write(result, csv, header, out);
+				} finally {
+					out.close();
+				}
+				logger.info("result written to " + file.getAbsolutePath());
+			}
+		} catch (IOException exception) {
+			logger.log(Level.SEVERE, "failed to write the result", exception);
+			System.exit(1);
+		}
+	}
+
+	private static void write(WorkloadRunner.Result result, boolean csv, boolean header, Writer out)
+			throws IOException {
+		if (!csv) {
+			result.writeJson(out);
+			return;
+		}
+		if (header) {
+			out.write(WorkloadRunner.Result.CSV_HEADER + "\n");
+		}
+		result.writeCsv(out);
+	}
+}
@@ -0,0 +1,70 @@
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreOptions;
+
+/**
+ * Replays a log written with {@code -Drecord=file} (ClientTest3, ClientTest6,
+ * ClientTest11) using {@link WorkloadReplayer}, and logs the same RPC
+ * latency summary as the recorded run.
+ *
+ * Options: -Dspeed=factor|max (1: original pacing), -Dthreads=N (8),
+ * -Dretries=N, -Dmetrics=true, -DmetricsPort=N.
+ */
+public class ClientTest12 {
+	private static final Logger logger = Logger.getLogger(ClientTest12.class.getName());
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ClientTest12 <DATASET_ID> <LOG>");
+			System.exit(1);
+		}
+
+		String datasetId = args[0];
+		Datastore datastore = null;
+		try {
+			DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
+			DatastoreOptions options = builder.dataset(datasetId).build();
+			datastore = ClientFactory.get().createDatastore(options);
+
+		} catch (GeneralSecurityException exception) {
+			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		} catch (IOException exception) {
+			System.err.println("I/O error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		}
+
+		TimedDatastoreRpc rpc = new TimedDatastoreRpc(MetricsDatastoreRpc.fromProperties(new DirectDatastoreRpc(
+				datastore), "ClientTest12"));
+		DatastoreRpc client = rpc;
+		RetryingDatastoreRpc retrying = null;
+		if (Integer.getInteger("retries") != null) {
+			retrying = RetryingDatastoreRpc.fromProperties(rpc);
+			client = retrying;
+		}
+
+		WorkloadReplayer replayer = new WorkloadReplayer(client, Integer.getInteger("threads", 8),
+				WorkloadReplayer.speedFromProperty());
+		try {
+			replayer.replay(new File(args[1]));
+		} catch (IOException exception) {
+			logger.log(Level.SEVERE, "cannot read " + args[1], exception);
+			System.exit(1);
+		} catch (InterruptedException exception) {
+			logger.log(Level.SEVERE, "interrupted", exception);
+			System.exit(1);
+		}
+		replayer.logSummary();
+		rpc.logSummary();
+		// Stop the -DmetricsPort server, which would keep the JVM running.
+		MetricsHttpServer.stopAll();
+		if (retrying != null) {
+			retrying.logStats();
+		}
+	}
+}
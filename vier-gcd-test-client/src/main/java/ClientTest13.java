@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang3.time.StopWatch;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.Value;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.api.services.datastore.client.DatastoreOptions;
+
+/**
+ * Contention benchmark for {@link TransactionalBatchWriter}. Each round writes
+ * the same number of entities, spread over fewer and fewer entity groups, so
+ * that more transactions compete for each group, and logs the commit
+ * throughput and abort rate of every round with and without lock stripes.
+ *
+ * Options: -Dentities=N (1000), -DtxSize=N entities per transaction (10),
+ * -Dgroups=N,N,... (100,30,10,3,1), -Dthreads=N (16), -Dlocks=both|on|off
+ * (both), -DlockStripes=N (64), -DmaxAttempts=N (5), -DreadBeforeWrite=true
+ * looks up the keys in the transaction before committing.
+ */
+public class ClientTest13 {
+	private static final Logger logger = Logger.getLogger(ClientTest13.class.getName());
+
+	private static final String GROUP_KIND = "ClientTest13Group";
+	private static final String KIND = "ClientTest13";
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: ClientTest13 <DATASET_ID>");
+			System.exit(1);
+		}
+
+		String datasetId = args[0];
+		Datastore datastore = null;
+		try {
+			DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
+			DatastoreOptions options = builder.dataset(datasetId).build();
+			datastore = ClientFactory.get().createDatastore(options);
+
+		} catch (GeneralSecurityException exception) {
+			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		} catch (IOException exception) {
+			System.err.println("I/O error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		}
+
+		TimedDatastoreRpc rpc = new TimedDatastoreRpc(MetricsDatastoreRpc.fromProperties(new DirectDatastoreRpc(
+				datastore), "ClientTest13"));
+
+		int entities = Integer.getInteger("entities", 1000);
+		int txSize = Integer.getInteger("txSize", 10);
+		int threads = Integer.getInteger("threads", 16);
+		int lockStripes = Integer.getInteger("lockStripes", 64);
+		String locks = System.getProperty("locks", "both");
+		List<Boolean> lockModes = new ArrayList<Boolean>();
+		if (!"on".equalsIgnoreCase(locks)) {
+			lockModes.add(false);
+		}
+		if (!"off".equalsIgnoreCase(locks)) {
+			lockModes.add(true);
+		}
+
+		List<String> rows = new ArrayList<String>();
+		rows.add(String.format("%8s %6s %6s %8s %7s %7s %7s %10s %10s %10s", "groups", "locks", "txs", "commits",
+				"aborts", "abort%", "failed", "commits/s", "p50 ms", "p99 ms"));
+		for (String value : System.getProperty("groups", "100,30,10,3,1").split(",")) {
+			int groupCount = Integer.parseInt(value.trim());
+			for (boolean locked : lockModes) {
+				TransactionalBatchWriter writer = new TransactionalBatchWriter(rpc, threads, locked ? lockStripes
+						: 0);
+				writer.setMaxEntitiesPerTransaction(txSize);
+				writer.setMaxAttempts(Integer.getInteger("maxAttempts", 5));
+				writer.setReadBeforeWrite(Boolean.getBoolean("readBeforeWrite"));
+				for (int i = 1; i <= entities; i++) {
+					writer.upsert(entity(i, i % groupCount));
+				}
+
+				logger.info(String.format("round: %d groups, locks %s", groupCount, locked ? "on" : "off"));
+				StopWatch sw = new StopWatch();
+				sw.start();
+				try {
+					writer.flush();
+				} catch (DatastoreException exception) {
+					logger.log(Level.WARNING, "some transactions failed", exception);
+				} catch (InterruptedException exception) {
+					logger.log(Level.SEVERE, "interrupted", exception);
+					System.exit(1);
+				} finally {
+					writer.close();
+				}
+				sw.stop();
+				writer.logSummary(sw.getTime());
+
+				LatencyHistogram latency = writer.getCommitLatency();
+				rows.add(String.format("%8d %6s %6d %8d %7d %7.1f %7d %10.1f %10.3f %10.3f", groupCount,
+						locked ? "on" : "off", writer.getTransactionCount(), writer.getCommitCount(),
+						writer.getAbortCount(), writer.getAbortRate() * 100, writer.getFailureCount(),
+						sw.getTime() == 0 ? 0.0 : writer.getCommitCount() * 1000.0 / sw.getTime(),
+						latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(99) / 1e6));
+			}
+		}
+
+		for (String row : rows) {
+			logger.info(row);
+		}
+		rpc.logSummary();
+		// Stop the -DmetricsPort server, which would keep the JVM running.
+		MetricsHttpServer.stopAll();
+	}
+
+	/** Entity {@code i} as a child of group {@code group}. */
+	private static Entity entity(int i, int group) {
+		Key.Builder key = Key.newBuilder()
+				.addPathElement(Key.PathElement.newBuilder().setKind(GROUP_KIND).setName("g" + group))
+				.addPathElement(Key.PathElement.newBuilder().setKind(KIND).setName("e" + i));
+		return Entity.newBuilder().setKey(key)
+				.addProperty(Property.newBuilder().setName("number").addValue(Value.newBuilder().setIntegerValue(i)))
+				.build();
+	}
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.PropertyOrder;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.api.services.datastore.client.DatastoreHelper;
+import com.google.api.services.datastore.client.DatastoreOptions;
+
+/**
+ * Compares full-entity, keys-only and projection queries on the ClientTest5
+ * workload: {@code -Drounds} queries of the ClientTest3 kind, newest first,
+ * {@code -Dlimit} entities each. Every projection runs the workload after a
+ * warm-up round and logs the response bytes and query latency, relative to
+ * the first projection.
+ *
+ * Options: -Dprojections=spec;spec;... (full;keys;str,number,createDate),
+ * -Drounds=N (50), -Dlimit=N (500), -Dwarmup=N (5). Sizes are those of the
+ * protobuf responses, without HTTP overhead.
+ */
+public class ClientTest14 {
+	private static final Logger logger = Logger.getLogger(ClientTest14.class.getName());
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: ClientTest14 <DATASET_ID>");
+			System.exit(1);
+		}
+
+		String datasetId = args[0];
+		Datastore datastore = null;
+		try {
+			DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
+			DatastoreOptions options = builder.dataset(datasetId).build();
+			datastore = ClientFactory.get().createDatastore(options);
+
+		} catch (GeneralSecurityException exception) {
+			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		} catch (IOException exception) {
+			System.err.println("I/O error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		}
+
+		DatastoreRpc client = new DirectDatastoreRpc(datastore);
+		int rounds = Integer.getInteger("rounds", 50);
+		int limit = Integer.getInteger("limit", 500);
+		int warmup = Integer.getInteger("warmup", 5);
+
+		List<String> rows = new ArrayList<String>();
+		rows.add(String.format("%-24s %8s %12s %10s %9s %9s %9s %9s %8s", "projection", "results", "bytes",
+				"bytes/ent", "mean ms", "p50 ms", "p99 ms", "total ms", "bytes %"));
+		long baselineBytes = 0;
+		for (String spec : System.getProperty("projections", "full;keys;str,number,createDate").split(";")) {
+			QueryProjection projection = QueryProjection.parse(spec);
+			RunQueryRequest request = request(projection, limit);
+			LatencyHistogram latency = new LatencyHistogram();
+			long results = 0;
+			long bytes = 0;
+			SampleEntities.Reader reader = new SampleEntities.Reader();
+			try {
+				for (int i = 0; i < warmup; i++) {
+					client.runQuery(request);
+				}
+				for (int i = 0; i < rounds; i++) {
+					long start = System.nanoTime();
+					RunQueryResponse response = client.runQuery(request);
+					latency.recordSince(start);
+					bytes += response.getSerializedSize();
+					// Decode the results as the ClientTest5 loop does.
+					for (EntityResult result : response.getBatch().getEntityResultList()) {
+						reader.reset(result.getEntity());
+						results++;
+					}
+				}
+			} catch (DatastoreException exception) {
+				logger.log(Level.SEVERE, "query failed with projection " + projection, exception);
+				System.exit(1);
+			}
+			if (baselineBytes == 0) {
+				baselineBytes = bytes;
+			}
+			logger.info(latency.summary(projection.toString()));
+			rows.add(String.format("%-24s %8d %12d %10d %9.3f %9.3f %9.3f %9.1f %8.1f", projection, results, bytes,
+					results == 0 ? 0 : bytes / results, latency.getMeanNanos() / 1e6,
+					latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(99) / 1e6,
+					latency.getTotalNanos() / 1e6, baselineBytes == 0 ? 0.0 : 100.0 * bytes / baselineBytes));
+		}
+
+		for (String row : rows) {
+			logger.info(row);
+		}
+	}
+
+	/** The ClientTest5 query with the given projection. */
+	private static RunQueryRequest request(QueryProjection projection, int limit) {
+		RunQueryRequest.Builder req = RunQueryRequest.newBuilder();
+		Query.Builder queryBuilder = req.getQueryBuilder();
+		queryBuilder.addKindBuilder().setName(SampleEntities.KIND);
+		queryBuilder.addOrder(DatastoreHelper.makeOrder("createDate", PropertyOrder.Direction.DESCENDING));
+		queryBuilder.setLimit(limit);
+		projection.apply(queryBuilder);
+		return req.build();
+	}
+}
@@ -7,6 +7,7 @@ import java.io.InputStreamReader;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,8 +21,6 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeReque
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
 import com.google.api.services.datastore.DatastoreV1.Entity;
 import com.google.api.services.datastore.DatastoreV1.Key;
@@ -31,8 +30,6 @@ import com.google.api.services.datastore.DatastoreV1.Property;
 import com.google.api.services.datastore.DatastoreV1.Value;
 import com.google.api.services.datastore.client.Datastore;
 import com.google.api.services.datastore.client.DatastoreException;
-import com.google.api.services.datastore.client.DatastoreFactory;
-import com.google.api.services.datastore.client.DatastoreHelper;
 import com.google.api.services.datastore.client.DatastoreOptions;
 
 /**
@@ -81,7 +78,7 @@ public class ClientTest2 {
 			logger.info("options.getHost():" + options.getHost());
 			logger.info("options.getDataset():" + options.getDataset());
 
-			datastore = DatastoreFactory.get().create(options);
+			datastore = ClientFactory.get().createDatastore(options);
 
 		} catch (GeneralSecurityException exception) {
 			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
@@ -91,6 +88,13 @@ public class ClientTest2 {
 			System.exit(1);
 		}
 
+		// Serve repeated lookups of the same key from a cache. -DcacheSize=N
+		// and -DcacheTtl=seconds bound the cache, -DlookupCount=N repeats the
+		// lookup.
+		CachingDatastoreRpc rpc = new CachingDatastoreRpc(new DirectDatastoreRpc(datastore), Integer.getInteger(
+				"cacheSize", 1000), Integer.getInteger("cacheTtl", 60), TimeUnit.SECONDS);
+		int lookupCount = Integer.getInteger("lookupCount", 1);
+
 		try {
 			// Create an RPC request to write mutations outside of a
 			// transaction.
@@ -110,13 +114,18 @@ public class ClientTest2 {
 			// Add mutation to the request that update or insert this entity.
 			req.getMutationBuilder().addUpsert(entity);
 			// Execute the RPC synchronously and ignore the response.
-			datastore.blindWrite(req.build());
+			rpc.blindWrite(req.build());
 			// Create an RPC request to get entities by key.
 			LookupRequest.Builder lreq = LookupRequest.newBuilder();
 			// Add one key to lookup the same entity.
 			lreq.addKey(key);
-			// Execute the RPC and get the response.
-			LookupResponse lresp = datastore.lookup(lreq.build());
+			// Execute the RPC and get the response. Lookups after the first
+			// one are cache hits.
+			LookupResponse lresp = rpc.lookup(lreq.build());
+			for (int i = 1; i < lookupCount; i++) {
+				lresp = rpc.lookup(lreq.build());
+			}
+			rpc.logStats();
 			// Found one entity result.
 			Entity entityFound = lresp.getFound(0).getEntity();
 			// Get `question` property value.
@@ -150,33 +159,30 @@ public class ClientTest2 {
 		logger.info("DATASTORE_HOST:" + System.getenv("DATASTORE_HOST"));
 		logger.info("DATASTORE_SERVICE_ACCOUNT:" + System.getenv("DATASTORE_SERVICE_ACCOUNT"));
 		logger.info("DATASTORE_PRIVATE_KEY_FILE:" + System.getenv("DATASTORE_PRIVATE_KEY_FILE"));
-		DatastoreOptions.Builder options = new DatastoreOptions.Builder();
+		DatastoreOptions.Builder options = ClientFactory.get().newDatastoreOptions();
 		options.dataset(System.getenv("DATASTORE_DATASET"));
 		options.host(System.getenv("DATASTORE_HOST"));
-		Credential credential = DatastoreHelper.getComputeEngineCredential();
-		if (credential != null) {
-			logger.info("Using Compute Engine credential.");
-		} else if (System.getenv("DATASTORE_SERVICE_ACCOUNT") != null
-				&& System.getenv("DATASTORE_PRIVATE_KEY_FILE") != null) {
-			// credential =
-			// getServiceAccountCredential(System.getenv("DATASTORE_SERVICE_ACCOUNT"),
-			// System.getenv("DATASTORE_PRIVATE_KEY_FILE"));
-			// logger.info("Using JWT Service Account credential.");
-		}
-		if (credential == null) {
-			credential = getCredential();
-			logger.info("My credential.");
-		}
+		// Compute Engine, service account and the stored refresh token are
+		// probed in parallel; the browser flow is only used if none answers.
+		Credential credential = CredentialProvider.fromEnv(Arrays.asList(SCOPES), new CredentialProvider.Source() {
+			@Override
+			public String getName() {
+				return "Interactive";
+			}
+
+			@Override
+			public Credential probe() throws IOException {
+				return getCredential();
+			}
+		}).getCredential();
 		options.credential(credential);
 		return options;
 	}
 
 	public static Credential getServiceAccountCredential(String account, String privateKeyFile)
 			throws GeneralSecurityException, IOException {
-		NetHttpTransport transport = new NetHttpTransport();
-		JacksonFactory jsonFactory = new JacksonFactory();
-		return new GoogleCredential.Builder().setTransport(transport).setJsonFactory(jsonFactory)
-				.setServiceAccountId(account).setServiceAccountScopes(Arrays.asList(SCOPES))
+		return ClientFactory.get().newCredentialBuilder().setServiceAccountId(account)
+				.setServiceAccountScopes(Arrays.asList(SCOPES))
 				.setServiceAccountPrivateKeyFromP12File(new File(privateKeyFile)).build();
 	}
 
@@ -201,7 +207,7 @@ public class ClientTest2 {
 		InputStream stream = new ByteArrayInputStream(jsonString.getBytes("UTF-8"));
 
 		// ClientSecretを取得する
-		GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(new JacksonFactory(),
+		GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(ClientFactory.get().getJsonFactory(),
 				new InputStreamReader(stream));
 
 		// 既存のリフレッシュトークンの取得を試みる
@@ -223,8 +229,8 @@ public class ClientTest2 {
 			String authorizationCode = in.readLine();
 
 			// Create a Authorization flow object
-			GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(new NetHttpTransport(),
-					new JacksonFactory(), clientSecrets, Arrays.asList(DatastoreOptions.SCOPE))
+			GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(ClientFactory.get().getTransport(),
+					ClientFactory.get().getJsonFactory(), clientSecrets, Arrays.asList(DatastoreOptions.SCOPE))
 					.setAccessType("offline").setApprovalPrompt("force").build();
 			// Exchange the auth code for an access token and refesh token
 			GoogleTokenResponse response = flow.newTokenRequest(authorizationCode).setRedirectUri(REDIRECT_URI)
@@ -239,9 +245,8 @@ public class ClientTest2 {
 			// リフレッシュトークンを取得できた場合
 		} else {
 			// リフレッシュトークンを使って新しいアクセストークンを取得する
-			GoogleCredential credential = new GoogleCredential.Builder().setTransport(new NetHttpTransport())
-					.setJsonFactory(new JacksonFactory()).setClientSecrets(clientSecrets).build()
-					.setFromTokenResponse(new TokenResponse().setRefreshToken(storedRefreshToken));
+			GoogleCredential credential = ClientFactory.get().newCredentialBuilder().setClientSecrets(clientSecrets)
+					.build().setFromTokenResponse(new TokenResponse().setRefreshToken(storedRefreshToken));
 			credential.refreshToken();
 
 			return credential;
@@ -2,7 +2,6 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,7 +19,6 @@ import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
 import com.google.api.services.datastore.DatastoreV1.Value;
 import com.google.api.services.datastore.client.Datastore;
 import com.google.api.services.datastore.client.DatastoreException;
-import com.google.api.services.datastore.client.DatastoreFactory;
 import com.google.api.services.datastore.client.DatastoreHelper;
 import com.google.api.services.datastore.client.DatastoreOptions;
 
@@ -44,15 +42,16 @@ public class ClientTest3 {
 
 		String datasetId = args[0];
 		Datastore datastore = null;
+		DatastoreOptions options = null;
 		try {
-			DatastoreOptions.Builder builder = DatastoreHelper.getOptionsfromEnv();
+			DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
 			// DatastoreOptions.Builder builder = getOptionsfromEnv();
 			//
-			DatastoreOptions options = builder.dataset(datasetId).build();
+			options = builder.dataset(datasetId).build();
 			logger.info("options.getHost():" + options.getHost());
 			logger.info("options.getDataset():" + options.getDataset());
 
-			datastore = DatastoreFactory.get().create(options);
+			datastore = ClientFactory.get().createDatastore(options);
 
 		} catch (GeneralSecurityException exception) {
 			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
@@ -62,17 +61,78 @@ public class ClientTest3 {
 			System.exit(1);
 		}
 
+		// 「-DwireProfile=true」を指定した場合はRPCを自前のHTTPで送り、
+		// Entityの組み立て・シリアライズ・認証ヘッダ・通信・パースの時間とバイト数を別々に記録する
+		WireProfile profile = null;
+		DatastoreRpc direct = new DirectDatastoreRpc(datastore);
+		if (Boolean.getBoolean("wireProfile")) {
+			profile = new WireProfile();
+			direct = new WireProfilingDatastoreRpc(options, ClientFactory.get().getTransport(), profile);
+		}
+		// RPCごとのレイテンシを記録する
+		// (「-DreportInterval=秒」を指定した場合は実行中も定期的に出力する)
+		// 「-Dmetrics=true」でJMXに、「-DmetricsPort=N」ではさらにPrometheus形式の/metricsにRPCのメトリクスを公開する
+		TimedDatastoreRpc rpc = new TimedDatastoreRpc(MetricsDatastoreRpc.fromProperties(direct, "ClientTest3"));
+		int reportInterval = Integer.getInteger("reportInterval", 0);
+		if (reportInterval > 0) {
+			rpc.startIntervalReport(reportInterval);
+		}
+
+		// 「-DrateLimit=N」を指定した場合は毎秒N件から始めて、成功するごとに上げ、
+		// 混雑やクォータのエラー(409/429/503)で半分に下げる
+		DatastoreRpc client = rpc;
+		RateLimitedDatastoreRpc limited = null;
+		if (Integer.getInteger("rateLimit") != null) {
+			limited = RateLimitedDatastoreRpc.fromProperties(rpc);
+			client = limited;
+		}
+
+		// 「-Dretries=N」を指定した場合は一時的なエラーを最大N回まで指数バックオフでリトライする
+		RetryingDatastoreRpc retrying = null;
+		if (Integer.getInteger("retries") != null) {
+			retrying = RetryingDatastoreRpc.fromProperties(client);
+			client = retrying;
+		}
+
+		// 「-Drecord=ファイル」を指定した場合はblindWrite・lookup・runQueryのリクエストを記録する
+		// (ClientTest12で再生できる)
+		WorkloadRecorder recorder = null;
+		try {
+			recorder = WorkloadRecorder.fromProperties(client);
+		} catch (IOException exception) {
+			System.err.println("I/O error opening the record file: " + exception.getMessage());
+			System.exit(1);
+		}
+		if (recorder != null) {
+			client = recorder;
+		}
+
+		// 「-DbatchSize=N」を指定した場合はN件ずつまとめて1回のblindWriteでputする
+		// (「-DbatchBytes=N」で1回のリクエストサイズの上限も指定できる)
+		int batchSize = Integer.getInteger("batchSize", 0);
+		BatchWriter writer = null;
+		if (batchSize > 0) {
+			writer = new BatchWriter(client, batchSize, Integer.getInteger("batchBytes",
+					BatchWriter.DEFAULT_MAX_BYTES));
+		}
+
+		// 1件ごとにログを出さず、件数とスループットを裏のスレッドから定期的に出力する
+		// (「-DprogressInterval=秒」で間隔、「-DprogressSample=N」で約N件に1件の詳細ログ)
+		ProgressReporter progress = ProgressReporter.fromProperties("put");
+		// バッチの場合はputされた時点で数え、失敗したバッチの件数はエラーとして数える
+		BatchProgress batchProgress = writer != null ? new BatchProgress(writer, progress) : null;
+		// Keyの名前の付け方 (「-DkeyStrategy=sequential|hashed|reversed|uuid」)
+		KeyStrategy keyStrategy = KeyStrategy.fromProperty();
 		StopWatch sw = new StopWatch();
 		sw.start();
 		for (int i = 1; i <= 1000; i++) {
 			try {
-				// トランザクション外で更新するためのRPC requestを作成する
-				BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
+				long buildStart = System.nanoTime();
 				// 新規Entityを作成する
 				Entity.Builder entity = Entity.newBuilder();
 				// 一つのPathElementでKeyを生成する (親Keyなし)
 				Key.Builder key = Key.newBuilder().addPathElement(
-						Key.PathElement.newBuilder().setKind("ClientTest3").setName("keyName" + i));
+						Key.PathElement.newBuilder().setKind("ClientTest3").setName(keyStrategy.keyName(i)));
 				entity.setKey(key);
 				// 文字列
 				entity.addProperty(Property.newBuilder().setName("str")
@@ -83,18 +143,54 @@ public class ClientTest3 {
 				// 作成時刻
 				entity.addProperty(Property.newBuilder().setName("createDate")
 						.addValue(Value.newBuilder().setTimestampMicrosecondsValue(new Date().getTime() * 1000)));
+				if (writer != null) {
+					if (profile != null) {
+						profile.recordSince(WireProfile.Phase.BUILD, buildStart);
+					}
+					// バッチに追加する (上限に達したらまとめてputされる)
+					try {
+						writer.upsert(entity);
+					} catch (DatastoreException exception) {
+						logger.log(Level.SEVERE, "error", exception);
+					}
+					batchProgress.queued(key);
+					continue;
+				}
+				// トランザクション外で更新するためのRPC requestを作成する
+				BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
 				req.getMutationBuilder().addUpsert(entity);
+				BlindWriteRequest request = req.build();
+				if (profile != null) {
+					profile.recordSince(WireProfile.Phase.BUILD, buildStart);
+				}
 				// putする
-				datastore.blindWrite(req.build());
+				client.blindWrite(request);
 
-				logger.info("put done count:" + i);
+				progress.success(key);
+				if (progress.sample()) {
+					logger.info("put done count:" + i);
+				}
 
+			} catch (DatastoreException exception) {
+				progress.error();
+				logger.log(Level.SEVERE, "error", exception);
+			}
+		}
+		if (writer != null) {
+			// 残りをputする
+			try {
+				writer.flush();
 			} catch (DatastoreException exception) {
 				logger.log(Level.SEVERE, "error", exception);
 			}
+			batchProgress.update();
 		}
+		progress.close();
 		sw.stop();
 		logger.info("put entities " + sw.getTime() + " milliseconds.");
+		if (writer != null) {
+			writer.logSummary(sw.getTime());
+		}
 
 		sw.reset();
 		sw.start();
@@ -108,18 +204,25 @@ public class ClientTest3 {
 			queryBuilder.addOrder(DatastoreHelper.makeOrder("createDate", PropertyOrder.Direction.DESCENDING));
 			// limit 5件
 			queryBuilder.setLimit(5);
+			// 「-Dprojection=keys」でKeyだけ、「-Dprojection=str,number」で指定したプロパティだけを取得する
+			QueryProjection.fromProperty().apply(queryBuilder);
 			// クエリ実行
-			RunQueryResponse res = datastore.runQuery(req.build());
+			RunQueryResponse res = client.runQuery(req.build());
 
 			List<EntityResult> results = res.getBatch().getEntityResultList();
+			// プロパティのMapを作らずに型付きで読む
+			SampleEntities.Reader reader = new SampleEntities.Reader();
+			ProgressReporter queryProgress = ProgressReporter.fromProperties("query");
 			for (EntityResult result : results) {
 				Entity entity = result.getEntity();
 
-				Map<String, Object> propertyMap = DatastoreHelper.getPropertyMap(entity);
-				logger.info("Entity: keyName:" + entity.getKey().getPathElement(0).getName() + " str:"
-						+ propertyMap.get("str") + " number:" + propertyMap.get("number") + " createDate:"
-						+ propertyMap.get("createDate"));
+				reader.reset(entity);
+				queryProgress.success(entity.getKey());
+				if (queryProgress.sample()) {
+					logger.info(reader.toString());
+				}
 			}
+			queryProgress.close();
 
 		} catch (DatastoreException exception) {
 			logger.log(Level.SEVERE, "error", exception);
@@ -128,5 +231,28 @@ public class ClientTest3 {
 		sw.stop();
 		logger.info("query entities " + sw.getTime() + " milliseconds.");
 
+		rpc.stopIntervalReport();
+		// RPCごとのレイテンシのパーセンタイルを出力する
+		rpc.logSummary();
+		// 「-DmetricsPort」のHTTPサーバを止める (動いたままだとJVMが終了しない)
+		MetricsHttpServer.stopAll();
+		if (limited != null) {
+			limited.logStats();
+		}
+		if (retrying != null) {
+			retrying.logStats();
+		}
+		if (profile != null) {
+			// フェーズごとの時間の内訳とリクエスト・レスポンスのバイト数を出力する
+			profile.logSummary();
+		}
+		if (recorder != null) {
+			try {
+				recorder.close();
+			} catch (IOException exception) {
+				logger.log(Level.SEVERE, "error", exception);
+			}
+		}
+
 	}
 }
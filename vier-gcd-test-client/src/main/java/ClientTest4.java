@@ -1,13 +1,11 @@
 import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.Bigquery.Datasets;
 import com.google.api.services.bigquery.model.DatasetList;
@@ -20,7 +18,6 @@ import com.google.api.services.datastore.DatastoreV1.Property;
 import com.google.api.services.datastore.DatastoreV1.Value;
 import com.google.api.services.datastore.client.Datastore;
 import com.google.api.services.datastore.client.DatastoreException;
-import com.google.api.services.datastore.client.DatastoreFactory;
 import com.google.api.services.datastore.client.DatastoreOptions;
 
 /**
@@ -58,11 +55,9 @@ public class ClientTest4 {
 			logger.info("options.getHost():" + options.getHost());
 			logger.info("options.getDataset():" + options.getDataset());
 
-			datastore = DatastoreFactory.get().create(options);
+			datastore = ClientFactory.get().createDatastore(options);
 
-			Bigquery bigquery = new Bigquery.Builder(new NetHttpTransport(), new JacksonFactory(),
-					options.getCredential()).setApplicationName("BigQuery-Service-Accounts/0.1")
-					.setHttpRequestInitializer(options.getCredential()).build();
+			Bigquery bigquery = ClientFactory.get().createBigquery(options.getCredential());
 			Datasets.List datasetRequest = bigquery.datasets().list("publicdata");
 			DatasetList datasetList = datasetRequest.execute();
 			System.out.format("%s\n", datasetList.toPrettyString());
@@ -75,6 +70,13 @@ public class ClientTest4 {
 			System.exit(1);
 		}
 
+		// Serve repeated lookups of the same key from a cache. -DcacheSize=N
+		// and -DcacheTtl=seconds bound the cache, -DlookupCount=N repeats the
+		// lookup.
+		CachingDatastoreRpc rpc = new CachingDatastoreRpc(new DirectDatastoreRpc(datastore), Integer.getInteger(
+				"cacheSize", 1000), Integer.getInteger("cacheTtl", 60), TimeUnit.SECONDS);
+		int lookupCount = Integer.getInteger("lookupCount", 1);
+
 		try {
 			// Create an RPC request to write mutations outside of a
 			// transaction.
@@ -94,13 +96,18 @@ public class ClientTest4 {
 			// Add mutation to the request that update or insert this entity.
 			req.getMutationBuilder().addUpsert(entity);
 			// Execute the RPC synchronously and ignore the response.
-			datastore.blindWrite(req.build());
+			rpc.blindWrite(req.build());
 			// Create an RPC request to get entities by key.
 			LookupRequest.Builder lreq = LookupRequest.newBuilder();
 			// Add one key to lookup the same entity.
 			lreq.addKey(key);
-			// Execute the RPC and get the response.
-			LookupResponse lresp = datastore.lookup(lreq.build());
+			// Execute the RPC and get the response. Lookups after the first
+			// one are cache hits.
+			LookupResponse lresp = rpc.lookup(lreq.build());
+			for (int i = 1; i < lookupCount; i++) {
+				lresp = rpc.lookup(lreq.build());
+			}
+			rpc.logStats();
 			// Found one entity result.
 			Entity entityFound = lresp.getFound(0).getEntity();
 			// Get `question` property value.
@@ -134,7 +141,7 @@ public class ClientTest4 {
 		logger.info("DATASTORE_HOST:" + System.getenv("DATASTORE_HOST"));
 		logger.info("DATASTORE_SERVICE_ACCOUNT:" + System.getenv("DATASTORE_SERVICE_ACCOUNT"));
 		logger.info("DATASTORE_PRIVATE_KEY_FILE:" + System.getenv("DATASTORE_PRIVATE_KEY_FILE"));
-		DatastoreOptions.Builder options = new DatastoreOptions.Builder();
+		DatastoreOptions.Builder options = ClientFactory.get().newDatastoreOptions();
 		options.dataset(System.getenv("DATASTORE_DATASET"));
 		options.host(System.getenv("DATASTORE_HOST"));
 
@@ -150,10 +157,7 @@ public class ClientTest4 {
 
 	public static Credential getServiceAccountCredential(String account, String privateKeyFile)
 			throws GeneralSecurityException, IOException {
-		NetHttpTransport transport = new NetHttpTransport();
-		JacksonFactory jsonFactory = new JacksonFactory();
-		return new GoogleCredential.Builder().setTransport(transport).setJsonFactory(jsonFactory)
-				.setServiceAccountId(account).setServiceAccountScopes(SCOPES)
+		return ClientFactory.get().newCredentialBuilder().setServiceAccountId(account).setServiceAccountScopes(SCOPES)
 				.setServiceAccountPrivateKeyFromP12File(new File(privateKeyFile)).build();
 	}
 }
@@ -8,7 +8,6 @@ import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,8 +22,6 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeReque
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.datastore.DatastoreV1.Entity;
 import com.google.api.services.datastore.DatastoreV1.EntityResult;
 import com.google.api.services.datastore.DatastoreV1.PropertyOrder;
@@ -33,7 +30,6 @@ import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
 import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
 import com.google.api.services.datastore.client.Datastore;
 import com.google.api.services.datastore.client.DatastoreException;
-import com.google.api.services.datastore.client.DatastoreFactory;
 import com.google.api.services.datastore.client.DatastoreHelper;
 import com.google.api.services.datastore.client.DatastoreOptions;
 
@@ -66,14 +62,14 @@ public class ClientTest5 {
 		String datasetId = args[0];
 		Datastore datastore = null;
 		try {
-			DatastoreOptions.Builder builder = DatastoreHelper.getOptionsfromEnv();
-			// DatastoreOptions.Builder builder = getOptionsfromEnv();
+			// DatastoreOptions.Builder builder = DatastoreHelper.getOptionsfromEnv();
+			DatastoreOptions.Builder builder = getOptionsfromEnv();
 
 			DatastoreOptions options = builder.dataset(datasetId).build();
 			logger.info("options.getHost():" + options.getHost());
 			logger.info("options.getDataset():" + options.getDataset());
 
-			datastore = DatastoreFactory.get().create(options);
+			datastore = ClientFactory.get().createDatastore(options);
 
 		} catch (GeneralSecurityException exception) {
 			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
@@ -83,9 +79,59 @@ public class ClientTest5 {
 			System.exit(1);
 		}
 
+		// RPCごとのレイテンシを記録する
+		// (「-DreportInterval=秒」を指定した場合は実行中も定期的に出力する)
+		// 「-Dmetrics=true」でJMXに、「-DmetricsPort=N」ではさらにPrometheus形式の/metricsにRPCのメトリクスを公開する
+		TimedDatastoreRpc rpc = new TimedDatastoreRpc(MetricsDatastoreRpc.fromProperties(new DirectDatastoreRpc(
+				datastore), "ClientTest5"));
+		int reportInterval = Integer.getInteger("reportInterval", 0);
+		if (reportInterval > 0) {
+			rpc.startIntervalReport(reportInterval);
+		}
+
+		// 「-Dretries=N」を指定した場合は一時的なエラーを最大N回まで指数バックオフでリトライする
+		DatastoreRpc client = rpc;
+		RetryingDatastoreRpc retrying = null;
+		if (Integer.getInteger("retries") != null) {
+			retrying = RetryingDatastoreRpc.fromProperties(rpc);
+			client = retrying;
+		}
+
 		StopWatch sw = new StopWatch();
 
+		// 「-Dscan=true」を指定した場合は「ClientTest3」kindの全件をカーソルで読み進める
+		// (「-DpageSize=N」件ずつ取得し、次のバッチは処理中に裏で先読みする)
+		// 「-DscanShards=N」を指定した場合はN個の範囲に分割して並列に読み、作成時刻順にマージする
+		// (「-DscanThreads=N」で並列数、省略時はscanShardsと同じ)
+		if (Boolean.getBoolean("scan")) {
+			sw.start();
+			int scanShards = Integer.getInteger("scanShards", 1);
+			if (scanShards > 1) {
+				parallelScan(client, scanShards, Integer.getInteger("scanThreads", scanShards),
+						Integer.getInteger("pageSize", 500));
+			} else {
+				scan(client, Integer.getInteger("pageSize", 500));
+			}
+			sw.stop();
+			logger.info("scan entities " + sw.getTime() + " milliseconds.");
+
+			rpc.stopIntervalReport();
+			rpc.logSummary();
+			// 「-DmetricsPort」のHTTPサーバを止める (動いたままだとJVMが終了しない)
+			MetricsHttpServer.stopAll();
+			if (retrying != null) {
+				retrying.logStats();
+			}
+			return;
+		}
+
 		sw.start();
+		QueryProjection projection = QueryProjection.fromProperty();
+		// プロパティのMapを作らずに型付きで読む
+		SampleEntities.Reader reader = new SampleEntities.Reader();
+		// 1件ごとにログを出さず、件数とスループットを裏のスレッドから定期的に出力する
+		// (「-DprogressInterval=秒」で間隔、「-DprogressSample=N」で約N件に1件の詳細ログ)
+		ProgressReporter progress = ProgressReporter.fromProperties("query");
 		for (int i = 1; i <= 50; i++) {
 			try {
 				// クエリする
@@ -96,17 +142,21 @@ public class ClientTest5 {
 				queryBuilder.addOrder(DatastoreHelper.makeOrder("createDate", PropertyOrder.Direction.DESCENDING));
 				// limit 500件
 				queryBuilder.setLimit(500);
+				// 「-Dprojection=keys」でKeyだけ、「-Dprojection=str,number」で指定したプロパティだけを取得する
+				// (ClientTest14で全プロパティとのバイト数とレイテンシを比較できる)
+				projection.apply(queryBuilder);
 				// クエリ実行
-				RunQueryResponse res = datastore.runQuery(req.build());
+				RunQueryResponse res = client.runQuery(req.build());
 
 				List<EntityResult> results = res.getBatch().getEntityResultList();
 				for (EntityResult result : results) {
 					Entity entity = result.getEntity();
 
-					Map<String, Object> propertyMap = DatastoreHelper.getPropertyMap(entity);
-					logger.info("Entity: keyName:" + entity.getKey().getPathElement(0).getName() + " str:"
-							+ propertyMap.get("str") + " number:" + propertyMap.get("number") + " createDate:"
-							+ propertyMap.get("createDate"));
+					reader.reset(entity);
+					progress.success(entity.getKey());
+					if (progress.sample()) {
+						logger.info(reader.toString());
+					}
 				}
 
 			} catch (DatastoreException exception) {
@@ -114,9 +164,100 @@ public class ClientTest5 {
 				System.exit(1);
 			}
 		}
+		progress.close();
 		sw.stop();
 		logger.info("query entities " + sw.getTime() + " milliseconds.");
 
+		rpc.stopIntervalReport();
+		// RPCごとのレイテンシのパーセンタイルを出力する
+		rpc.logSummary();
+		// 「-DmetricsPort」のHTTPサーバを止める (動いたままだとJVMが終了しない)
+		MetricsHttpServer.stopAll();
+		if (retrying != null) {
+			retrying.logStats();
+		}
+
+	}
+
+	/**
+	 * 「ClientTest3」kindの全件を作成時刻の新しい順に読む
+	 * 
+	 * @param rpc
+	 * @param pageSize
+	 */
+	private static void scan(DatastoreRpc rpc, int pageSize) {
+		RunQueryRequest.Builder req = RunQueryRequest.newBuilder();
+		Query.Builder queryBuilder = req.getQueryBuilder();
+		queryBuilder.addKindBuilder().setName("ClientTest3");
+		// 作成時刻の新しい順 (limitなし)
+		queryBuilder.addOrder(DatastoreHelper.makeOrder("createDate", PropertyOrder.Direction.DESCENDING));
+		// 「-Dprojection」でKeyだけ、または指定したプロパティだけを取得する
+		QueryProjection.fromProperty().apply(queryBuilder);
+
+		QueryIterator it = new QueryIterator(rpc, req.build(), pageSize);
+		SampleEntities.Reader reader = new SampleEntities.Reader();
+		ProgressReporter progress = ProgressReporter.fromProperties("scan");
+		long count = 0;
+		try {
+			while (it.hasNext()) {
+				Entity entity = it.next().getEntity();
+
+				reader.reset(entity);
+				progress.success(entity.getKey());
+				if (progress.sample()) {
+					logger.info(reader.toString());
+				}
+				count++;
+			}
+		} catch (QueryIterator.QueryException exception) {
+			logger.log(Level.SEVERE, "error", exception.getCause());
+			System.exit(1);
+		} finally {
+			it.close();
+			progress.close();
+		}
+		logger.info("scanned " + count + " entities in " + it.getBatchCount() + " batches.");
+	}
+
+	/**
+	 * 「ClientTest3」kindの全件を範囲ごとに並列に読み、作成時刻の新しい順にマージする
+	 * 
+	 * @param rpc
+	 * @param shards
+	 * @param threads
+	 * @param pageSize
+	 */
+	private static void parallelScan(DatastoreRpc rpc, int shards, int threads, int pageSize) {
+		Query.Builder queryBuilder = Query.newBuilder();
+		queryBuilder.addKindBuilder().setName("ClientTest3");
+		// 作成時刻の新しい順 (limitなし)
+		queryBuilder.addOrder(DatastoreHelper.makeOrder("createDate", PropertyOrder.Direction.DESCENDING));
+
+		ParallelScanner scanner = new ParallelScanner(rpc, threads, pageSize);
+		ParallelScanner.Scan it = scanner.scan(queryBuilder.build(), shards);
+		SampleEntities.Reader reader = new SampleEntities.Reader();
+		ProgressReporter progress = ProgressReporter.fromProperties("scan");
+		long count = 0;
+		try {
+			while (it.hasNext()) {
+				Entity entity = it.next().getEntity();
+
+				reader.reset(entity);
+				progress.success(entity.getKey());
+				if (progress.sample()) {
+					logger.info(reader.toString());
+				}
+				count++;
+			}
+		} catch (QueryIterator.QueryException exception) {
+			logger.log(Level.SEVERE, "error", exception.getCause());
+			System.exit(1);
+		} finally {
+			it.close();
+			scanner.close();
+			progress.close();
+		}
+		logger.info("scanned " + count + " entities in " + shards + " ranges.");
 	}
 
 	public static DatastoreOptions.Builder getOptionsfromEnv() throws GeneralSecurityException, IOException {
@@ -124,15 +265,30 @@ public class ClientTest5 {
 		logger.info("DATASTORE_HOST:" + System.getenv("DATASTORE_HOST"));
 		logger.info("DATASTORE_SERVICE_ACCOUNT:" + System.getenv("DATASTORE_SERVICE_ACCOUNT"));
 		logger.info("DATASTORE_PRIVATE_KEY_FILE:" + System.getenv("DATASTORE_PRIVATE_KEY_FILE"));
-		DatastoreOptions.Builder options = new DatastoreOptions.Builder();
+		DatastoreOptions.Builder options = ClientFactory.get().newDatastoreOptions();
 		options.dataset(System.getenv("DATASTORE_DATASET"));
 		options.host(System.getenv("DATASTORE_HOST"));
-		Credential credential = DatastoreHelper.getComputeEngineCredential();
-		if (credential != null) {
-			logger.info("Using Compute Engine credential.");
-		} else {
-			credential = getAuthorizationCodeCredential();
-			logger.info("Using AuthorizationCode Credential");
+		// 各認証情報の取得元を並列に試す
+		// 「-Dcredential.interactive=true」を指定した場合のみ、どれも使えないときにブラウザでの認可フローを行う
+		// (指定しない場合は認証情報なしで、DATASTORE_HOSTのLocalDatastoreServerなどに接続する)
+		CredentialProvider.Source interactive = null;
+		if (Boolean.getBoolean("credential.interactive")) {
+			interactive = new CredentialProvider.Source() {
+				@Override
+				public String getName() {
+					return "Interactive";
+				}
+
+				@Override
+				public Credential probe() throws IOException {
+					return getAuthorizationCodeCredential();
+				}
+			};
+		}
+		Credential credential = CredentialProvider.fromEnv(Collections.singleton(DatastoreOptions.SCOPE), interactive)
+				.getCredential();
+		if (credential == null) {
+			logger.info("No credential found; connecting without one.");
 		}
 		options.credential(credential);
 		return options;
@@ -149,7 +305,7 @@ public class ClientTest5 {
 		InputStream stream = new ByteArrayInputStream(jsonString.getBytes("UTF-8"));
 
 		// ClientSecretを取得する
-		GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(new JacksonFactory(),
+		GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(ClientFactory.get().getJsonFactory(),
 				new InputStreamReader(stream));
 
 		// 既存のリフレッシュトークンの取得を試みる
@@ -171,8 +327,8 @@ public class ClientTest5 {
 			String authorizationCode = in.readLine();
 
 			// Create a Authorization flow object
-			GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(new NetHttpTransport(),
-					new JacksonFactory(), clientSecrets, Arrays.asList(DatastoreOptions.SCOPE))
+			GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(ClientFactory.get().getTransport(),
+					ClientFactory.get().getJsonFactory(), clientSecrets, Arrays.asList(DatastoreOptions.SCOPE))
 					.setAccessType("offline").setApprovalPrompt("force").build();
 			// Exchange the auth code for an access token and refesh token
 			GoogleTokenResponse response = flow.newTokenRequest(authorizationCode).setRedirectUri(REDIRECT_URI)
@@ -187,9 +343,8 @@ public class ClientTest5 {
 			// リフレッシュトークンを取得できた場合
 		} else {
 			// リフレッシュトークンを使って新しいアクセストークンを取得する
-			GoogleCredential credential = new GoogleCredential.Builder().setTransport(new NetHttpTransport())
-					.setJsonFactory(new JacksonFactory()).setClientSecrets(clientSecrets).build()
-					.setFromTokenResponse(new TokenResponse().setRefreshToken(storedRefreshToken));
+			GoogleCredential credential = ClientFactory.get().newCredentialBuilder().setClientSecrets(clientSecrets)
+					.build().setFromTokenResponse(new TokenResponse().setRefreshToken(storedRefreshToken));
 			credential.refreshToken();
 
 			return credential;
@@ -2,13 +2,14 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang3.time.StopWatch;
 
 import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
 import com.google.api.services.datastore.DatastoreV1.Entity;
 import com.google.api.services.datastore.DatastoreV1.EntityResult;
 import com.google.api.services.datastore.DatastoreV1.Key;
@@ -20,7 +21,6 @@ import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
 import com.google.api.services.datastore.DatastoreV1.Value;
 import com.google.api.services.datastore.client.Datastore;
 import com.google.api.services.datastore.client.DatastoreException;
-import com.google.api.services.datastore.client.DatastoreFactory;
 import com.google.api.services.datastore.client.DatastoreHelper;
 import com.google.api.services.datastore.client.DatastoreOptions;
 
@@ -39,10 +39,11 @@ public class ClientTest6 {
 
         String datasetId = args[0];
         Datastore datastore = null;
+        DatastoreOptions options = null;
         try {
-            DatastoreOptions.Builder builder = DatastoreHelper.getOptionsfromEnv();
-            DatastoreOptions options = builder.dataset(datasetId).build();
-            datastore = DatastoreFactory.get().create(options);
+            DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
+            options = builder.dataset(datasetId).build();
+            datastore = ClientFactory.get().createDatastore(options);
 
         } catch (GeneralSecurityException exception) {
             System.err.println("Security error connecting to the datastore: " + exception.getMessage());
@@ -52,41 +53,202 @@ public class ClientTest6 {
             System.exit(1);
         }
 
+        // With -DwireProfile=true the RPCs are sent over our own HTTP requests
+        // and split into build, serialize, auth, network and parse time, with
+        // the request and response sizes.
+        WireProfile profile = null;
+        DatastoreRpc direct = new DirectDatastoreRpc(datastore);
+        if (Boolean.getBoolean("wireProfile")) {
+            profile = new WireProfile();
+            direct = new WireProfilingDatastoreRpc(options, ClientFactory.get().getTransport(), profile);
+        }
+        // Record the latency of every RPC. With -DreportInterval=seconds the
+        // percentiles are also logged periodically while running.
+        // With -Dmetrics=true the RPC metrics are published as MBeans, and with
+        // -DmetricsPort=N also at http://localhost:N/metrics for Prometheus.
+        TimedDatastoreRpc rpc = new TimedDatastoreRpc(MetricsDatastoreRpc.fromProperties(direct, "ClientTest6"));
+        int reportInterval = Integer.getInteger("reportInterval", 0);
+        if (reportInterval > 0) {
+            rpc.startIntervalReport(reportInterval);
+        }
+
+        // With -DrateLimit=N, requests are paced starting at N per second.
+        // The rate grows on success and halves on contention or quota errors
+        // (409/429/503).
+        DatastoreRpc client = rpc;
+        RateLimitedDatastoreRpc limited = null;
+        if (Integer.getInteger("rateLimit") != null) {
+            limited = RateLimitedDatastoreRpc.fromProperties(rpc);
+            client = limited;
+        }
+
+        // With -Dretries=N, transient errors of idempotent calls are retried
+        // up to N attempts with exponential backoff and jitter.
+        RetryingDatastoreRpc retrying = null;
+        if (Integer.getInteger("retries") != null) {
+            retrying = RetryingDatastoreRpc.fromProperties(client);
+            client = retrying;
+        }
+
+        // With -Drecord=file, the blindWrite, lookup and runQuery requests are
+        // written to a log that ClientTest12 can replay.
+        WorkloadRecorder recorder = null;
+        try {
+            recorder = WorkloadRecorder.fromProperties(client);
+        } catch (IOException exception) {
+            System.err.println("I/O error opening the record file: " + exception.getMessage());
+            System.exit(1);
+        }
+        if (recorder != null) {
+            client = recorder;
+        }
+
+        // With -Dworkers=N, the entities are written by N concurrent workers
+        // sharing this client. -Dthreads=virtual runs them on virtual threads.
+        int workers = Integer.getInteger("workers", 0);
+
+        // With -DbatchSize=N, upserts are sent N entities per blindWrite
+        // (-DbatchBytes=N caps the request size as well).
+        int batchSize = Integer.getInteger("batchSize", 0);
+        BatchWriter writer = null;
+        if (batchSize > 0 && workers == 0) {
+            writer = new BatchWriter(client, batchSize, Integer.getInteger("batchBytes",
+                    BatchWriter.DEFAULT_MAX_BYTES));
+        }
+
+        // With -DmaxInFlight=N, the single-entity writes are sent
+        // asynchronously with up to N requests outstanding.
+        int maxInFlight = Integer.getInteger("maxInFlight", 0);
+        AsyncDatastoreRpc async = null;
+        if (maxInFlight > 0 && writer == null && workers == 0) {
+            async = new AsyncDatastoreRpc(client, maxInFlight);
+        }
+
+        // Count the writes instead of logging each one; a summary is logged
+        // every -DprogressInterval seconds, and with -DprogressSample=N about
+        // one write in N is logged as well.
+        final ProgressReporter progress = ProgressReporter.fromProperties("put");
+        // Batched entities count once sent, and those of a failed batch as
+        // errors.
+        BatchProgress batchProgress = writer != null ? new BatchProgress(writer, progress) : null;
+        // How the keys are named: -DkeyStrategy=sequential|hashed|reversed|uuid.
+        KeyStrategy keyStrategy = KeyStrategy.fromProperty();
         StopWatch sw = new StopWatch();
         sw.start();
-        for (int i = 1; i <= 1000; i++) {
+        if (workers > 0) {
+            // Write entities 1..1000 concurrently.
+            WriteLoadGenerator generator = new WriteLoadGenerator(client, 1000, workers,
+                    WriteLoadGenerator.ThreadMode.valueOf(System.getProperty("threads", "platform").toUpperCase()));
+            generator.setBatchSize(batchSize);
+            generator.setKeyStrategy(keyStrategy);
+            generator.setWireProfile(profile);
             try {
-                // Create an RPC request to write mutations outside of a
-                // transaction.
-                BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
-                // Create a new entity.
-                Entity.Builder entity = Entity.newBuilder();
-                // Set the entity key with only one `path_element`: no parent.
-                Key.Builder key = Key.newBuilder().addPathElement(
-                        Key.PathElement.newBuilder().setKind("ClientTest3").setName("keyName" + i));
-                entity.setKey(key);
-                // Add three entity properties:
-                // - a utf-8 string: `str`
-                entity.addProperty(Property.newBuilder().setName("str")
-                        .addValue(Value.newBuilder().setStringValue("string" + i)));
-                // - a 64bit integer: `number`
-                entity.addProperty(Property.newBuilder().setName("number")
-                        .addValue(Value.newBuilder().setIntegerValue(i)));
-                // - a date: `createDate`
-                entity.addProperty(Property.newBuilder().setName("createDate")
-                        .addValue(Value.newBuilder().setTimestampMicrosecondsValue(new Date().getTime() * 1000)));
-                req.getMutationBuilder().addUpsert(entity);
-                // Execute the RPC synchronously and ignore the response.
-                datastore.blindWrite(req.build());
-
-                logger.info("put done count:" + i);
-
-            } catch (DatastoreException exception) {
-                logger.log(Level.SEVERE, "error", exception);
+                generator.run();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                logger.log(Level.SEVERE, "interrupted", exception);
+            }
+        } else {
+            for (int i = 1; i <= 1000; i++) {
+                try {
+                    long buildStart = System.nanoTime();
+                    // Create a new entity.
+                    Entity.Builder entity = Entity.newBuilder();
+                    // Set the entity key with only one `path_element`: no parent.
+                    Key.Builder key = Key.newBuilder().addPathElement(
+                            Key.PathElement.newBuilder().setKind("ClientTest3").setName(keyStrategy.keyName(i)));
+                    entity.setKey(key);
+                    // Add three entity properties:
+                    // - a utf-8 string: `str`
+                    entity.addProperty(Property.newBuilder().setName("str")
+                            .addValue(Value.newBuilder().setStringValue("string" + i)));
+                    // - a 64bit integer: `number`
+                    entity.addProperty(Property.newBuilder().setName("number")
+                            .addValue(Value.newBuilder().setIntegerValue(i)));
+                    // - a date: `createDate`
+                    entity.addProperty(Property.newBuilder().setName("createDate")
+                            .addValue(Value.newBuilder().setTimestampMicrosecondsValue(new Date().getTime() * 1000)));
+                    if (writer != null) {
+                        if (profile != null) {
+                            profile.recordSince(WireProfile.Phase.BUILD, buildStart);
+                        }
+                        // Add to the batch, which is sent once it is full.
+                        try {
+                            writer.upsert(entity);
+                        } catch (DatastoreException exception) {
+                            logger.log(Level.SEVERE, "error", exception);
+                        }
+                        batchProgress.queued(key);
+                        continue;
+                    }
+                    // Create an RPC request to write mutations outside of a
+                    // transaction.
+                    BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
+                    req.getMutationBuilder().addUpsert(entity);
+                    BlindWriteRequest request = req.build();
+                    if (profile != null) {
+                        profile.recordSince(WireProfile.Phase.BUILD, buildStart);
+                    }
+                    if (async != null) {
+                        // Send without waiting; blocks only when maxInFlight
+                        // requests are outstanding.
+                        final int count = i;
+                        final Key.Builder written = key;
+                        async.blindWrite(request).whenComplete(
+                                new BiConsumer<BlindWriteResponse, Throwable>() {
+                                    @Override
+                                    public void accept(BlindWriteResponse response, Throwable error) {
+                                        if (error != null) {
+                                            progress.error();
+                                            logger.log(Level.SEVERE, "error", error);
+                                        } else {
+                                            progress.success(written);
+                                            if (progress.sample()) {
+                                                logger.info("put done count:" + count);
+                                            }
+                                        }
+                                    }
+                                });
+                        continue;
+                    }
+                    // Execute the RPC synchronously and ignore the response.
+                    client.blindWrite(request);
+
+                    progress.success(key);
+                    if (progress.sample()) {
+                        logger.info("put done count:" + i);
+                    }
+
+                } catch (DatastoreException exception) {
+                    progress.error();
+                    logger.log(Level.SEVERE, "error", exception);
+                }
+            }
+            if (async != null) {
+                // Wait for the outstanding writes.
+                try {
+                    async.close();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    logger.log(Level.SEVERE, "interrupted", exception);
+                }
+            }
+            if (writer != null) {
+                // Send the remaining entities.
+                try {
+                    writer.flush();
+                } catch (DatastoreException exception) {
+                    logger.log(Level.SEVERE, "error", exception);
+                }
+                batchProgress.update();
             }
         }
+        progress.close();
         sw.stop();
         logger.info("put entities " + sw.getTime() + " milliseconds.");
+        if (writer != null) {
+            writer.logSummary(sw.getTime());
+        }
 
         sw.reset();
         sw.start();
@@ -100,18 +262,26 @@ public class ClientTest6 {
             queryBuilder.addOrder(DatastoreHelper.makeOrder("createDate", PropertyOrder.Direction.DESCENDING));
             // limit 10
             queryBuilder.setLimit(10);
+            // -Dprojection=keys fetches only the keys, -Dprojection=str,number
+            // only the listed properties.
+            QueryProjection.fromProperty().apply(queryBuilder);
             // run query
-            RunQueryResponse res = datastore.runQuery(req.build());
+            RunQueryResponse res = client.runQuery(req.build());
 
             List<EntityResult> results = res.getBatch().getEntityResultList();
+            // Read the properties typed, without building a property map.
+            SampleEntities.Reader reader = new SampleEntities.Reader();
+            ProgressReporter queryProgress = ProgressReporter.fromProperties("query");
             for (EntityResult result : results) {
                 Entity entity = result.getEntity();
 
-                Map<String, Object> propertyMap = DatastoreHelper.getPropertyMap(entity);
-                logger.info("Entity: keyName:" + entity.getKey().getPathElement(0).getName() + " str:"
-                        + propertyMap.get("str") + " number:" + propertyMap.get("number") + " createDate:"
-                        + propertyMap.get("createDate"));
+                reader.reset(entity);
+                queryProgress.success(entity.getKey());
+                if (queryProgress.sample()) {
+                    logger.info(reader.toString());
+                }
             }
+            queryProgress.close();
 
         } catch (DatastoreException exception) {
             logger.log(Level.SEVERE, "error", exception);
@@ -120,5 +290,28 @@ public class ClientTest6 {
         sw.stop();
         logger.info("query entities " + sw.getTime() + " milliseconds.");
 
+        rpc.stopIntervalReport();
+        // Log the latency percentiles of each RPC method.
+        rpc.logSummary();
+        // Stop the -DmetricsPort server, which would keep the JVM running.
+        MetricsHttpServer.stopAll();
+        if (limited != null) {
+            limited.logStats();
+        }
+        if (retrying != null) {
+            retrying.logStats();
+        }
+        if (profile != null) {
+            // Log where the time went, phase by phase, and the payload sizes.
+            profile.logSummary();
+        }
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException exception) {
+                logger.log(Level.SEVERE, "error", exception);
+            }
+        }
+
     }
 }
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.api.services.datastore.client.DatastoreOptions;
+
+/**
+ * Compares single-key lookups from many threads, sent one LookupRequest per
+ * key, with the same lookups merged into multi-key requests by
+ * {@link LookupCoalescer}.
+ *
+ * Options: -Dthreads=N (32), -DlookupsPerThread=N (200), -DkeyCount=N (1000),
+ * -DbatchSize=N (100), -DwindowMicros=N (2000), -DmaxInFlight=N (8).
+ * -Dhedge=true also runs the single-key lookups through
+ * {@link RetryingDatastoreRpc} with hedging.
+ */
+public class ClientTest7 {
+	private static final Logger logger = Logger.getLogger(ClientTest7.class.getName());
+
+	private static final String KIND = "ClientTest7";
+
+	/** Looks up one key and returns the entity, or null if missing. */
+	private interface KeyLookup {
+		Entity lookup(Key key) throws DatastoreException, InterruptedException;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: ClientTest7 <DATASET_ID>");
+			System.exit(1);
+		}
+
+		String datasetId = args[0];
+		Datastore datastore = null;
+		try {
+			DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
+			DatastoreOptions options = builder.dataset(datasetId).build();
+			datastore = ClientFactory.get().createDatastore(options);
+
+		} catch (GeneralSecurityException exception) {
+			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		} catch (IOException exception) {
+			System.err.println("I/O error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		}
+
+		int threads = Integer.getInteger("threads", 32);
+		int lookupsPerThread = Integer.getInteger("lookupsPerThread", 200);
+		final int keyCount = Integer.getInteger("keyCount", 1000);
+		final DatastoreRpc rpc = new DirectDatastoreRpc(datastore);
+
+		// Write the entities to look up.
+		BatchWriter writer = new BatchWriter(rpc, 500);
+		try {
+			for (int i = 1; i <= keyCount; i++) {
+				writer.upsert(SampleEntities.newEntity(KIND, "keyName" + i, i));
+			}
+			writer.flush();
+		} catch (DatastoreException exception) {
+			logger.log(Level.SEVERE, "error", exception);
+			System.exit(1);
+		}
+
+		try {
+			// One LookupRequest per key.
+			run("direct", threads, lookupsPerThread, keyCount, new KeyLookup() {
+				@Override
+				public Entity lookup(Key key) throws DatastoreException {
+					LookupResponse lresp = rpc.lookup(LookupRequest.newBuilder().addKey(key).build());
+					for (EntityResult result : lresp.getFoundList()) {
+						return result.getEntity();
+					}
+					return null;
+				}
+			});
+
+			if (Boolean.getBoolean("hedge")) {
+				// One LookupRequest per key, sent again if it is slower than p95.
+				final RetryingDatastoreRpc hedged = RetryingDatastoreRpc.fromProperties(rpc);
+				run("hedged", threads, lookupsPerThread, keyCount, new KeyLookup() {
+					@Override
+					public Entity lookup(Key key) throws DatastoreException {
+						LookupResponse lresp = hedged.lookup(LookupRequest.newBuilder().addKey(key).build());
+						for (EntityResult result : lresp.getFoundList()) {
+							return result.getEntity();
+						}
+						return null;
+					}
+				});
+				hedged.logStats();
+			}
+
+			// Keys merged into batches.
+			final LookupCoalescer coalescer = new LookupCoalescer(rpc, Integer.getInteger("batchSize", 100),
+					Integer.getInteger("windowMicros", 2000), TimeUnit.MICROSECONDS, Integer.getInteger(
+							"maxInFlight", 8));
+			run("coalesced", threads, lookupsPerThread, keyCount, new KeyLookup() {
+				@Override
+				public Entity lookup(Key key) throws DatastoreException, InterruptedException {
+					return coalescer.lookup(key);
+				}
+			});
+			coalescer.close();
+			logger.info(String.format("coalesced: %d requests, %.1f keys per request", coalescer.getBatchCount(),
+					coalescer.getAverageBatchSize()));
+		} catch (InterruptedException exception) {
+			logger.log(Level.SEVERE, "interrupted", exception);
+			System.exit(1);
+		}
+	}
+
+	private static void run(String name, int threads, final int lookupsPerThread, final int keyCount,
+			final KeyLookup lookup) throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			futures.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					int errors = 0;
+					for (int i = 0; i < lookupsPerThread; i++) {
+						int n = ThreadLocalRandom.current().nextInt(keyCount) + 1;
+						Key key = Key.newBuilder()
+								.addPathElement(Key.PathElement.newBuilder().setKind(KIND).setName("keyName" + n))
+								.build();
+						long t0 = System.nanoTime();
+						try {
+							if (lookup.lookup(key) == null) {
+								errors++;
+							}
+						} catch (DatastoreException exception) {
+							errors++;
+						}
+						histogram.recordSince(t0);
+					}
+					return errors;
+				}
+			}));
+		}
+		int errors = 0;
+		for (Future<Integer> future : futures) {
+			try {
+				errors += future.get();
+			} catch (ExecutionException e) {
+				logger.log(Level.SEVERE, "error", e.getCause());
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		logger.info(String.format("%s: %d lookups from %d threads in %.1f ms, %.1f lookups/sec, %d errors", name,
+				histogram.getCount(), threads, elapsed / 1e6, histogram.getCount() * 1e9 / elapsed, errors));
+		logger.info(histogram.summary(name));
+	}
+}
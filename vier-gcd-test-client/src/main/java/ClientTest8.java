@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreOptions;
+
+/**
+ * Runs the same concurrent write workload once per {@link KeyStrategy} and
+ * compares throughput and blindWrite latency percentiles.
+ *
+ * Options: -Dstrategies=sequential,hashed,reversed,uuid (all),
+ * -DentityCount=N (2000), -Dworkers=N (16), -DbatchSize=N (0), -Dkind=name
+ * (ClientTest8). Names that already exist are overwritten rather than
+ * inserted, so use a new kind to compare fresh inserts again.
+ */
+public class ClientTest8 {
+	private static final Logger logger = Logger.getLogger(ClientTest8.class.getName());
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: ClientTest8 <DATASET_ID>");
+			System.exit(1);
+		}
+
+		String datasetId = args[0];
+		Datastore datastore = null;
+		try {
+			DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
+			DatastoreOptions options = builder.dataset(datasetId).build();
+			datastore = ClientFactory.get().createDatastore(options);
+
+		} catch (GeneralSecurityException exception) {
+			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		} catch (IOException exception) {
+			System.err.println("I/O error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		}
+
+		int entityCount = Integer.getInteger("entityCount", 2000);
+		int workers = Integer.getInteger("workers", 16);
+		int batchSize = Integer.getInteger("batchSize", 0);
+		String kind = System.getProperty("kind", "ClientTest8");
+		DatastoreRpc direct = new DirectDatastoreRpc(datastore);
+
+		List<String> rows = new ArrayList<String>();
+		rows.add(String.format("%-10s %10s %7s %8s %8s %8s %8s", "strategy", "ops/sec", "errors", "p50 ms", "p95 ms",
+				"p99 ms", "max ms"));
+		for (KeyStrategy strategy : strategies()) {
+			// A fresh histogram per strategy.
+			TimedDatastoreRpc rpc = new TimedDatastoreRpc(direct);
+			WriteLoadGenerator generator = new WriteLoadGenerator(rpc, entityCount, workers,
+					WriteLoadGenerator.ThreadMode.PLATFORM);
+			generator.setKind(kind);
+			generator.setKeyStrategy(strategy);
+			generator.setBatchSize(batchSize);
+
+			long start = System.nanoTime();
+			List<WriteLoadGenerator.WorkerStats> results;
+			try {
+				results = generator.run();
+			} catch (InterruptedException exception) {
+				logger.log(Level.SEVERE, "interrupted", exception);
+				System.exit(1);
+				return;
+			}
+			long elapsed = System.nanoTime() - start;
+
+			long ops = 0;
+			long errors = 0;
+			for (WriteLoadGenerator.WorkerStats stats : results) {
+				ops += stats.ops;
+				errors += stats.errors;
+			}
+			LatencyHistogram histogram = rpc.getHistogram(RpcMethod.BLIND_WRITE);
+			rows.add(String.format("%-10s %10.1f %7d %8.2f %8.2f %8.2f %8.2f", strategy.name().toLowerCase(), ops
+					* 1e9 / elapsed, errors, histogram.getValueAtPercentile(50) / 1e6,
+					histogram.getValueAtPercentile(95) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+					histogram.getMaxNanos() / 1e6));
+		}
+
+		for (String row : rows) {
+			logger.info(row);
+		}
+	}
+
+	private static List<KeyStrategy> strategies() {
+		List<KeyStrategy> strategies = new ArrayList<KeyStrategy>();
+		String names = System.getProperty("strategies");
+		if (names == null) {
+			for (KeyStrategy strategy : KeyStrategy.values()) {
+				strategies.add(strategy);
+			}
+		} else {
+			for (String name : names.split(",")) {
+				strategies.add(KeyStrategy.valueOf(name.trim().toUpperCase()));
+			}
+		}
+		return strategies;
+	}
+}
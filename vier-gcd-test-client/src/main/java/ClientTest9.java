@@ -0,0 +1,67 @@
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreOptions;
+
+/**
+ * Loads a CSV or JSONL file with {@link BulkLoader}.
+ *
+ * Options: -Dformat=csv|jsonl (from the file extension), -Dkind=name
+ * (ClientTest9), -Dcolumns=name:type,... (key:key,str:string,number:integer,
+ * createDate:timestamp), -DparserThreads=N (cores), -Dwriters=N (8),
+ * -DbatchSize=N (500).
+ */
+public class ClientTest9 {
+	private static final Logger logger = Logger.getLogger(ClientTest9.class.getName());
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ClientTest9 <DATASET_ID> <FILE>");
+			System.exit(1);
+		}
+
+		String datasetId = args[0];
+		File file = new File(args[1]);
+		Datastore datastore = null;
+		try {
+			DatastoreOptions.Builder builder = ClientFactory.get().newDatastoreOptionsFromEnv();
+			DatastoreOptions options = builder.dataset(datasetId).build();
+			datastore = ClientFactory.get().createDatastore(options);
+
+		} catch (GeneralSecurityException exception) {
+			System.err.println("Security error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		} catch (IOException exception) {
+			System.err.println("I/O error connecting to the datastore: " + exception.getMessage());
+			System.exit(1);
+		}
+
+		String defaultFormat = file.getName().toLowerCase().endsWith(".csv") ? "csv" : "jsonl";
+		BulkLoader.Format format = BulkLoader.Format.valueOf(System.getProperty("format", defaultFormat)
+				.toUpperCase());
+		RecordParser.Column[] columns = RecordParser.Column.parseList(System.getProperty("columns",
+				"key:key,str:string,number:integer,createDate:timestamp"));
+		logger.info("columns: " + Arrays.toString(columns));
+
+		TimedDatastoreRpc rpc = new TimedDatastoreRpc(new DirectDatastoreRpc(datastore));
+		BulkLoader loader = new BulkLoader(rpc, System.getProperty("kind", "ClientTest9"), format, columns);
+		loader.setParserThreads(Integer.getInteger("parserThreads", Runtime.getRuntime().availableProcessors()));
+		loader.setWriterThreads(Integer.getInteger("writers", 8));
+		loader.setBatchSize(Integer.getInteger("batchSize", 500));
+		try {
+			loader.load(file);
+		} catch (IOException exception) {
+			logger.log(Level.SEVERE, "failed to read " + file, exception);
+			System.exit(1);
+		} catch (InterruptedException exception) {
+			logger.log(Level.SEVERE, "interrupted", exception);
+			System.exit(1);
+		}
+		rpc.logSummary();
+	}
+}
@@ -0,0 +1,486 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+
+/**
+ * Finds a credential by probing several sources in parallel, instead of
+ * waiting for each one in turn.
+ *
+ * <ul>
+ * <li>The source that won is saved in {@code credential.dat} and tried alone
+ * on the next launch.</li>
+ * <li>The access token, its scopes and its expiry are saved in the same
+ * file, readable by the owner only, so a launch with the same scopes within
+ * the token lifetime does not refresh it.</li>
+ * <li>Whether the Compute Engine metadata server answered is saved there
+ * too, so that later launches off Compute Engine do not probe it again.
+ * Delete the file to probe it again.</li>
+ * <li>The token is refreshed in the background before it expires.</li>
+ * </ul>
+ *
+ * Sources must not prompt the user. An interactive source can be given as the
+ * fallback, which is only called when no other source is available.
+ */
+public class CredentialProvider {
+	private static final Logger logger = Logger.getLogger(CredentialProvider.class.getName());
+
+	/** Saved next to token.dat. */
+	public static final String STATE_FILE_NAME = "credential.dat";
+	/** Name of the {@link #computeEngine()} source. */
+	public static final String COMPUTE_ENGINE = "ComputeEngine";
+
+	private static final String CLIENTSECRETS_LOCATION = "client_secrets.json";
+	private static final String REFLESH_TOKEN_FILE_NAME = "token.dat";
+
+	/** Refresh this long before the token expires. */
+	private static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	private static final long RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	/** A place to get a credential from. */
+	public interface Source {
+		String getName();
+
+		/**
+		 * Returns a credential, or null if the source is not available here.
+		 * The credential may not have an access token yet.
+		 */
+		Credential probe() throws Exception;
+	}
+
+	private final List<Source> sources;
+	private final Source fallback;
+	/** The sorted scopes, saved with the token so it is not reused for other scopes. */
+	private final String scopes;
+	private final long probeTimeoutMillis;
+	private final File stateFile;
+	/** Whether this is Compute Engine, null if not known; saved with the state. */
+	private volatile Boolean onComputeEngine;
+	private final ScheduledExecutorService refresher = Executors
+			.newSingleThreadScheduledExecutor(daemonThreads("credential-refresh"));
+
+	public CredentialProvider(List<Source> sources, Source fallback, Collection<String> scopes,
+			long probeTimeoutMillis, File stateFile) {
+		this.sources = new ArrayList<Source>(sources);
+		this.fallback = fallback;
+		this.scopes = StringUtils.join(new TreeSet<String>(scopes), ' ');
+		this.probeTimeoutMillis = probeTimeoutMillis;
+		this.stateFile = stateFile;
+	}
+
+	/**
+	 * Compute Engine, the service account of DATASTORE_SERVICE_ACCOUNT and
+	 * DATASTORE_PRIVATE_KEY_FILE, and the refresh token in token.dat, in this
+	 * order of priority, probed with the timeout of
+	 * {@code -Dcredential.probeTimeout} milliseconds.
+	 */
+	public static CredentialProvider fromEnv(Collection<String> scopes, Source fallback) {
+		List<Source> sources = Arrays.asList(computeEngine(), serviceAccount(scopes), storedRefreshToken());
+		return new CredentialProvider(sources, fallback, scopes, Long.getLong("credential.probeTimeout", 2000),
+				new File(STATE_FILE_NAME));
+	}
+
+	/**
+	 * Returns a credential from the remembered source, else from the source
+	 * earliest in the list that is available, else from the fallback. Returns
+	 * null if there is none.
+	 */
+	public Credential getCredential() throws IOException {
+		State state = loadState();
+		Credential credential = null;
+		Source winner = null;
+		// Sources that answered that they are not available here.
+		Set<String> unavailable = new HashSet<String>();
+
+		Source remembered = find(state.source);
+		if (remembered != null) {
+			credential = probeAll(Arrays.asList(remembered), unavailable);
+			winner = credential != null ? remembered : null;
+		}
+		if (credential == null) {
+			List<Source> others = new ArrayList<Source>(sources);
+			others.remove(remembered);
+			if (Boolean.FALSE.equals(state.onComputeEngine)) {
+				logger.fine("not probing " + COMPUTE_ENGINE + ", unavailable on an earlier launch");
+				others.remove(find(COMPUTE_ENGINE));
+			}
+			ProbeResult result = probeFirst(others, unavailable);
+			if (result != null) {
+				credential = result.credential;
+				winner = result.source;
+			}
+		}
+		onComputeEngine = state.onComputeEngine;
+		if (unavailable.contains(COMPUTE_ENGINE)) {
+			onComputeEngine = false;
+		} else if (winner != null && COMPUTE_ENGINE.equals(winner.getName())) {
+			onComputeEngine = true;
+		}
+		if (credential == null && fallback != null) {
+			try {
+				credential = fallback.probe();
+				winner = fallback;
+			} catch (Exception e) {
+				throw new IOException("credential source " + fallback.getName() + " failed", e);
+			}
+		}
+		if (credential == null) {
+			saveState(null, null);
+			return null;
+		}
+		logger.info("Using " + winner.getName() + " credential.");
+
+		if (winner.getName().equals(state.source) && state.isValid(scopes)) {
+			// Reuse the token saved by the last launch.
+			credential.setAccessToken(state.accessToken);
+			credential.setExpirationTimeMilliseconds(state.expirationTimeMillis);
+			saveState(winner.getName(), credential);
+			scheduleRefresh(winner.getName(), credential, delayBeforeExpiry(credential));
+		} else if (credential.getAccessToken() != null && credential.getExpirationTimeMilliseconds() != null) {
+			saveState(winner.getName(), credential);
+			scheduleRefresh(winner.getName(), credential, delayBeforeExpiry(credential));
+		} else {
+			// No token yet. Fetch it in the background; the first request
+			// waits for it only if it is not there yet.
+			saveState(winner.getName(), null);
+			scheduleRefresh(winner.getName(), credential, 0);
+		}
+		return credential;
+	}
+
+	/** Stops the background refresh. */
+	public void shutdown() {
+		refresher.shutdownNow();
+	}
+
+	private Source find(String name) {
+		for (Source source : sources) {
+			if (source.getName().equals(name)) {
+				return source;
+			}
+		}
+		return null;
+	}
+
+	private Credential probeAll(List<Source> candidates, Set<String> unavailable) {
+		ProbeResult result = probeFirst(candidates, unavailable);
+		return result == null ? null : result.credential;
+	}
+
+	/**
+	 * Probes all sources at once and returns the credential of the first
+	 * source in list order that has one. A source that answers early is only
+	 * taken once every source before it has answered without a credential;
+	 * at the timeout, the best source that has answered wins. The names of the
+	 * sources that answered without a credential are added to
+	 * {@code unavailable}.
+	 */
+	private ProbeResult probeFirst(List<Source> candidates, Set<String> unavailable) {
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(candidates.size(), daemonThreads("credential-probe"));
+		CompletionService<ProbeResult> completion = new ExecutorCompletionService<ProbeResult>(executor);
+		List<Future<ProbeResult>> futures = new ArrayList<Future<ProbeResult>>();
+		try {
+			for (final Source source : candidates) {
+				futures.add(completion.submit(new Callable<ProbeResult>() {
+					@Override
+					public ProbeResult call() throws Exception {
+						Credential credential = source.probe();
+						return credential == null ? null : new ProbeResult(source, credential);
+					}
+				}));
+			}
+			long deadline = System.currentTimeMillis() + probeTimeoutMillis;
+			for (int answered = 0; answered < candidates.size(); answered++) {
+				long wait = deadline - System.currentTimeMillis();
+				if (completion.poll(Math.max(0, wait), TimeUnit.MILLISECONDS) == null) {
+					logger.info("credential probe timed out after " + probeTimeoutMillis + " ms");
+					return best(candidates, futures, false, unavailable);
+				}
+				ProbeResult result = best(candidates, futures, true, unavailable);
+				if (result != null) {
+					return result;
+				}
+			}
+			return best(candidates, futures, false, unavailable);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			for (Future<ProbeResult> future : futures) {
+				future.cancel(true);
+			}
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * The first answered probe with a credential, in priority order. With
+	 * {@code inOrder}, stops at the first probe that has not answered yet,
+	 * since it could still win.
+	 */
+	private static ProbeResult best(List<Source> candidates, List<Future<ProbeResult>> futures, boolean inOrder,
+			Set<String> unavailable) throws InterruptedException {
+		for (int i = 0; i < futures.size(); i++) {
+			Future<ProbeResult> future = futures.get(i);
+			if (!future.isDone()) {
+				if (inOrder) {
+					return null;
+				}
+				continue;
+			}
+			try {
+				ProbeResult result = future.get();
+				if (result != null) {
+					return result;
+				}
+				unavailable.add(candidates.get(i).getName());
+			} catch (ExecutionException e) {
+				logger.log(Level.FINE, "credential source failed", e.getCause());
+			}
+		}
+		return null;
+	}
+
+	private void scheduleRefresh(final String source, final Credential credential, long delayMillis) {
+		refresher.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (credential.refreshToken()) {
+						saveState(source, credential);
+						Long expiry = credential.getExpirationTimeMilliseconds();
+						if (expiry != null) {
+							scheduleRefresh(source, credential, delayBeforeExpiry(credential));
+						}
+						return;
+					}
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "failed to refresh the access token", e);
+				}
+				scheduleRefresh(source, credential, RETRY_DELAY_MILLIS);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private static long delayBeforeExpiry(Credential credential) {
+		Long expiry = credential.getExpirationTimeMilliseconds();
+		if (expiry == null) {
+			return 0;
+		}
+		return Math.max(0, expiry - REFRESH_MARGIN_MILLIS - System.currentTimeMillis());
+	}
+
+	private State loadState() {
+		State state = new State();
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(stateFile)) {
+			properties.load(in);
+		} catch (IOException e) {
+			// first launch
+			return state;
+		}
+		state.source = properties.getProperty("source");
+		String computeEngine = properties.getProperty("computeEngine");
+		state.onComputeEngine = computeEngine == null ? null : Boolean.valueOf(computeEngine);
+		state.scopes = properties.getProperty("scopes");
+		state.accessToken = properties.getProperty("token");
+		try {
+			state.expirationTimeMillis = Long.parseLong(properties.getProperty("expiry", "0"));
+		} catch (NumberFormatException e) {
+			logger.warning("ignoring the malformed token in " + stateFile);
+			state.accessToken = null;
+		}
+		return state;
+	}
+
+	/** Saves the source and the token, if any, and the Compute Engine probe result. */
+	private synchronized void saveState(String source, Credential credential) {
+		Properties properties = new Properties();
+		if (source != null) {
+			properties.setProperty("source", source);
+		}
+		if (onComputeEngine != null) {
+			properties.setProperty("computeEngine", onComputeEngine.toString());
+		}
+		if (credential != null && credential.getAccessToken() != null
+				&& credential.getExpirationTimeMilliseconds() != null) {
+			properties.setProperty("scopes", scopes);
+			properties.setProperty("token", credential.getAccessToken());
+			properties.setProperty("expiry", credential.getExpirationTimeMilliseconds().toString());
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			properties.store(out, null);
+			writeOwnerOnly(stateFile.toPath(), out.toByteArray());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "failed to save " + stateFile, e);
+		}
+	}
+
+	/**
+	 * Writes a file only the owner can read, since it holds a bearer token.
+	 * On file systems without POSIX permissions, falls back to the
+	 * {@link File} permission flags.
+	 */
+	private static void writeOwnerOnly(Path path, byte[] content) throws IOException {
+		try {
+			Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rw-------");
+			if (Files.exists(path)) {
+				Files.setPosixFilePermissions(path, ownerOnly);
+			} else {
+				Files.createFile(path, PosixFilePermissions.asFileAttribute(ownerOnly));
+			}
+		} catch (UnsupportedOperationException e) {
+			File file = path.toFile();
+			file.createNewFile();
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+		}
+		Files.write(path, content);
+	}
+
+	/**
+	 * {@link ClientFactory#getComputeEngineCredential()}; null outside Compute
+	 * Engine, which it finds out within {@code -Dcredential.metadataTimeout}.
+	 */
+	public static Source computeEngine() {
+		return new Source() {
+			@Override
+			public String getName() {
+				return COMPUTE_ENGINE;
+			}
+
+			@Override
+			public Credential probe() throws Exception {
+				return ClientFactory.get().getComputeEngineCredential();
+			}
+		};
+	}
+
+	/** JWT service account from DATASTORE_SERVICE_ACCOUNT and DATASTORE_PRIVATE_KEY_FILE. */
+	public static Source serviceAccount(final Collection<String> scopes) {
+		return new Source() {
+			@Override
+			public String getName() {
+				return "ServiceAccount";
+			}
+
+			@Override
+			public Credential probe() throws Exception {
+				String account = System.getenv("DATASTORE_SERVICE_ACCOUNT");
+				String privateKeyFile = System.getenv("DATASTORE_PRIVATE_KEY_FILE");
+				if (account == null || privateKeyFile == null) {
+					return null;
+				}
+				return ClientFactory.get().newCredentialBuilder().setServiceAccountId(account)
+						.setServiceAccountScopes(scopes).setServiceAccountPrivateKeyFromP12File(new File(privateKeyFile))
+						.build();
+			}
+		};
+	}
+
+	/**
+	 * The refresh token saved in token.dat by the authorization code flow,
+	 * with the client secret in client_secrets.json. The token is not
+	 * refreshed here.
+	 */
+	public static Source storedRefreshToken() {
+		return new Source() {
+			@Override
+			public String getName() {
+				return "AuthorizationCode";
+			}
+
+			@Override
+			public Credential probe() throws Exception {
+				File tokenFile = new File(REFLESH_TOKEN_FILE_NAME);
+				InputStream resourceInputStream = CredentialProvider.class.getResourceAsStream(CLIENTSECRETS_LOCATION);
+				if (!tokenFile.exists() || resourceInputStream == null) {
+					return null;
+				}
+				String jsonString = IOUtils.toString(resourceInputStream);
+				InputStream stream = new ByteArrayInputStream(jsonString.getBytes("UTF-8"));
+				GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(ClientFactory.get().getJsonFactory(),
+						new InputStreamReader(stream));
+				String refreshToken = FileUtils.readFileToString(tokenFile, "UTF-8").trim();
+				return ClientFactory.get().newCredentialBuilder().setClientSecrets(clientSecrets).build()
+						.setFromTokenResponse(new TokenResponse().setRefreshToken(refreshToken));
+			}
+		};
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static class ProbeResult {
+		final Source source;
+		final Credential credential;
+
+		ProbeResult(Source source, Credential credential) {
+			this.source = source;
+			this.credential = credential;
+		}
+	}
+
+	private static class State {
+		String source;
+		Boolean onComputeEngine;
+		String scopes;
+		String accessToken;
+		long expirationTimeMillis;
+
+		/** True if the token was issued for the same scopes and is not about to expire. */
+		boolean isValid(String wantedScopes) {
+			return accessToken != null && wantedScopes.equals(scopes)
+					&& expirationTimeMillis - REFRESH_MARGIN_MILLIS > System.currentTimeMillis();
+		}
+	}
+}
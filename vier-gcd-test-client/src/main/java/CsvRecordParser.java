@@ -0,0 +1,106 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+
+/**
+ * Parses comma separated records. Fields may be quoted with {@code "}, with
+ * {@code ""} for a quote inside; quoted fields may not contain line breaks,
+ * since the file is split at line breaks. Empty unquoted fields are left out
+ * of the entity. Fields of unmapped columns are skipped without copying.
+ */
+public class CsvRecordParser extends RecordParser {
+
+	/** Column of each field position, null for unmapped ones. */
+	private final Column[] byPosition;
+
+	public CsvRecordParser(String kind, Column[] byPosition) {
+		super(kind);
+		this.byPosition = byPosition.clone();
+	}
+
+	/**
+	 * Maps the columns to the positions of the header fields.
+	 *
+	 * @throws IllegalArgumentException if a column is not in the header
+	 */
+	public static Column[] mapHeader(String header, Column[] columns) {
+		List<String> names = splitHeader(header);
+		Column[] byPosition = new Column[names.size()];
+		for (Column column : columns) {
+			int index = names.indexOf(column.name);
+			if (index < 0) {
+				throw new IllegalArgumentException("column " + column.name + " is not in the header " + names);
+			}
+			byPosition[index] = column;
+		}
+		return byPosition;
+	}
+
+	private static List<String> splitHeader(String header) {
+		List<String> names = new ArrayList<String>();
+		for (String name : header.split(",", -1)) {
+			name = name.trim();
+			if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+				name = name.substring(1, name.length() - 1).replace("\"\"", "\"");
+			}
+			names.add(name);
+		}
+		return names;
+	}
+
+	@Override
+	protected void parseFields(ByteBuffer buffer, int start, int end, Entity.Builder entity) {
+		int pos = start;
+		for (int index = 0;; index++) {
+			Column column = index < byPosition.length ? byPosition[index] : null;
+			int length = 0;
+			boolean quoted = pos < end && buffer.get(pos) == '"';
+			if (quoted) {
+				pos++;
+				while (true) {
+					if (pos >= end) {
+						throw new IllegalArgumentException("unterminated quote");
+					}
+					byte b = buffer.get(pos++);
+					if (b == '"') {
+						if (pos < end && buffer.get(pos) == '"') {
+							pos++;
+						} else {
+							break;
+						}
+					}
+					if (column != null) {
+						ensureScratch(length + 1);
+						scratch[length] = b;
+					}
+					length++;
+				}
+				if (pos < end && buffer.get(pos) != ',') {
+					throw new IllegalArgumentException("unexpected character after quoted field " + index);
+				}
+			} else {
+				int fieldStart = pos;
+				while (pos < end && buffer.get(pos) != ',') {
+					pos++;
+				}
+				length = pos - fieldStart;
+				if (column != null) {
+					ensureScratch(length);
+					for (int i = 0; i < length; i++) {
+						scratch[i] = buffer.get(fieldStart + i);
+					}
+				}
+			}
+			if (column != null && (quoted || length > 0)) {
+				addField(entity, column, length);
+			}
+			if (pos >= end) {
+				return;
+			}
+			// skip the comma
+			pos++;
+		}
+	}
+}
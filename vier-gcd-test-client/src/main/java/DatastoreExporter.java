@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Exports all entities of a kind to an {@link ExportSink}.
+ *
+ * The kind is split into {@code __key__} ranges by {@link KeyRangeSplitter}
+ * and the ranges are read in parallel, each with a {@link QueryIterator}
+ * following the cursors. Rows go to the sink in batches of
+ * {@code batchSize}, tagged with the range number.
+ */
+public class DatastoreExporter {
+	private static final Logger logger = Logger.getLogger(DatastoreExporter.class.getName());
+
+	private final DatastoreRpc datastore;
+	private final String kind;
+	private final ExportSink sink;
+	private int shards = 16;
+	private int threads = 16;
+	private int pageSize = 500;
+	private int batchSize = 500;
+
+	public DatastoreExporter(DatastoreRpc datastore, String kind, ExportSink sink) {
+		this.datastore = datastore;
+		this.kind = kind;
+		this.sink = sink;
+	}
+
+	/** Number of key ranges wanted; fewer are used if the kind is small. */
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+
+	/** Ranges read at the same time. */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/** Entities per runQuery request. */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/** Rows per {@link ExportSink#write} call. */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Exports the kind and returns the number of entities exported. The sink
+	 * is not closed.
+	 */
+	public long export() throws DatastoreException, IOException, InterruptedException {
+		long start = System.nanoTime();
+		List<KeyRangeSplitter.KeyRange> ranges = new KeyRangeSplitter(datastore).split(kind, shards);
+		logger.info("exporting " + kind + " in " + ranges.size() + " ranges with " + threads + " threads");
+
+		ProgressReporter progress = ProgressReporter.fromProperties("export");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, ranges.size()));
+		long total = 0;
+		try {
+			List<Future<Long>> futures = new ArrayList<Future<Long>>(ranges.size());
+			for (int i = 0; i < ranges.size(); i++) {
+				futures.add(executor.submit(newShardTask(i, ranges.get(i), progress)));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				long count = await(futures.get(i));
+				logger.fine("range " + i + " " + ranges.get(i) + ": " + count + " entities");
+				total += count;
+			}
+		} finally {
+			executor.shutdownNow();
+			progress.close();
+		}
+		long elapsed = System.nanoTime() - start;
+		logger.info(String.format("exported %d entities of %s in %.1f ms, %.1f entities/sec", total, kind,
+				elapsed / 1e6, total * 1e9 / elapsed));
+		return total;
+	}
+
+	private Callable<Long> newShardTask(final int shard, final KeyRangeSplitter.KeyRange range,
+			final ProgressReporter progress) {
+		return new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				RunQueryRequest.Builder req = RunQueryRequest.newBuilder();
+				Query.Builder query = req.getQueryBuilder();
+				query.addKindBuilder().setName(kind);
+				range.restrict(query);
+
+				QueryIterator it = new QueryIterator(datastore, req.build(), pageSize);
+				List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(batchSize);
+				long count = 0;
+				try {
+					while (it.hasNext()) {
+						rows.add(EntityRows.toRow(it.next().getEntity()));
+						count++;
+						progress.success();
+						if (rows.size() >= batchSize) {
+							sink.write(shard, rows);
+							rows = new ArrayList<Map<String, Object>>(batchSize);
+						}
+					}
+				} catch (QueryIterator.QueryException exception) {
+					progress.error();
+					if (exception.getCause() instanceof DatastoreException) {
+						throw (DatastoreException) exception.getCause();
+					}
+					throw exception;
+				} finally {
+					it.close();
+				}
+				if (!rows.isEmpty()) {
+					sink.write(shard, rows);
+				}
+				return count;
+			}
+		};
+	}
+
+	private static long await(Future<Long> future) throws DatastoreException, IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DatastoreException) {
+				throw (DatastoreException) e.getCause();
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
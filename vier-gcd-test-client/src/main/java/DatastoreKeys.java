@@ -0,0 +1,48 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+
+/**
+ * Helpers for comparing keys built by the client with keys returned by the
+ * server.
+ */
+public final class DatastoreKeys {
+
+	private DatastoreKeys() {
+	}
+
+	/**
+	 * Keys in responses carry the dataset id while keys built by the client
+	 * do not. Returns the key without it, so that both compare equal.
+	 */
+	public static Key withoutDatasetId(Key key) {
+		if (!key.hasPartitionId() || !key.getPartitionId().hasDatasetId()) {
+			return key;
+		}
+		Key.Builder builder = key.toBuilder();
+		if (key.getPartitionId().hasNamespace()) {
+			builder.getPartitionIdBuilder().clearDatasetId();
+		} else {
+			builder.clearPartitionId();
+		}
+		return builder.build();
+	}
+
+	/** Keys of the upserts, updates, inserts and deletes of a mutation. */
+	public static List<Key> mutatedKeys(Mutation mutation) {
+		List<Key> keys = new ArrayList<Key>(mutation.getDeleteList());
+		for (Entity entity : mutation.getUpsertList()) {
+			keys.add(entity.getKey());
+		}
+		for (Entity entity : mutation.getUpdateList()) {
+			keys.add(entity.getKey());
+		}
+		for (Entity entity : mutation.getInsertList()) {
+			keys.add(entity.getKey());
+		}
+		return keys;
+	}
+}
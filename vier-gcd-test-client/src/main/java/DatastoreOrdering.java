@@ -0,0 +1,186 @@
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.PropertyOrder;
+import com.google.api.services.datastore.DatastoreV1.Value;
+
+/**
+ * Orders keys, values and entities the way Datastore sorts query results.
+ */
+public final class DatastoreOrdering {
+
+	/** Name of the pseudo property that refers to the entity key. */
+	public static final String KEY_PROPERTY = "__key__";
+
+	/**
+	 * Name of the pseudo property that orders entities randomly, used to
+	 * sample keys for splitting a kind into ranges.
+	 */
+	public static final String SCATTER_PROPERTY = "__scatter__";
+
+	/** Orders keys by path: kind, then ids before names, parents first. */
+	public static final Comparator<Key> KEY_ORDER = new Comparator<Key>() {
+		@Override
+		public int compare(Key a, Key b) {
+			return compareKeys(a, b);
+		}
+	};
+
+	private DatastoreOrdering() {
+	}
+
+	public static int compareKeys(Key a, Key b) {
+		int n = Math.min(a.getPathElementCount(), b.getPathElementCount());
+		for (int i = 0; i < n; i++) {
+			Key.PathElement pa = a.getPathElement(i);
+			Key.PathElement pb = b.getPathElement(i);
+			int c = pa.getKind().compareTo(pb.getKind());
+			if (c != 0) {
+				return c;
+			}
+			if (pa.hasId() || pb.hasId()) {
+				if (!pb.hasId()) {
+					return -1;
+				}
+				if (!pa.hasId()) {
+					return 1;
+				}
+				c = Long.compare(pa.getId(), pb.getId());
+			} else {
+				c = pa.getName().compareTo(pb.getName());
+			}
+			if (c != 0) {
+				return c;
+			}
+		}
+		return Integer.compare(a.getPathElementCount(), b.getPathElementCount());
+	}
+
+	/**
+	 * Compares two values, first by type (numbers, booleans, strings, doubles,
+	 * keys) and then by value. Integers and timestamps compare as numbers.
+	 */
+	public static int compareValues(Value a, Value b) {
+		int c = Integer.compare(typeRank(a), typeRank(b));
+		if (c != 0) {
+			return c;
+		}
+		switch (typeRank(a)) {
+		case 1:
+			return Long.compare(numberOf(a), numberOf(b));
+		case 2:
+			return Boolean.compare(a.getBooleanValue(), b.getBooleanValue());
+		case 3:
+			return a.getStringValue().compareTo(b.getStringValue());
+		case 4:
+			return a.getBlobValue().toStringUtf8().compareTo(b.getBlobValue().toStringUtf8());
+		case 5:
+			return Double.compare(a.getDoubleValue(), b.getDoubleValue());
+		case 6:
+			return compareKeys(a.getKeyValue(), b.getKeyValue());
+		default:
+			return 0;
+		}
+	}
+
+	private static int typeRank(Value v) {
+		if (v.hasIntegerValue() || v.hasTimestampMicrosecondsValue()) {
+			return 1;
+		} else if (v.hasBooleanValue()) {
+			return 2;
+		} else if (v.hasStringValue()) {
+			return 3;
+		} else if (v.hasBlobValue() || v.hasBlobKeyValue()) {
+			return 4;
+		} else if (v.hasDoubleValue()) {
+			return 5;
+		} else if (v.hasKeyValue()) {
+			return 6;
+		}
+		return 0;
+	}
+
+	private static long numberOf(Value v) {
+		return v.hasIntegerValue() ? v.getIntegerValue() : v.getTimestampMicrosecondsValue();
+	}
+
+	/**
+	 * Returns the property with the given name, or null. {@code __key__} is
+	 * returned as a property holding the entity key, and {@code __scatter__}
+	 * as one holding a hash of it.
+	 */
+	public static Property getProperty(Entity entity, String name) {
+		if (KEY_PROPERTY.equals(name)) {
+			return Property.newBuilder().setName(KEY_PROPERTY)
+					.addValue(Value.newBuilder().setKeyValue(entity.getKey())).build();
+		}
+		if (SCATTER_PROPERTY.equals(name)) {
+			return Property.newBuilder().setName(SCATTER_PROPERTY)
+					.addValue(Value.newBuilder().setIntegerValue(scatterOf(entity.getKey()))).build();
+		}
+		for (Property property : entity.getPropertyList()) {
+			if (property.getName().equals(name)) {
+				return property;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A stable pseudo-random value for the key. Every entity has one here,
+	 * while Datastore sets {@code __scatter__} on a small sample only.
+	 */
+	private static long scatterOf(Key key) {
+		long h = key.toBuilder().clearPartitionId().build().toByteString().hashCode();
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Returns the value a multi-valued property sorts by: the smallest value
+	 * for ascending and the largest for descending order. Null if the entity
+	 * does not have the property.
+	 */
+	public static Value sortValue(Entity entity, String name, PropertyOrder.Direction direction) {
+		Property property = getProperty(entity, name);
+		if (property == null || property.getValueCount() == 0) {
+			return null;
+		}
+		Value result = property.getValue(0);
+		for (int i = 1; i < property.getValueCount(); i++) {
+			int c = compareValues(property.getValue(i), result);
+			if (direction == PropertyOrder.Direction.DESCENDING ? c > 0 : c < 0) {
+				result = property.getValue(i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Orders entities by the given property orders, ties broken by key.
+	 * Entities must have every ordered property.
+	 */
+	public static Comparator<Entity> entityOrder(final List<PropertyOrder> orders) {
+		return new Comparator<Entity>() {
+			@Override
+			public int compare(Entity a, Entity b) {
+				for (PropertyOrder order : orders) {
+					String name = order.getProperty().getName();
+					int c = compareValues(sortValue(a, name, order.getDirection()),
+							sortValue(b, name, order.getDirection()));
+					if (c != 0) {
+						return order.getDirection() == PropertyOrder.Direction.DESCENDING ? -c : c;
+					}
+				}
+				return compareKeys(a.getKey(), b.getKey());
+			}
+		};
+	}
+}
@@ -0,0 +1,36 @@
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionResponse;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.DatastoreV1.RollbackResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * The RPC methods of {@link Datastore}, so that timing, caching and other
+ * wrappers can be stacked around a client.
+ *
+ * @see DirectDatastoreRpc
+ * @see ForwardingDatastoreRpc
+ */
+public interface DatastoreRpc {
+
+	BlindWriteResponse blindWrite(BlindWriteRequest request) throws DatastoreException;
+
+	LookupResponse lookup(LookupRequest request) throws DatastoreException;
+
+	RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException;
+
+	BeginTransactionResponse beginTransaction(BeginTransactionRequest request) throws DatastoreException;
+
+	CommitResponse commit(CommitRequest request) throws DatastoreException;
+
+	RollbackResponse rollback(RollbackRequest request) throws DatastoreException;
+}
@@ -0,0 +1,55 @@
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionResponse;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.DatastoreV1.RollbackResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.Datastore;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Sends the RPCs with a {@link Datastore} client.
+ */
+public class DirectDatastoreRpc implements DatastoreRpc {
+	private final Datastore datastore;
+
+	public DirectDatastoreRpc(Datastore datastore) {
+		this.datastore = datastore;
+	}
+
+	@Override
+	public BlindWriteResponse blindWrite(BlindWriteRequest request) throws DatastoreException {
+		return datastore.blindWrite(request);
+	}
+
+	@Override
+	public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+		return datastore.lookup(request);
+	}
+
+	@Override
+	public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+		return datastore.runQuery(request);
+	}
+
+	@Override
+	public BeginTransactionResponse beginTransaction(BeginTransactionRequest request) throws DatastoreException {
+		return datastore.beginTransaction(request);
+	}
+
+	@Override
+	public CommitResponse commit(CommitRequest request) throws DatastoreException {
+		return datastore.commit(request);
+	}
+
+	@Override
+	public RollbackResponse rollback(RollbackRequest request) throws DatastoreException {
+		return datastore.rollback(request);
+	}
+}
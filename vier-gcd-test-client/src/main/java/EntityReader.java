@@ -0,0 +1,123 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.Value;
+
+/**
+ * Reads selected properties of entities without building a property map.
+ *
+ * The property names are bound to slots once; {@link #reset(Entity)} then
+ * only records where each property is in the entity, and the typed getters
+ * read the first value straight from the proto, without boxing. One reader
+ * is reused for all entities of a loop and is not thread-safe.
+ *
+ * <pre>
+ * EntityReader reader = new EntityReader("str", "number");
+ * for (EntityResult result : results) {
+ * 	reader.reset(result.getEntity());
+ * 	long number = reader.getLong(1, 0);
+ * }
+ * </pre>
+ */
+public class EntityReader {
+
+	private final String[] names;
+	private final Map<String, Integer> slotByName;
+	/** Index of each slot's property in the current entity, or -1. */
+	private final int[] propertyIndex;
+	private Entity entity;
+
+	public EntityReader(String... names) {
+		this.names = names.clone();
+		this.slotByName = new HashMap<String, Integer>(names.length * 2);
+		for (int i = 0; i < names.length; i++) {
+			if (slotByName.put(names[i], i) != null) {
+				throw new IllegalArgumentException("duplicate property: " + names[i]);
+			}
+		}
+		this.propertyIndex = new int[names.length];
+		Arrays.fill(propertyIndex, -1);
+	}
+
+	/** Returns this reader, positioned on the given entity. */
+	public EntityReader reset(Entity entity) {
+		this.entity = entity;
+		Arrays.fill(propertyIndex, -1);
+		List<Property> properties = entity.getPropertyList();
+		for (int i = 0; i < properties.size(); i++) {
+			Integer slot = slotByName.get(properties.get(i).getName());
+			if (slot != null) {
+				propertyIndex[slot] = i;
+			}
+		}
+		return this;
+	}
+
+	public Entity getEntity() {
+		return entity;
+	}
+
+	/** Name of the last path element of the key, or null if it has an id. */
+	public String getKeyName() {
+		int size = entity.getKey().getPathElementCount();
+		return size == 0 ? null : entity.getKey().getPathElement(size - 1).getName();
+	}
+
+	public String getName(int slot) {
+		return names[slot];
+	}
+
+	/** True if the entity has the property with at least one value. */
+	public boolean has(int slot) {
+		return value(slot) != null;
+	}
+
+	public String getString(int slot) {
+		Value value = value(slot);
+		return value == null || !value.hasStringValue() ? null : value.getStringValue();
+	}
+
+	public long getLong(int slot, long defaultValue) {
+		Value value = value(slot);
+		return value == null || !value.hasIntegerValue() ? defaultValue : value.getIntegerValue();
+	}
+
+	public double getDouble(int slot, double defaultValue) {
+		Value value = value(slot);
+		return value == null || !value.hasDoubleValue() ? defaultValue : value.getDoubleValue();
+	}
+
+	public boolean getBoolean(int slot, boolean defaultValue) {
+		Value value = value(slot);
+		return value == null || !value.hasBooleanValue() ? defaultValue : value.getBooleanValue();
+	}
+
+	/**
+	 * Also accepts an integer value, which is how some projection queries
+	 * return timestamps.
+	 */
+	public long getTimestampMicros(int slot, long defaultValue) {
+		Value value = value(slot);
+		if (value == null) {
+			return defaultValue;
+		}
+		if (value.hasTimestampMicrosecondsValue()) {
+			return value.getTimestampMicrosecondsValue();
+		}
+		return value.hasIntegerValue() ? value.getIntegerValue() : defaultValue;
+	}
+
+	/** First value of the property, or null if it is absent. */
+	public Value value(int slot) {
+		int index = propertyIndex[slot];
+		if (index < 0) {
+			return null;
+		}
+		Property property = entity.getProperty(index);
+		return property.getValueCount() == 0 ? null : property.getValue(0);
+	}
+}
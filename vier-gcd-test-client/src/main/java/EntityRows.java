@@ -0,0 +1,82 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.Value;
+
+/**
+ * Converts entities to JSON rows for BigQuery: one column per property plus
+ * {@code __key__}, the key path as text. Timestamps become ISO-8601 strings,
+ * blobs base64 and key values their path; multi-valued properties become
+ * lists.
+ */
+public final class EntityRows {
+
+	/** Column holding the key path, e.g. {@code Parent:1/Child:name}. */
+	public static final String KEY_COLUMN = DatastoreOrdering.KEY_PROPERTY;
+
+	private EntityRows() {
+	}
+
+	public static Map<String, Object> toRow(Entity entity) {
+		Map<String, Object> row = new LinkedHashMap<String, Object>();
+		row.put(KEY_COLUMN, keyPath(entity.getKey()));
+		for (Property property : entity.getPropertyList()) {
+			if (property.getValueCount() == 1) {
+				row.put(property.getName(), toJson(property.getValue(0)));
+			} else if (property.getValueCount() > 1) {
+				List<Object> values = new ArrayList<Object>(property.getValueCount());
+				for (Value value : property.getValueList()) {
+					values.add(toJson(value));
+				}
+				row.put(property.getName(), values);
+			}
+		}
+		return row;
+	}
+
+	public static String keyPath(Key key) {
+		StringBuilder path = new StringBuilder();
+		for (Key.PathElement element : key.getPathElementList()) {
+			if (path.length() > 0) {
+				path.append('/');
+			}
+			path.append(element.getKind()).append(':');
+			if (element.hasId()) {
+				path.append(element.getId());
+			} else {
+				path.append(element.getName());
+			}
+		}
+		return path.toString();
+	}
+
+	private static Object toJson(Value value) {
+		if (value.hasStringValue()) {
+			return value.getStringValue();
+		} else if (value.hasIntegerValue()) {
+			return value.getIntegerValue();
+		} else if (value.hasDoubleValue()) {
+			return value.getDoubleValue();
+		} else if (value.hasBooleanValue()) {
+			return value.getBooleanValue();
+		} else if (value.hasTimestampMicrosecondsValue()) {
+			long micros = value.getTimestampMicrosecondsValue();
+			return Instant.ofEpochSecond(Math.floorDiv(micros, 1000000L), Math.floorMod(micros, 1000000L) * 1000)
+					.toString();
+		} else if (value.hasKeyValue()) {
+			return keyPath(value.getKeyValue());
+		} else if (value.hasBlobValue()) {
+			return Base64.getEncoder().encodeToString(value.getBlobValue().toByteArray());
+		} else if (value.hasBlobKeyValue()) {
+			return value.getBlobKeyValue();
+		}
+		return null;
+	}
+}
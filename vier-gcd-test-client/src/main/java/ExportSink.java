@@ -0,0 +1,16 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Destination of the rows exported by {@link DatastoreExporter}.
+ */
+public interface ExportSink extends Closeable {
+
+	/**
+	 * Writes rows read from one shard. Called concurrently for different
+	 * shards, but never concurrently for the same shard.
+	 */
+	void write(int shard, List<Map<String, Object>> rows) throws IOException;
+}
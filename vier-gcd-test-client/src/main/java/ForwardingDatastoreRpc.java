@@ -0,0 +1,55 @@
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionResponse;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.DatastoreV1.RollbackResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Forwards every RPC to another {@link DatastoreRpc}. Subclasses override the
+ * methods they want to wrap.
+ */
+public abstract class ForwardingDatastoreRpc implements DatastoreRpc {
+	protected final DatastoreRpc delegate;
+
+	protected ForwardingDatastoreRpc(DatastoreRpc delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public BlindWriteResponse blindWrite(BlindWriteRequest request) throws DatastoreException {
+		return delegate.blindWrite(request);
+	}
+
+	@Override
+	public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+		return delegate.lookup(request);
+	}
+
+	@Override
+	public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+		return delegate.runQuery(request);
+	}
+
+	@Override
+	public BeginTransactionResponse beginTransaction(BeginTransactionRequest request) throws DatastoreException {
+		return delegate.beginTransaction(request);
+	}
+
+	@Override
+	public CommitResponse commit(CommitRequest request) throws DatastoreException {
+		return delegate.commit(request);
+	}
+
+	@Override
+	public RollbackResponse rollback(RollbackRequest request) throws DatastoreException {
+		return delegate.rollback(request);
+	}
+}
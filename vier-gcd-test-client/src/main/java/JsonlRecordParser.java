@@ -0,0 +1,203 @@
+import java.nio.ByteBuffer;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+
+/**
+ * Parses one flat JSON object per line. Members that are not mapped to a
+ * column, and null values, are skipped; nested objects and arrays are
+ * rejected.
+ */
+public class JsonlRecordParser extends RecordParser {
+
+	private final Column[] columns;
+	/** Length of the last string or token read into the scratch buffer. */
+	private int length;
+
+	public JsonlRecordParser(String kind, Column[] columns) {
+		super(kind);
+		this.columns = columns.clone();
+	}
+
+	@Override
+	protected void parseFields(ByteBuffer buffer, int start, int end, Entity.Builder entity) {
+		int pos = skipWhitespace(buffer, start, end);
+		expect(buffer, pos, end, '{');
+		pos = skipWhitespace(buffer, pos + 1, end);
+		if (pos < end && buffer.get(pos) == '}') {
+			return;
+		}
+		while (true) {
+			expect(buffer, pos, end, '"');
+			pos = readString(buffer, pos + 1, end);
+			Column column = findColumn(length);
+			pos = skipWhitespace(buffer, pos, end);
+			expect(buffer, pos, end, ':');
+			pos = skipWhitespace(buffer, pos + 1, end);
+			if (pos >= end) {
+				throw new IllegalArgumentException("missing value");
+			}
+			byte b = buffer.get(pos);
+			if (b == '"') {
+				pos = readString(buffer, pos + 1, end);
+				if (column != null) {
+					addField(entity, column, length);
+				}
+			} else if (b == '{' || b == '[') {
+				throw new IllegalArgumentException("nested values are not supported");
+			} else {
+				pos = readToken(buffer, pos, end);
+				if (column != null && !isNull()) {
+					addField(entity, column, length);
+				}
+			}
+			pos = skipWhitespace(buffer, pos, end);
+			if (pos < end && buffer.get(pos) == ',') {
+				pos = skipWhitespace(buffer, pos + 1, end);
+				continue;
+			}
+			expect(buffer, pos, end, '}');
+			return;
+		}
+	}
+
+	private Column findColumn(int nameLength) {
+		for (Column column : columns) {
+			if (scratchEquals(column.nameBytes, nameLength)) {
+				return column;
+			}
+		}
+		return null;
+	}
+
+	private boolean isNull() {
+		return length == 4 && scratch[0] == 'n' && scratch[1] == 'u' && scratch[2] == 'l' && scratch[3] == 'l';
+	}
+
+	/** Reads a string after its opening quote, unescaped into the scratch buffer. */
+	private int readString(ByteBuffer buffer, int pos, int end) {
+		length = 0;
+		while (true) {
+			if (pos >= end) {
+				throw new IllegalArgumentException("unterminated string");
+			}
+			byte b = buffer.get(pos++);
+			if (b == '"') {
+				return pos;
+			}
+			if (b != '\\') {
+				put(b);
+				continue;
+			}
+			if (pos >= end) {
+				throw new IllegalArgumentException("unterminated escape");
+			}
+			byte escaped = buffer.get(pos++);
+			switch (escaped) {
+			case '"':
+			case '\\':
+			case '/':
+				put(escaped);
+				break;
+			case 'b':
+				put((byte) '\b');
+				break;
+			case 'f':
+				put((byte) '\f');
+				break;
+			case 'n':
+				put((byte) '\n');
+				break;
+			case 'r':
+				put((byte) '\r');
+				break;
+			case 't':
+				put((byte) '\t');
+				break;
+			case 'u':
+				int c = hex4(buffer, pos, end);
+				pos += 4;
+				if (Character.isHighSurrogate((char) c) && pos + 6 <= end && buffer.get(pos) == '\\'
+						&& buffer.get(pos + 1) == 'u') {
+					int low = hex4(buffer, pos + 2, end);
+					if (Character.isLowSurrogate((char) low)) {
+						c = Character.toCodePoint((char) c, (char) low);
+						pos += 6;
+					}
+				}
+				putCodePoint(c);
+				break;
+			default:
+				throw new IllegalArgumentException("invalid escape \\" + (char) escaped);
+			}
+		}
+	}
+
+	/** Reads a number, true, false or null. */
+	private int readToken(ByteBuffer buffer, int pos, int end) {
+		length = 0;
+		while (pos < end) {
+			byte b = buffer.get(pos);
+			if (b == ',' || b == '}' || b == ' ' || b == '\t') {
+				break;
+			}
+			put(b);
+			pos++;
+		}
+		return pos;
+	}
+
+	private void put(byte b) {
+		ensureScratch(length + 1);
+		scratch[length++] = b;
+	}
+
+	private void putCodePoint(int c) {
+		if (c < 0x80) {
+			put((byte) c);
+		} else if (c < 0x800) {
+			put((byte) (0xc0 | c >> 6));
+			put((byte) (0x80 | c & 0x3f));
+		} else if (c < 0x10000) {
+			put((byte) (0xe0 | c >> 12));
+			put((byte) (0x80 | c >> 6 & 0x3f));
+			put((byte) (0x80 | c & 0x3f));
+		} else {
+			put((byte) (0xf0 | c >> 18));
+			put((byte) (0x80 | c >> 12 & 0x3f));
+			put((byte) (0x80 | c >> 6 & 0x3f));
+			put((byte) (0x80 | c & 0x3f));
+		}
+	}
+
+	private static int hex4(ByteBuffer buffer, int pos, int end) {
+		if (pos + 4 > end) {
+			throw new IllegalArgumentException("truncated \\u escape");
+		}
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int digit = Character.digit(buffer.get(pos + i), 16);
+			if (digit < 0) {
+				throw new IllegalArgumentException("invalid \\u escape");
+			}
+			value = value << 4 | digit;
+		}
+		return value;
+	}
+
+	private static int skipWhitespace(ByteBuffer buffer, int pos, int end) {
+		while (pos < end) {
+			byte b = buffer.get(pos);
+			if (b != ' ' && b != '\t' && b != '\r') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	private static void expect(ByteBuffer buffer, int pos, int end, char c) {
+		if (pos >= end || buffer.get(pos) != c) {
+			throw new IllegalArgumentException("expected '" + c + "' at " + pos);
+		}
+	}
+}
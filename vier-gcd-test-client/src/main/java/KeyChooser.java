@@ -0,0 +1,127 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the key number of the next operation of a workload. Thread-safe;
+ * numbers are turned into key names by the workload's {@link KeyStrategy}.
+ */
+public abstract class KeyChooser {
+
+	/** Zipf constant used by YCSB. */
+	private static final double ZIPFIAN_CONSTANT = 0.99;
+
+	/** Number of the next key to insert; keys below it exist. */
+	protected final AtomicInteger insertCounter;
+
+	KeyChooser(AtomicInteger insertCounter) {
+		this.insertCounter = insertCounter;
+	}
+
+	/** Returns the number of an existing key. */
+	public abstract int next();
+
+	/** Returns the number of the key a write should go to. */
+	public int nextWrite() {
+		return next();
+	}
+
+	/**
+	 * @param recordCount keys {@code 0..recordCount-1} exist when the run
+	 *            starts
+	 */
+	public static KeyChooser create(Workload.KeyDistribution distribution, int recordCount) {
+		AtomicInteger insertCounter = new AtomicInteger(recordCount);
+		switch (distribution) {
+		case UNIFORM:
+			return new Uniform(insertCounter, recordCount);
+		case ZIPFIAN:
+			return new Zipfian(insertCounter, recordCount);
+		case LATEST:
+			return new Latest(insertCounter, recordCount);
+		default:
+			throw new IllegalArgumentException(distribution.name());
+		}
+	}
+
+	private static class Uniform extends KeyChooser {
+		private final int count;
+
+		Uniform(AtomicInteger insertCounter, int count) {
+			super(insertCounter);
+			this.count = count;
+		}
+
+		@Override
+		public int next() {
+			return ThreadLocalRandom.current().nextInt(count);
+		}
+	}
+
+	/**
+	 * Zipfian over {@code 0..count-1}, 0 being the most popular, after Gray et
+	 * al., "Quickly Generating Billion-Record Synthetic Databases", as in
+	 * YCSB. The key strategy spreads the popular numbers over the key space.
+	 */
+	private static class Zipfian extends KeyChooser {
+		private final int count;
+		private final double alpha;
+		private final double zetan;
+		private final double eta;
+		private final double half;
+
+		Zipfian(AtomicInteger insertCounter, int count) {
+			super(insertCounter);
+			this.count = count;
+			double zeta2 = zeta(2);
+			this.alpha = 1.0 / (1.0 - ZIPFIAN_CONSTANT);
+			this.zetan = zeta(count);
+			this.eta = (1 - Math.pow(2.0 / count, 1 - ZIPFIAN_CONSTANT)) / (1 - zeta2 / zetan);
+			this.half = 1 + Math.pow(0.5, ZIPFIAN_CONSTANT);
+		}
+
+		private static double zeta(int n) {
+			double sum = 0;
+			for (int i = 1; i <= n; i++) {
+				sum += 1 / Math.pow(i, ZIPFIAN_CONSTANT);
+			}
+			return sum;
+		}
+
+		@Override
+		public int next() {
+			double u = ThreadLocalRandom.current().nextDouble();
+			double uz = u * zetan;
+			if (uz < 1) {
+				return 0;
+			}
+			if (uz < half) {
+				return Math.min(1, count - 1);
+			}
+			return Math.min(count - 1, (int) (count * Math.pow(eta * u - eta + 1, alpha)));
+		}
+	}
+
+	/**
+	 * Zipfian distance back from the newest key, so recently inserted keys
+	 * are the most popular. Writes insert new keys; a read may pick a key
+	 * whose insert is still in flight and find nothing.
+	 */
+	private static class Latest extends KeyChooser {
+		private final Zipfian distance;
+
+		Latest(AtomicInteger insertCounter, int count) {
+			super(insertCounter);
+			this.distance = new Zipfian(insertCounter, count);
+		}
+
+		@Override
+		public int next() {
+			return Math.max(0, insertCounter.get() - 1 - distance.next());
+		}
+
+		@Override
+		public int nextWrite() {
+			return insertCounter.getAndIncrement();
+		}
+	}
+}
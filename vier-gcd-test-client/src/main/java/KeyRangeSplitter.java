@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.CompositeFilter;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.Filter;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.PropertyExpression;
+import com.google.api.services.datastore.DatastoreV1.PropertyFilter;
+import com.google.api.services.datastore.DatastoreV1.PropertyOrder;
+import com.google.api.services.datastore.DatastoreV1.PropertyReference;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.Value;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Splits a kind into {@code __key__} ranges, or ranges of a property value,
+ * of about the same size, so that the ranges can be queried in parallel.
+ *
+ * The split points are taken from a query ordered by {@code __scatter__},
+ * which returns a random sample of the entities. Datastore sets
+ * {@code __scatter__} on a small fraction of the entities only, so a small
+ * kind may return fewer samples than wanted; then fewer ranges are returned,
+ * and a single range covering the whole kind if there are none or the query
+ * fails.
+ */
+public class KeyRangeSplitter {
+	private static final Logger logger = Logger.getLogger(KeyRangeSplitter.class.getName());
+
+	/** Samples taken per wanted range, to even out the range sizes. */
+	public static final int OVERSAMPLING = 32;
+
+	private static final Comparator<Value> VALUE_ORDER = new Comparator<Value>() {
+		@Override
+		public int compare(Value a, Value b) {
+			return DatastoreOrdering.compareValues(a, b);
+		}
+	};
+
+	/** A range of keys, {@code [start, end)}; a null bound is open. */
+	public static class KeyRange {
+		private final Key start;
+		private final Key end;
+
+		public KeyRange(Key start, Key end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		/** Inclusive lower bound, or null. */
+		public Key getStart() {
+			return start;
+		}
+
+		/** Exclusive upper bound, or null. */
+		public Key getEnd() {
+			return end;
+		}
+
+		public boolean contains(Key key) {
+			return (start == null || DatastoreOrdering.compareKeys(key, start) >= 0)
+					&& (end == null || DatastoreOrdering.compareKeys(key, end) < 0);
+		}
+
+		/**
+		 * Restricts the query to this range, combined with the filter it
+		 * already has.
+		 */
+		public Query.Builder restrict(Query.Builder query) {
+			return KeyRangeSplitter.restrict(query, DatastoreOrdering.KEY_PROPERTY,
+					start == null ? null : Value.newBuilder().setKeyValue(start).build(),
+					end == null ? null : Value.newBuilder().setKeyValue(end).build());
+		}
+
+		@Override
+		public String toString() {
+			return "[" + describe(start) + ", " + describe(end) + ")";
+		}
+
+		private static String describe(Key key) {
+			if (key == null) {
+				return "-";
+			}
+			Key.PathElement last = key.getPathElement(key.getPathElementCount() - 1);
+			return last.getKind() + ":" + (last.hasId() ? String.valueOf(last.getId()) : last.getName());
+		}
+	}
+
+	private final DatastoreRpc datastore;
+
+	public KeyRangeSplitter(DatastoreRpc datastore) {
+		this.datastore = datastore;
+	}
+
+	/**
+	 * Returns at most {@code shards} ranges in key order that together cover
+	 * the whole kind.
+	 */
+	public List<KeyRange> split(String kind, int shards) {
+		if (shards <= 1) {
+			return Collections.singletonList(new KeyRange(null, null));
+		}
+		List<Key> sample = new ArrayList<Key>();
+		try {
+			for (Entity entity : sample(kind, shards * OVERSAMPLING, true)) {
+				sample.add(DatastoreKeys.withoutDatasetId(entity.getKey()));
+			}
+		} catch (DatastoreException exception) {
+			logger.warning("__scatter__ query on " + kind + " failed (" + exception.code
+					+ "), using a single range");
+			return Collections.singletonList(new KeyRange(null, null));
+		}
+		List<Key> splitPoints = pickSplitPoints(kind, sample, shards, DatastoreOrdering.KEY_ORDER);
+
+		List<KeyRange> ranges = new ArrayList<KeyRange>(splitPoints.size() + 1);
+		Key start = null;
+		for (Key end : splitPoints) {
+			ranges.add(new KeyRange(start, end));
+			start = end;
+		}
+		ranges.add(new KeyRange(start, null));
+		return ranges;
+	}
+
+	/**
+	 * Returns ascending values of {@code property} that split the kind into at
+	 * most {@code shards} ranges, to be applied with
+	 * {@link #restrict(Query.Builder, String, Value, Value)}. Empty if the kind
+	 * cannot be split. Entities are sampled whole, and a multi-valued property
+	 * is represented by its smallest value.
+	 */
+	public List<Value> splitValues(String kind, String property, int shards) {
+		if (shards <= 1) {
+			return Collections.emptyList();
+		}
+		List<Value> sample = new ArrayList<Value>();
+		try {
+			for (Entity entity : sample(kind, shards * OVERSAMPLING, false)) {
+				Value value = DatastoreOrdering.sortValue(entity, property, PropertyOrder.Direction.ASCENDING);
+				if (value != null) {
+					sample.add(value);
+				}
+			}
+		} catch (DatastoreException exception) {
+			logger.warning("__scatter__ query on " + kind + " failed (" + exception.code
+					+ "), using a single range");
+			return Collections.emptyList();
+		}
+		return pickSplitPoints(kind, sample, shards, VALUE_ORDER);
+	}
+
+	/**
+	 * Restricts the query to {@code start <= property < end}, combined with
+	 * the filter it already has; a null bound is open.
+	 */
+	public static Query.Builder restrict(Query.Builder query, String property, Value start, Value end) {
+		List<Filter> filters = new ArrayList<Filter>();
+		if (query.hasFilter()) {
+			filters.add(query.getFilter());
+		}
+		if (start != null) {
+			filters.add(filter(property, PropertyFilter.Operator.GREATER_THAN_OR_EQUAL, start));
+		}
+		if (end != null) {
+			filters.add(filter(property, PropertyFilter.Operator.LESS_THAN, end));
+		}
+		if (filters.size() == 1) {
+			query.setFilter(filters.get(0));
+		} else if (filters.size() > 1) {
+			query.setFilter(Filter.newBuilder().setCompositeFilter(
+					CompositeFilter.newBuilder().setOperator(CompositeFilter.Operator.AND).addAllFilter(filters)));
+		}
+		return query;
+	}
+
+	private static Filter filter(String property, PropertyFilter.Operator operator, Value value) {
+		return Filter.newBuilder().setPropertyFilter(
+				PropertyFilter.newBuilder().setProperty(PropertyReference.newBuilder().setName(property))
+						.setOperator(operator).setValue(value)).build();
+	}
+
+	/** Evenly spaced, distinct samples, sorted. */
+	private static <T> List<T> pickSplitPoints(String kind, List<T> sample, int shards, Comparator<T> order) {
+		Collections.sort(sample, order);
+		List<T> splitPoints = new ArrayList<T>();
+		int count = Math.min(shards, sample.size() + 1);
+		for (int i = 1; i < count; i++) {
+			T point = sample.get(i * sample.size() / count);
+			if (splitPoints.isEmpty() || order.compare(splitPoints.get(splitPoints.size() - 1), point) < 0) {
+				splitPoints.add(point);
+			}
+		}
+		if (splitPoints.size() + 1 < shards) {
+			logger.info("only " + sample.size() + " __scatter__ samples in " + kind + ", using "
+					+ (splitPoints.size() + 1) + " ranges instead of " + shards);
+		}
+		return splitPoints;
+	}
+
+	private List<Entity> sample(String kind, int count, boolean keysOnly) throws DatastoreException {
+		RunQueryRequest.Builder req = RunQueryRequest.newBuilder();
+		Query.Builder query = req.getQueryBuilder();
+		query.addKindBuilder().setName(kind);
+		if (keysOnly) {
+			query.addProjection(PropertyExpression.newBuilder().setProperty(
+					PropertyReference.newBuilder().setName(DatastoreOrdering.KEY_PROPERTY)));
+		}
+		query.addOrder(PropertyOrder.newBuilder()
+				.setProperty(PropertyReference.newBuilder().setName(DatastoreOrdering.SCATTER_PROPERTY))
+				.setDirection(PropertyOrder.Direction.ASCENDING));
+		query.setLimit(count);
+
+		List<Entity> entities = new ArrayList<Entity>(count);
+		for (EntityResult result : datastore.runQuery(req.build()).getBatch().getEntityResultList()) {
+			entities.add(result.getEntity());
+		}
+		return entities;
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * How the i-th entity of a bulk write is named. Sequential names put
+ * consecutive writes next to each other in the key space, which concentrates
+ * them on a narrow key range; the other strategies spread them out.
+ */
+public enum KeyStrategy {
+	/** {@code keyName1}, {@code keyName2}, ... */
+	SEQUENTIAL {
+		@Override
+		public String keyName(int i) {
+			return "keyName" + i;
+		}
+	},
+	/**
+	 * A 4 hex digit prefix derived from a hash of i, so that consecutive
+	 * numbers land far apart, followed by the sequential name.
+	 */
+	HASHED {
+		@Override
+		public String keyName(int i) {
+			return hex(mix(i) >>> 16, 4) + "-keyName" + i;
+		}
+	},
+	/**
+	 * The bits of i reversed, as 8 hex digits, followed by the sequential
+	 * name. Consecutive numbers differ in the leading digits, and the first
+	 * 2^n names split the key space evenly.
+	 */
+	REVERSED {
+		@Override
+		public String keyName(int i) {
+			return hex(Integer.reverse(i), 8) + "-keyName" + i;
+		}
+	},
+	/** A random UUID; not reproducible, so the names cannot be looked up again. */
+	UUID {
+		@Override
+		public String keyName(int i) {
+			return java.util.UUID.randomUUID().toString();
+		}
+	};
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public abstract String keyName(int i);
+
+	/** {@code -DkeyStrategy=sequential|hashed|reversed|uuid}, sequential by default. */
+	public static KeyStrategy fromProperty() {
+		return valueOf(System.getProperty("keyStrategy", "sequential").toUpperCase());
+	}
+
+	/** Finalizer of MurmurHash3. */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static String hex(int value, int digits) {
+		char[] chars = new char[digits];
+		for (int d = digits - 1; d >= 0; d--) {
+			chars[d] = HEX[value & 0xf];
+			value >>>= 4;
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,132 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram. Values are
+ * nanoseconds, bucketed with 128 sub-buckets per power of two (relative error
+ * under 1%). Recording is lock-free and does not allocate, so it can be called
+ * from any number of threads inside the measured loop.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	/** Larger values (about 18 minutes) are recorded as this value. */
+	private static final long MAX_VALUE = (1L << 40) - 1;
+	private static final int BUCKET_COUNT = indexOf(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void recordNanos(long nanos) {
+		long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+		counts.incrementAndGet(indexOf(value));
+		totalCount.incrementAndGet();
+		totalNanos.addAndGet(value);
+		long max = maxNanos.get();
+		while (value > max && !maxNanos.compareAndSet(max, value)) {
+			max = maxNanos.get();
+		}
+	}
+
+	/** Records the time elapsed since {@code startNanos} ({@link System#nanoTime()}). */
+	public void recordSince(long startNanos) {
+		recordNanos(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public double getMeanNanos() {
+		long count = totalCount.get();
+		return count == 0 ? 0.0 : (double) totalNanos.get() / count;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	/**
+	 * Returns the value at the given percentile (0-100), as the highest value
+	 * equivalent to the bucket that contains it.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(highestEquivalentValue(i), maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	/** Returns a copy of the current counts. */
+	public LatencyHistogram copy() {
+		LatencyHistogram copy = new LatencyHistogram();
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			copy.counts.set(i, counts.get(i));
+		}
+		copy.totalCount.set(totalCount.get());
+		copy.totalNanos.set(totalNanos.get());
+		copy.maxNanos.set(maxNanos.get());
+		return copy;
+	}
+
+	/**
+	 * Returns the values recorded since {@code earlier}, a {@link #copy()} of
+	 * this histogram taken before. The max is bucket precision.
+	 */
+	public LatencyHistogram since(LatencyHistogram earlier) {
+		LatencyHistogram interval = new LatencyHistogram();
+		long max = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			long count = counts.get(i) - earlier.counts.get(i);
+			interval.counts.set(i, count);
+			if (count > 0) {
+				max = highestEquivalentValue(i);
+			}
+		}
+		interval.totalCount.set(totalCount.get() - earlier.totalCount.get());
+		interval.totalNanos.set(totalNanos.get() - earlier.totalNanos.get());
+		interval.maxNanos.set(Math.min(max, maxNanos.get()));
+		return interval;
+	}
+
+	/**
+	 * Formats count, mean, p50/p90/p99/p99.9 and max in milliseconds.
+	 */
+	public String summary(String name) {
+		return String.format("%s: count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f ms", name,
+				getCount(), getMeanNanos() / 1e6, getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6,
+				getValueAtPercentile(99) / 1e6, getValueAtPercentile(99.9) / 1e6, getMaxNanos() / 1e6);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		long top = index - (shift << SUB_BUCKET_BITS);
+		return ((top + 1) << shift) - 1;
+	}
+}
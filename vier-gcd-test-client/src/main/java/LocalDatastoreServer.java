@@ -0,0 +1,664 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionResponse;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.Filter;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+import com.google.api.services.datastore.DatastoreV1.MutationResult;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.PropertyExpression;
+import com.google.api.services.datastore.DatastoreV1.PropertyFilter;
+import com.google.api.services.datastore.DatastoreV1.PropertyOrder;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.QueryResultBatch;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.DatastoreV1.RollbackResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.DatastoreV1.Value;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-memory stand-in for the Datastore protobuf RPC endpoint, for running the
+ * ClientTest classes without a live dataset.
+ *
+ * <pre>
+ * java LocalDatastoreServer 8080
+ * DATASTORE_HOST=http://localhost:8080 java ClientTest3 my-dataset
+ * </pre>
+ *
+ * Supports blindWrite, lookup, runQuery (single kind, property and
+ * {@code __key__} filters, orders including {@code __scatter__}, offset,
+ * limit, cursors and projections), beginTransaction, commit and rollback.
+ * Commits fail with 409 when another write touched one of their entity
+ * groups after the transaction began. The dataset id in the URL is ignored;
+ * all datasets share one store.
+ *
+ * There is no authentication, so the server listens on the loopback address
+ * only, unless {@code -Dlocal.host} names another address to bind to.
+ */
+public class LocalDatastoreServer {
+	private static final Logger logger = Logger.getLogger(LocalDatastoreServer.class.getName());
+
+	/** Default maximum number of results returned by one runQuery. */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+
+	/** Number of sorted query results kept. */
+	private static final int SORTED_CACHE_SIZE = 16;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final int maxBatchSize;
+
+	/** Entities by kind, each kind in key order. */
+	private final ConcurrentMap<String, ConcurrentSkipListMap<Key, Entity>> kinds = new ConcurrentHashMap<String, ConcurrentSkipListMap<Key, Entity>>();
+	/** Commit sequence of the last write to each entity group root. */
+	private final ConcurrentMap<Key, Long> groupVersions = new ConcurrentHashMap<Key, Long>();
+	private final ConcurrentMap<ByteString, Transaction> transactions = new ConcurrentHashMap<ByteString, Transaction>();
+	private final AtomicLong commitSequence = new AtomicLong();
+	private final AtomicLong idSequence = new AtomicLong(1000);
+	private final SecureRandom random = new SecureRandom();
+	/** Sorted results of ordered queries by kind, filter and orders; see {@link #sorted}. */
+	private final Map<Query, SortedSnapshot> sortedCache = new LinkedHashMap<Query, SortedSnapshot>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Query, SortedSnapshot> eldest) {
+			return size() > SORTED_CACHE_SIZE;
+		}
+	};
+	/**
+	 * Blind writes and commits take the lock exclusively, so a mutation's
+	 * existence checks, sequence number and puts are atomic.
+	 * beginTransaction reads the sequence under the shared lock, so it never
+	 * starts from a write that is not fully applied yet.
+	 */
+	private final ReadWriteLock writeLock = new ReentrantReadWriteLock();
+
+	public LocalDatastoreServer(int port) throws IOException {
+		this(port, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	public LocalDatastoreServer(int port, int maxBatchSize) throws IOException {
+		this(null, port, maxBatchSize);
+	}
+
+	/** Binds to {@code host}, or to the loopback address if it is null. */
+	public LocalDatastoreServer(String host, int port, int maxBatchSize) throws IOException {
+		this.maxBatchSize = maxBatchSize;
+		InetSocketAddress address = host == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+				: new InetSocketAddress(host, port);
+		this.server = HttpServer.create(address, 0);
+		this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+		server.setExecutor(executor);
+		server.createContext("/", new RpcHandler());
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		LocalDatastoreServer server = new LocalDatastoreServer(System.getProperty("local.host"), port,
+				Integer.getInteger("local.batchSize", DEFAULT_MAX_BATCH_SIZE));
+		server.start();
+		logger.info("listening on port " + server.getPort() + ", run clients with DATASTORE_HOST=" + server.getUrl());
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/** Value for the DATASTORE_HOST environment variable. */
+	public String getUrl() {
+		return "http://" + server.getAddress().getHostString() + ":" + getPort();
+	}
+
+	/** Removes all entities and open transactions. */
+	public void clear() {
+		kinds.clear();
+		groupVersions.clear();
+		transactions.clear();
+		synchronized (sortedCache) {
+			sortedCache.clear();
+		}
+	}
+
+	private class RpcHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				String path = exchange.getRequestURI().getPath();
+				String method = path.substring(path.lastIndexOf('/') + 1);
+				InputStream in = exchange.getRequestBody();
+				Message response;
+				if ("blindWrite".equals(method)) {
+					response = blindWrite(BlindWriteRequest.parseFrom(in));
+				} else if ("lookup".equals(method)) {
+					response = lookup(LookupRequest.parseFrom(in));
+				} else if ("runQuery".equals(method)) {
+					response = runQuery(RunQueryRequest.parseFrom(in));
+				} else if ("beginTransaction".equals(method)) {
+					response = beginTransaction(BeginTransactionRequest.parseFrom(in));
+				} else if ("commit".equals(method)) {
+					response = commit(CommitRequest.parseFrom(in));
+				} else if ("rollback".equals(method)) {
+					response = rollback(RollbackRequest.parseFrom(in));
+				} else {
+					throw new RpcException(404, "unknown method: " + method);
+				}
+				byte[] bytes = response.toByteArray();
+				exchange.getResponseHeaders().set("Content-Type", "application/x-protobuf");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			} catch (RpcException e) {
+				sendError(exchange, e.code, e.getMessage());
+			} catch (InvalidProtocolBufferException e) {
+				sendError(exchange, 400, "malformed request: " + e.getMessage());
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "error", e);
+				sendError(exchange, 500, e.toString());
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private void sendError(HttpExchange exchange, int code, String message) throws IOException {
+			byte[] bytes = message.getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+			exchange.sendResponseHeaders(code, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}
+	}
+
+	BlindWriteResponse blindWrite(BlindWriteRequest request) throws RpcException {
+		writeLock.writeLock().lock();
+		try {
+			return BlindWriteResponse.newBuilder().setMutationResult(apply(request.getMutation())).build();
+		} finally {
+			writeLock.writeLock().unlock();
+		}
+	}
+
+	LookupResponse lookup(LookupRequest request) throws RpcException {
+		Transaction tx = transaction(request.getReadOptions().hasTransaction() ? request.getReadOptions()
+				.getTransaction() : null);
+		LookupResponse.Builder response = LookupResponse.newBuilder();
+		for (Key key : request.getKeyList()) {
+			Key normalized = normalize(key);
+			if (tx != null) {
+				tx.groups.add(root(normalized));
+			}
+			Entity entity = table(kindOf(normalized)).get(normalized);
+			if (entity != null) {
+				response.addFound(EntityResult.newBuilder().setEntity(entity));
+			} else {
+				response.addMissing(EntityResult.newBuilder().setEntity(Entity.newBuilder().setKey(key)));
+			}
+		}
+		return response.build();
+	}
+
+	RunQueryResponse runQuery(RunQueryRequest request) throws RpcException {
+		if (request.hasGqlQuery()) {
+			throw new RpcException(400, "GQL queries are not supported");
+		}
+		Query query = request.getQuery();
+		if (query.getKindCount() != 1) {
+			throw new RpcException(400, "exactly one kind is required");
+		}
+		return RunQueryResponse.newBuilder().setBatch(execute(query)).build();
+	}
+
+	private QueryResultBatch execute(Query query) throws RpcException {
+		List<PropertyOrder> orders = query.getOrderList();
+		Entity start = query.hasStartCursor() ? parseCursor(query.getStartCursor()) : null;
+		NavigableMap<Key, Entity> table = table(query.getKind(0).getName());
+
+		Comparator<Entity> order = DatastoreOrdering.entityOrder(orders);
+		Iterable<Entity> candidates;
+		if (orders.isEmpty()) {
+			// Key order is the table order, so results can be streamed.
+			candidates = (start != null ? table.tailMap(start.getKey(), false) : table).values();
+		} else {
+			// Each page of a cursor scan reuses the sorted results and starts
+			// right after the cursor.
+			List<Entity> sorted = sorted(query, table);
+			int from = 0;
+			if (start != null) {
+				int index = Collections.binarySearch(sorted, start, order);
+				from = index >= 0 ? index + 1 : -(index + 1);
+			}
+			candidates = sorted.subList(from, sorted.size());
+		}
+
+		EntityResult.ResultType resultType = resultType(query);
+		int offset = query.getOffset();
+		int limit = query.hasLimit() ? query.getLimit() : Integer.MAX_VALUE;
+		int batchLimit = Math.min(limit, maxBatchSize);
+		int skipped = 0;
+		boolean more = false;
+		Entity last = null;
+		QueryResultBatch.Builder batch = QueryResultBatch.newBuilder().setEntityResultType(resultType);
+		for (Entity entity : candidates) {
+			if (orders.isEmpty() && !matches(entity, query.getFilter())) {
+				continue;
+			}
+			if (batch.getEntityResultCount() == batchLimit) {
+				more = true;
+				break;
+			}
+			last = entity;
+			if (skipped < offset) {
+				skipped++;
+				continue;
+			}
+			batch.addEntityResult(EntityResult.newBuilder().setEntity(project(entity, query, resultType)));
+		}
+
+		if (!more) {
+			batch.setMoreResults(QueryResultBatch.MoreResultsType.NO_MORE_RESULTS);
+		} else if (batch.getEntityResultCount() >= limit) {
+			batch.setMoreResults(QueryResultBatch.MoreResultsType.MORE_RESULTS_AFTER_LIMIT);
+		} else {
+			batch.setMoreResults(QueryResultBatch.MoreResultsType.NOT_FINISHED);
+		}
+		if (last != null) {
+			batch.setEndCursor(cursorOf(last, orders));
+		} else if (query.hasStartCursor()) {
+			batch.setEndCursor(query.getStartCursor());
+		}
+		return batch.setSkippedResults(skipped).build();
+	}
+
+	/**
+	 * The entities of the query's kind that match its filter, sorted by its
+	 * orders. The result is cached per kind, filter and orders until the next
+	 * write, so a cursor scan sorts the kind once instead of once per page.
+	 */
+	private List<Entity> sorted(Query query, NavigableMap<Key, Entity> table) {
+		Query.Builder cacheKey = Query.newBuilder().addKind(query.getKind(0)).addAllOrder(query.getOrderList());
+		if (query.hasFilter()) {
+			cacheKey.setFilter(query.getFilter());
+		}
+		Query key = cacheKey.build();
+		// Writes take the lock exclusively, so the sequence matches the
+		// table contents while it is held.
+		writeLock.readLock().lock();
+		try {
+			long version = commitSequence.get();
+			synchronized (sortedCache) {
+				SortedSnapshot snapshot = sortedCache.get(key);
+				if (snapshot != null && snapshot.version == version) {
+					return snapshot.entities;
+				}
+			}
+			List<PropertyOrder> orders = query.getOrderList();
+			List<Entity> matched = new ArrayList<Entity>();
+			for (Entity entity : table.values()) {
+				if (hasOrderedProperties(entity, orders) && matches(entity, query.getFilter())) {
+					matched.add(entity);
+				}
+			}
+			Collections.sort(matched, DatastoreOrdering.entityOrder(orders));
+			List<Entity> entities = Collections.unmodifiableList(matched);
+			synchronized (sortedCache) {
+				sortedCache.put(key, new SortedSnapshot(version, entities));
+			}
+			return entities;
+		} finally {
+			writeLock.readLock().unlock();
+		}
+	}
+
+	BeginTransactionResponse beginTransaction(BeginTransactionRequest request) {
+		byte[] id = new byte[16];
+		random.nextBytes(id);
+		ByteString handle = ByteString.copyFrom(id);
+		long startSequence;
+		writeLock.readLock().lock();
+		try {
+			startSequence = commitSequence.get();
+		} finally {
+			writeLock.readLock().unlock();
+		}
+		transactions.put(handle, new Transaction(startSequence));
+		return BeginTransactionResponse.newBuilder().setTransaction(handle).build();
+	}
+
+	CommitResponse commit(CommitRequest request) throws RpcException {
+		Transaction tx = transactions.remove(request.getTransaction());
+		if (tx == null) {
+			throw new RpcException(400, "unknown or finished transaction");
+		}
+		writeLock.writeLock().lock();
+		try {
+			Set<Key> groups = new HashSet<Key>(tx.groups);
+			for (Key key : DatastoreKeys.mutatedKeys(request.getMutation())) {
+				groups.add(root(normalize(key)));
+			}
+			for (Key group : groups) {
+				Long version = groupVersions.get(group);
+				if (version != null && version > tx.startSequence) {
+					throw new RpcException(409, "too much contention on these datastore entities. please try again.");
+				}
+			}
+			return CommitResponse.newBuilder().setMutationResult(apply(request.getMutation())).build();
+		} finally {
+			writeLock.writeLock().unlock();
+		}
+	}
+
+	RollbackResponse rollback(RollbackRequest request) {
+		transactions.remove(request.getTransaction());
+		return RollbackResponse.getDefaultInstance();
+	}
+
+	private MutationResult apply(Mutation mutation) throws RpcException {
+		for (Entity entity : mutation.getUpdateList()) {
+			if (!table(kindOf(entity.getKey())).containsKey(normalize(entity.getKey()))) {
+				throw new RpcException(400, "no entity to update: " + entity.getKey());
+			}
+		}
+		for (Entity entity : mutation.getInsertList()) {
+			if (table(kindOf(entity.getKey())).containsKey(normalize(entity.getKey()))) {
+				throw new RpcException(400, "entity already exists: " + entity.getKey());
+			}
+		}
+		long version = commitSequence.incrementAndGet();
+		MutationResult.Builder result = MutationResult.newBuilder();
+		int updates = 0;
+		for (Entity entity : mutation.getUpsertList()) {
+			put(entity, version);
+			updates++;
+		}
+		for (Entity entity : mutation.getUpdateList()) {
+			put(entity, version);
+			updates++;
+		}
+		for (Entity entity : mutation.getInsertList()) {
+			put(entity, version);
+			updates++;
+		}
+		for (Entity entity : mutation.getInsertAutoIdList()) {
+			Key.Builder key = entity.getKey().toBuilder();
+			int last = key.getPathElementCount() - 1;
+			key.setPathElement(last, key.getPathElement(last).toBuilder().clearName()
+					.setId(idSequence.incrementAndGet()));
+			put(entity.toBuilder().setKey(key).build(), version);
+			result.addInsertAutoIdKey(key);
+			updates++;
+		}
+		for (Key key : mutation.getDeleteList()) {
+			Key normalized = normalize(key);
+			if (table(kindOf(normalized)).remove(normalized) != null) {
+				touch(normalized, version);
+				updates++;
+			}
+		}
+		return result.setIndexUpdates(updates).build();
+	}
+
+	private void put(Entity entity, long version) {
+		Key key = normalize(entity.getKey());
+		if (key != entity.getKey()) {
+			entity = entity.toBuilder().setKey(key).build();
+		}
+		table(kindOf(key)).put(key, entity);
+		touch(key, version);
+	}
+
+	private void touch(Key key, long version) {
+		Key root = root(key);
+		Long previous = groupVersions.putIfAbsent(root, version);
+		while (previous != null && previous < version && !groupVersions.replace(root, previous, version)) {
+			previous = groupVersions.get(root);
+		}
+	}
+
+	private ConcurrentSkipListMap<Key, Entity> table(String kind) {
+		ConcurrentSkipListMap<Key, Entity> table = kinds.get(kind);
+		if (table == null) {
+			ConcurrentSkipListMap<Key, Entity> created = new ConcurrentSkipListMap<Key, Entity>(
+					DatastoreOrdering.KEY_ORDER);
+			table = kinds.putIfAbsent(kind, created);
+			if (table == null) {
+				table = created;
+			}
+		}
+		return table;
+	}
+
+	private Transaction transaction(ByteString handle) throws RpcException {
+		if (handle == null) {
+			return null;
+		}
+		Transaction tx = transactions.get(handle);
+		if (tx == null) {
+			throw new RpcException(400, "unknown or finished transaction");
+		}
+		return tx;
+	}
+
+	/** Keys are stored without partition id, which the clients leave empty. */
+	private static Key normalize(Key key) {
+		return key.hasPartitionId() ? key.toBuilder().clearPartitionId().build() : key;
+	}
+
+	private static Key root(Key key) {
+		if (key.getPathElementCount() <= 1) {
+			return key;
+		}
+		return Key.newBuilder().addPathElement(key.getPathElement(0)).build();
+	}
+
+	private static String kindOf(Key key) {
+		return key.getPathElement(key.getPathElementCount() - 1).getKind();
+	}
+
+	private static boolean hasOrderedProperties(Entity entity, List<PropertyOrder> orders) {
+		for (PropertyOrder order : orders) {
+			if (DatastoreOrdering.getProperty(entity, order.getProperty().getName()) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matches(Entity entity, Filter filter) {
+		if (filter.hasCompositeFilter()) {
+			for (Filter child : filter.getCompositeFilter().getFilterList()) {
+				if (!matches(entity, child)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (!filter.hasPropertyFilter()) {
+			return true;
+		}
+		PropertyFilter propertyFilter = filter.getPropertyFilter();
+		if (propertyFilter.getOperator() == PropertyFilter.Operator.HAS_ANCESTOR) {
+			return isAncestor(propertyFilter.getValue().getKeyValue(), entity.getKey());
+		}
+		Property property = DatastoreOrdering.getProperty(entity, propertyFilter.getProperty().getName());
+		if (property == null) {
+			return false;
+		}
+		for (Value value : property.getValueList()) {
+			int c = DatastoreOrdering.compareValues(value, propertyFilter.getValue());
+			switch (propertyFilter.getOperator()) {
+			case LESS_THAN:
+				if (c < 0) {
+					return true;
+				}
+				break;
+			case LESS_THAN_OR_EQUAL:
+				if (c <= 0) {
+					return true;
+				}
+				break;
+			case GREATER_THAN:
+				if (c > 0) {
+					return true;
+				}
+				break;
+			case GREATER_THAN_OR_EQUAL:
+				if (c >= 0) {
+					return true;
+				}
+				break;
+			case EQUAL:
+				if (c == 0) {
+					return true;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isAncestor(Key ancestor, Key key) {
+		if (ancestor.getPathElementCount() > key.getPathElementCount()) {
+			return false;
+		}
+		Key.Builder prefix = Key.newBuilder();
+		for (int i = 0; i < ancestor.getPathElementCount(); i++) {
+			prefix.addPathElement(key.getPathElement(i));
+		}
+		return DatastoreOrdering.compareKeys(ancestor, prefix.build()) == 0;
+	}
+
+	private static EntityResult.ResultType resultType(Query query) {
+		if (query.getProjectionCount() == 0) {
+			return EntityResult.ResultType.FULL;
+		}
+		for (PropertyExpression expression : query.getProjectionList()) {
+			if (!DatastoreOrdering.KEY_PROPERTY.equals(expression.getProperty().getName())) {
+				return EntityResult.ResultType.PROJECTION;
+			}
+		}
+		return EntityResult.ResultType.KEY_ONLY;
+	}
+
+	private static Entity project(Entity entity, Query query, EntityResult.ResultType resultType) {
+		if (resultType == EntityResult.ResultType.FULL) {
+			return entity;
+		}
+		Entity.Builder projected = Entity.newBuilder().setKey(entity.getKey());
+		if (resultType == EntityResult.ResultType.PROJECTION) {
+			for (PropertyExpression expression : query.getProjectionList()) {
+				String name = expression.getProperty().getName();
+				Property property = DatastoreOrdering.getProperty(entity, name);
+				if (property != null && !DatastoreOrdering.KEY_PROPERTY.equals(name)) {
+					projected.addProperty(property);
+				}
+			}
+		}
+		return projected.build();
+	}
+
+	/**
+	 * A cursor is the key of the last returned entity together with the values
+	 * it was sorted by, so the next query resumes right after it.
+	 */
+	private static ByteString cursorOf(Entity entity, List<PropertyOrder> orders) {
+		Entity.Builder cursor = Entity.newBuilder().setKey(entity.getKey());
+		for (PropertyOrder order : orders) {
+			String name = order.getProperty().getName();
+			cursor.addProperty(Property.newBuilder().setName(name)
+					.addValue(DatastoreOrdering.sortValue(entity, name, order.getDirection())));
+		}
+		return cursor.build().toByteString();
+	}
+
+	private static Entity parseCursor(ByteString cursor) throws RpcException {
+		try {
+			return Entity.parseFrom(cursor);
+		} catch (InvalidProtocolBufferException e) {
+			throw new RpcException(400, "invalid cursor");
+		}
+	}
+
+	private static class SortedSnapshot {
+		/** Commit sequence the entities were read at. */
+		final long version;
+		final List<Entity> entities;
+
+		SortedSnapshot(long version, List<Entity> entities) {
+			this.version = version;
+			this.entities = entities;
+		}
+	}
+
+	private static class Transaction {
+		final long startSequence;
+		/** Entity groups read inside the transaction. */
+		final Set<Key> groups = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+
+		Transaction(long startSequence) {
+			this.startSequence = startSequence;
+		}
+	}
+
+	/** Error returned to the client with the given HTTP status code. */
+	static class RpcException extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int code;
+
+		RpcException(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+}
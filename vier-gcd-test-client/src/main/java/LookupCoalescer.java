@@ -0,0 +1,247 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Merges single-key lookups from concurrent callers into multi-key
+ * LookupRequests. A batch is sent when it reaches {@code maxBatchSize} keys
+ * or {@code window} after its first key arrived, whichever comes first. Up to
+ * {@code maxInFlight} batches are sent concurrently.
+ *
+ * Duplicate keys within a batch are looked up once. Keys the server returns
+ * as deferred are queued again.
+ */
+public class LookupCoalescer implements AutoCloseable {
+	private static final Logger logger = Logger.getLogger(LookupCoalescer.class.getName());
+
+	private final DatastoreRpc datastore;
+	private final int maxBatchSize;
+	private final long windowNanos;
+	private final BlockingQueue<PendingLookup> queue = new LinkedBlockingQueue<PendingLookup>();
+	private final ExecutorService senders;
+	private final Thread dispatcher;
+	/** Guards adding to the queue against {@link #close()}. */
+	private final Object lock = new Object();
+	private volatile boolean closed;
+	/** Set once the dispatcher has exited; keys queued after that are failed. */
+	private boolean stopped;
+
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong keyCount = new AtomicLong();
+
+	public LookupCoalescer(DatastoreRpc datastore, int maxBatchSize, long window, TimeUnit unit, int maxInFlight) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+		}
+		this.datastore = datastore;
+		this.maxBatchSize = maxBatchSize;
+		this.windowNanos = unit.toNanos(window);
+		this.senders = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "lookup-sender");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "lookup-coalescer");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Queues a lookup. The future completes with the entity, or null if it
+	 * does not exist, or exceptionally with the {@link DatastoreException} of
+	 * the batch.
+	 */
+	public CompletableFuture<Entity> lookupAsync(Key key) {
+		PendingLookup pending = new PendingLookup(key);
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("closed");
+			}
+			queue.add(pending);
+		}
+		return pending.future;
+	}
+
+	/**
+	 * Looks up one key, waiting for the batch it is sent with. Returns null if
+	 * the entity does not exist.
+	 */
+	public Entity lookup(Key key) throws DatastoreException, InterruptedException {
+		try {
+			return lookupAsync(key).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DatastoreException) {
+				throw (DatastoreException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	public long getKeyCount() {
+		return keyCount.get();
+	}
+
+	/** Average number of keys per LookupRequest sent. */
+	public double getAverageBatchSize() {
+		long batches = batchCount.get();
+		return batches == 0 ? 0.0 : (double) keyCount.get() / batches;
+	}
+
+	/**
+	 * Stops accepting lookups and waits for the queued ones to be sent.
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		synchronized (lock) {
+			closed = true;
+		}
+		dispatcher.interrupt();
+		dispatcher.join();
+		synchronized (lock) {
+			stopped = true;
+		}
+		// Deferred keys queued again after the dispatcher stopped.
+		failQueued();
+		senders.shutdown();
+		senders.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	private void failQueued() {
+		for (PendingLookup pending = queue.poll(); pending != null; pending = queue.poll()) {
+			pending.future.completeExceptionally(new IllegalStateException("closed"));
+		}
+	}
+
+	private void dispatch() {
+		while (!closed || !queue.isEmpty()) {
+			final List<PendingLookup> batch = new ArrayList<PendingLookup>(maxBatchSize);
+			try {
+				PendingLookup first = closed ? queue.poll() : queue.take();
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + windowNanos;
+				while (batch.size() < maxBatchSize) {
+					long wait = deadline - System.nanoTime();
+					PendingLookup next = wait > 0 && !closed ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue
+							.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// close() interrupts to stop waiting. The keys taken so far are
+				// still sent and the queue is drained before the loop exits.
+			}
+			if (!batch.isEmpty()) {
+				senders.execute(new Runnable() {
+					@Override
+					public void run() {
+						send(batch);
+					}
+				});
+			}
+		}
+	}
+
+	private void send(List<PendingLookup> batch) {
+		Map<Key, List<PendingLookup>> waiters = new LinkedHashMap<Key, List<PendingLookup>>();
+		LookupRequest.Builder req = LookupRequest.newBuilder();
+		for (PendingLookup pending : batch) {
+			Key key = DatastoreKeys.withoutDatasetId(pending.key);
+			List<PendingLookup> list = waiters.get(key);
+			if (list == null) {
+				list = new ArrayList<PendingLookup>(1);
+				waiters.put(key, list);
+				req.addKey(pending.key);
+			}
+			list.add(pending);
+		}
+		batchCount.incrementAndGet();
+		keyCount.addAndGet(req.getKeyCount());
+
+		LookupResponse response;
+		try {
+			response = datastore.lookup(req.build());
+		} catch (DatastoreException exception) {
+			for (PendingLookup pending : batch) {
+				pending.future.completeExceptionally(exception);
+			}
+			return;
+		} catch (RuntimeException exception) {
+			logger.log(Level.SEVERE, "lookup failed", exception);
+			for (PendingLookup pending : batch) {
+				pending.future.completeExceptionally(exception);
+			}
+			return;
+		}
+		for (EntityResult result : response.getFoundList()) {
+			Key key = DatastoreKeys.withoutDatasetId(result.getEntity().getKey());
+			complete(waiters.remove(key), result.getEntity());
+		}
+		for (EntityResult result : response.getMissingList()) {
+			complete(waiters.remove(DatastoreKeys.withoutDatasetId(result.getEntity().getKey())), null);
+		}
+		// Deferred keys, and keys the server did not mention at all, go into
+		// a later batch, unless the dispatcher has already stopped.
+		synchronized (lock) {
+			for (List<PendingLookup> list : waiters.values()) {
+				queue.addAll(list);
+			}
+			if (stopped) {
+				failQueued();
+			}
+		}
+	}
+
+	private static void complete(List<PendingLookup> list, Entity entity) {
+		if (list == null) {
+			return;
+		}
+		for (PendingLookup pending : list) {
+			pending.future.complete(entity);
+		}
+	}
+
+	private static class PendingLookup {
+		final Key key;
+		final CompletableFuture<Entity> future = new CompletableFuture<Entity>();
+
+		PendingLookup(Key key) {
+			this.key = key;
+		}
+	}
+}
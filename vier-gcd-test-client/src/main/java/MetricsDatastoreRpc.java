@@ -0,0 +1,285 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionResponse;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.DatastoreV1.RollbackResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.protobuf.Message;
+
+/**
+ * Keeps {@link RpcMetrics} for every RPC method: calls, in-flight calls,
+ * latency, errors by {@link DatastoreException#code} and serialized request
+ * and response sizes. The metrics can be registered as MBeans under
+ * {@code DatastoreClient:type=Rpc,client=<name>,method=<rpc>} and written in
+ * the Prometheus text format, see {@link MetricsHttpServer}.
+ *
+ * Sizes are those of the protobuf messages, without HTTP overhead.
+ */
+public class MetricsDatastoreRpc extends ForwardingDatastoreRpc {
+	private static final Logger logger = Logger.getLogger(MetricsDatastoreRpc.class.getName());
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.95, 0.99, 0.999 };
+
+	private final String name;
+	private final Map<RpcMethod, RpcMetrics> metrics = new EnumMap<RpcMethod, RpcMetrics>(RpcMethod.class);
+
+	public MetricsDatastoreRpc(DatastoreRpc delegate, String name) {
+		super(delegate);
+		this.name = name;
+		for (RpcMethod method : RpcMethod.values()) {
+			metrics.put(method, new RpcMetrics(method));
+		}
+	}
+
+	/**
+	 * Wraps {@code delegate} when {@code -Dmetrics=true} or
+	 * {@code -DmetricsPort=N} is set: registers the MBeans and, with a port,
+	 * serves {@code /metrics} on it, on the loopback address unless
+	 * {@code -DmetricsHost} is set. Otherwise returns {@code delegate}.
+	 *
+	 * The HTTP server keeps the JVM alive; call
+	 * {@link MetricsHttpServer#stopAll()} at the end of the run.
+	 */
+	public static DatastoreRpc fromProperties(DatastoreRpc delegate, String name) {
+		Integer port = Integer.getInteger("metricsPort");
+		if (port == null && !Boolean.getBoolean("metrics")) {
+			return delegate;
+		}
+		MetricsDatastoreRpc rpc = new MetricsDatastoreRpc(delegate, name);
+		rpc.registerMBeans();
+		if (port != null) {
+			try {
+				MetricsHttpServer server = new MetricsHttpServer(System.getProperty("metricsHost"), port);
+				server.add(rpc);
+				server.start();
+				logger.info("serving metrics at " + server.getUrl());
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "cannot serve metrics on port " + port, e);
+			}
+		}
+		return rpc;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public RpcMetrics getMetrics(RpcMethod method) {
+		return metrics.get(method);
+	}
+
+	/** Registers one MBean per method with the platform MBean server. */
+	public void registerMBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (RpcMetrics m : metrics.values()) {
+			try {
+				ObjectName objectName = objectName(m.getMethod());
+				if (!server.isRegistered(objectName)) {
+					server.registerMBean(m, objectName);
+				}
+			} catch (JMException e) {
+				logger.log(Level.WARNING, "cannot register MBean for " + m.getMethod().getRpcName(), e);
+			}
+		}
+	}
+
+	public void unregisterMBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (RpcMethod method : metrics.keySet()) {
+			try {
+				ObjectName objectName = objectName(method);
+				if (server.isRegistered(objectName)) {
+					server.unregisterMBean(objectName);
+				}
+			} catch (JMException e) {
+				logger.log(Level.WARNING, "cannot unregister MBean for " + method.getRpcName(), e);
+			}
+		}
+	}
+
+	private ObjectName objectName(RpcMethod method) throws JMException {
+		return new ObjectName("DatastoreClient:type=Rpc,client=" + ObjectName.quote(name) + ",method="
+				+ method.getRpcName());
+	}
+
+	/** Appends all metrics in the Prometheus text exposition format. */
+	public void writePrometheus(StringBuilder out) {
+		writePrometheus(Collections.singletonList(this), out);
+	}
+
+	/**
+	 * Appends the metrics of several clients, with the HELP and TYPE lines
+	 * once per metric as the exposition format requires.
+	 */
+	public static void writePrometheus(List<MetricsDatastoreRpc> sources, StringBuilder out) {
+		header(out, "datastore_rpc_requests_total", "counter", "RPCs started.");
+		for (MetricsDatastoreRpc source : sources) {
+			for (RpcMetrics m : source.metrics.values()) {
+				sample(out, "datastore_rpc_requests_total", source.labels(m), m.getRequestCount());
+			}
+		}
+		header(out, "datastore_rpc_in_flight", "gauge", "RPCs waiting for a response.");
+		for (MetricsDatastoreRpc source : sources) {
+			for (RpcMetrics m : source.metrics.values()) {
+				sample(out, "datastore_rpc_in_flight", source.labels(m), m.getInFlight());
+			}
+		}
+		header(out, "datastore_rpc_errors_total", "counter", "Failed RPCs by HTTP status, 0 for client-side errors.");
+		for (MetricsDatastoreRpc source : sources) {
+			for (RpcMetrics m : source.metrics.values()) {
+				for (Map.Entry<Integer, Long> entry : m.getErrorsByCode().entrySet()) {
+					sample(out, "datastore_rpc_errors_total", source.labels(m) + ",code=\"" + entry.getKey() + "\"",
+							entry.getValue());
+				}
+			}
+		}
+		header(out, "datastore_rpc_latency_seconds", "summary", "RPC latency, including failed calls.");
+		for (MetricsDatastoreRpc source : sources) {
+			for (RpcMetrics m : source.metrics.values()) {
+				LatencyHistogram latency = m.getLatency();
+				for (double quantile : QUANTILES) {
+					sample(out, "datastore_rpc_latency_seconds", source.labels(m) + ",quantile=\"" + quantile + "\"",
+							latency.getValueAtPercentile(quantile * 100) / 1e9);
+				}
+				sample(out, "datastore_rpc_latency_seconds_sum", source.labels(m), latency.getTotalNanos() / 1e9);
+				sample(out, "datastore_rpc_latency_seconds_count", source.labels(m), latency.getCount());
+			}
+		}
+		header(out, "datastore_rpc_request_bytes_total", "counter", "Serialized size of the requests.");
+		for (MetricsDatastoreRpc source : sources) {
+			for (RpcMetrics m : source.metrics.values()) {
+				sample(out, "datastore_rpc_request_bytes_total", source.labels(m), m.getRequestBytes());
+			}
+		}
+		header(out, "datastore_rpc_response_bytes_total", "counter", "Serialized size of the responses.");
+		for (MetricsDatastoreRpc source : sources) {
+			for (RpcMetrics m : source.metrics.values()) {
+				sample(out, "datastore_rpc_response_bytes_total", source.labels(m), m.getResponseBytes());
+			}
+		}
+	}
+
+	private static void header(StringBuilder out, String metric, String type, String help) {
+		out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+	}
+
+	private String labels(RpcMetrics m) {
+		return "client=\"" + escape(name) + "\",method=\"" + m.getMethod().getRpcName() + "\"";
+	}
+
+	private static void sample(StringBuilder out, String metric, String labels, double value) {
+		out.append(metric).append('{').append(labels).append("} ");
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			out.append((long) value);
+		} else {
+			out.append(String.format(Locale.ROOT, "%.9g", value));
+		}
+		out.append('\n');
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	@Override
+	public BlindWriteResponse blindWrite(final BlindWriteRequest request) throws DatastoreException {
+		return execute(RpcMethod.BLIND_WRITE, request, new Call<BlindWriteResponse>() {
+			@Override
+			public BlindWriteResponse call() throws DatastoreException {
+				return delegate.blindWrite(request);
+			}
+		});
+	}
+
+	@Override
+	public LookupResponse lookup(final LookupRequest request) throws DatastoreException {
+		return execute(RpcMethod.LOOKUP, request, new Call<LookupResponse>() {
+			@Override
+			public LookupResponse call() throws DatastoreException {
+				return delegate.lookup(request);
+			}
+		});
+	}
+
+	@Override
+	public RunQueryResponse runQuery(final RunQueryRequest request) throws DatastoreException {
+		return execute(RpcMethod.RUN_QUERY, request, new Call<RunQueryResponse>() {
+			@Override
+			public RunQueryResponse call() throws DatastoreException {
+				return delegate.runQuery(request);
+			}
+		});
+	}
+
+	@Override
+	public BeginTransactionResponse beginTransaction(final BeginTransactionRequest request) throws DatastoreException {
+		return execute(RpcMethod.BEGIN_TRANSACTION, request, new Call<BeginTransactionResponse>() {
+			@Override
+			public BeginTransactionResponse call() throws DatastoreException {
+				return delegate.beginTransaction(request);
+			}
+		});
+	}
+
+	@Override
+	public CommitResponse commit(final CommitRequest request) throws DatastoreException {
+		return execute(RpcMethod.COMMIT, request, new Call<CommitResponse>() {
+			@Override
+			public CommitResponse call() throws DatastoreException {
+				return delegate.commit(request);
+			}
+		});
+	}
+
+	@Override
+	public RollbackResponse rollback(final RollbackRequest request) throws DatastoreException {
+		return execute(RpcMethod.ROLLBACK, request, new Call<RollbackResponse>() {
+			@Override
+			public RollbackResponse call() throws DatastoreException {
+				return delegate.rollback(request);
+			}
+		});
+	}
+
+	private <T extends Message> T execute(RpcMethod method, Message request, Call<T> call) throws DatastoreException {
+		RpcMetrics m = metrics.get(method);
+		long start = m.begin(request.getSerializedSize());
+		try {
+			T response = call.call();
+			m.succeeded(start, response.getSerializedSize());
+			return response;
+		} catch (DatastoreException exception) {
+			m.failed(start, exception.code);
+			throw exception;
+		} catch (RuntimeException exception) {
+			m.failed(start, RpcMetrics.CLIENT_ERROR_CODE);
+			throw exception;
+		}
+	}
+
+	private interface Call<T> {
+		T call() throws DatastoreException;
+	}
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of {@link MetricsDatastoreRpc} instances at
+ * {@code GET /metrics} in the Prometheus text format. Requests are handled on
+ * a single daemon thread, but the JDK server's own dispatcher thread is not a
+ * daemon: a started server keeps the JVM running until it is stopped, e.g.
+ * with {@link #stopAll()} at the end of {@code main}.
+ */
+public class MetricsHttpServer {
+	private static final Logger logger = Logger.getLogger(MetricsHttpServer.class.getName());
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/** Servers started and not stopped yet. */
+	private static final List<MetricsHttpServer> running = new CopyOnWriteArrayList<MetricsHttpServer>();
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final List<MetricsDatastoreRpc> sources = new CopyOnWriteArrayList<MetricsDatastoreRpc>();
+
+	/** Binds to the loopback address. */
+	public MetricsHttpServer(int port) throws IOException {
+		this(null, port);
+	}
+
+	/** Binds to {@code host}, or to the loopback address if it is null. */
+	public MetricsHttpServer(String host, int port) throws IOException {
+		InetSocketAddress address = host == null ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+				: new InetSocketAddress(host, port);
+		server = HttpServer.create(address, 0);
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics-http");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					if (!"GET".equals(exchange.getRequestMethod())) {
+						exchange.sendResponseHeaders(405, -1);
+						return;
+					}
+					StringBuilder body = new StringBuilder();
+					MetricsDatastoreRpc.writePrometheus(sources, body);
+					byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+					exchange.sendResponseHeaders(200, bytes.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(bytes);
+					out.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public void add(MetricsDatastoreRpc source) {
+		sources.add(source);
+	}
+
+	public void start() {
+		server.start();
+		running.add(this);
+	}
+
+	public void stop() {
+		running.remove(this);
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	/** Stops every server that is still running, so that the JVM can exit. */
+	public static void stopAll() {
+		for (MetricsHttpServer server : running) {
+			server.stop();
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public String getUrl() {
+		return "http://" + server.getAddress().getHostString() + ":" + getPort() + "/metrics";
+	}
+}
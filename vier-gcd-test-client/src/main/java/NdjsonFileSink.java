@@ -0,0 +1,79 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.api.client.json.JsonFactory;
+
+/**
+ * Writes newline-delimited JSON, one file per shard
+ * ({@code <prefix>-00000.json}, ...), so the shards never share a writer.
+ * The files can be loaded with {@link BigQueryLoadSink} or
+ * {@code bq load --source_format=NEWLINE_DELIMITED_JSON}, or used for
+ * testing the export offline.
+ */
+public class NdjsonFileSink implements ExportSink {
+
+	private final File directory;
+	private final String prefix;
+	private final JsonFactory jsonFactory;
+	private final ConcurrentMap<Integer, Writer> writers = new ConcurrentHashMap<Integer, Writer>();
+	private final List<File> files = Collections.synchronizedList(new ArrayList<File>());
+
+	public NdjsonFileSink(File directory, String prefix) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.jsonFactory = ClientFactory.get().getJsonFactory();
+	}
+
+	@Override
+	public void write(int shard, List<Map<String, Object>> rows) throws IOException {
+		Writer writer = writers.get(shard);
+		if (writer == null) {
+			File file = new File(directory, String.format("%s-%05d.json", prefix, shard));
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+					64 * 1024);
+			writers.put(shard, writer);
+			files.add(file);
+		}
+		for (Map<String, Object> row : rows) {
+			writer.write(jsonFactory.toString(row));
+			writer.write('\n');
+		}
+	}
+
+	/** The files written so far, complete once the sink is closed. */
+	public List<File> getFiles() {
+		synchronized (files) {
+			return new ArrayList<File>(files);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (Writer writer : writers.values()) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		writers.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
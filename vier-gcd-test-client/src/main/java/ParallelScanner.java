@@ -0,0 +1,332 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.PropertyOrder;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.Value;
+
+/**
+ * Runs a query over a whole kind as several range queries in parallel.
+ *
+ * A query without order, or ordered by {@code __key__} first, is split into
+ * {@code __key__} ranges. A query ordered by a property first is split into
+ * ranges of that property, since Datastore requires the property of an
+ * inequality filter to be the first sort order. Splitting uses
+ * {@link KeyRangeSplitter}.
+ *
+ * Ordered queries are merged back with a k-way merge of the range results;
+ * each range is read by a {@link QueryIterator} prefetching on the scanner's
+ * pool. Queries without order return the results in the order the ranges
+ * deliver them, which keeps every range reading all the time. The limit and
+ * offset of the query apply to the merged results. The property of an
+ * ordered query should have one value per entity, or an entity may be
+ * returned by more than one range.
+ */
+public class ParallelScanner implements AutoCloseable {
+	private static final Logger logger = Logger.getLogger(ParallelScanner.class.getName());
+
+	/** Tells the consumer of an unordered scan that a range is done. */
+	private static final List<EntityResult> END = new ArrayList<EntityResult>(0);
+
+	private final DatastoreRpc datastore;
+	private final int pageSize;
+	private final int threads;
+	private final ExecutorService executor;
+
+	/**
+	 * @param threads range queries running at the same time
+	 * @param pageSize entities per runQuery request
+	 */
+	public ParallelScanner(DatastoreRpc datastore, int threads, int pageSize) {
+		this.datastore = datastore;
+		this.threads = threads;
+		this.pageSize = pageSize;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "parallel-scan-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts the scan of {@code query} split into at most {@code shards}
+	 * ranges. The query must have one kind and no cursors.
+	 */
+	public Scan scan(Query query, int shards) {
+		if (query.getKindCount() != 1 || query.hasStartCursor() || query.hasEndCursor()) {
+			throw new IllegalArgumentException("query must have one kind and no cursors");
+		}
+		List<Query> rangeQueries = split(query, shards);
+		logger.info("scanning " + query.getKind(0).getName() + " in " + rangeQueries.size() + " ranges with "
+				+ threads + " threads");
+		if (query.getOrderCount() == 0) {
+			return new UnorderedScan(query, rangeQueries);
+		}
+		return new MergingScan(query, rangeQueries);
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private List<Query> split(Query query, int shards) {
+		// Each range query reads up to the end of the overall limit; the
+		// offset is applied after merging.
+		Query.Builder template = query.toBuilder().clearOffset().clearLimit();
+		if (query.hasLimit()) {
+			template.setLimit(query.getOffset() + query.getLimit());
+		}
+		String kind = query.getKind(0).getName();
+		KeyRangeSplitter splitter = new KeyRangeSplitter(datastore);
+		List<Query> queries = new ArrayList<Query>();
+
+		String property = query.getOrderCount() == 0 ? DatastoreOrdering.KEY_PROPERTY : query.getOrder(0)
+				.getProperty().getName();
+		if (DatastoreOrdering.KEY_PROPERTY.equals(property)) {
+			for (KeyRangeSplitter.KeyRange range : splitter.split(kind, shards)) {
+				queries.add(range.restrict(template.clone()).build());
+			}
+			return queries;
+		}
+		Value start = null;
+		for (Value end : splitter.splitValues(kind, property, shards)) {
+			queries.add(KeyRangeSplitter.restrict(template.clone(), property, start, end).build());
+			start = end;
+		}
+		queries.add(KeyRangeSplitter.restrict(template.clone(), property, start, null).build());
+		return queries;
+	}
+
+	private static RunQueryRequest request(Query query) {
+		return RunQueryRequest.newBuilder().setQuery(query).build();
+	}
+
+	/**
+	 * Results of a parallel scan. Iteration throws
+	 * {@link QueryIterator.QueryException} if a range query fails; closing
+	 * cancels the range queries still running.
+	 */
+	public abstract static class Scan implements Iterator<EntityResult>, AutoCloseable {
+		private int offset;
+		/** Results still allowed by the limit, or -1 without limit. */
+		private int remaining;
+		private EntityResult next;
+
+		Scan(Query query) {
+			this.offset = query.getOffset();
+			this.remaining = query.hasLimit() ? query.getLimit() : -1;
+		}
+
+		/** Returns the next merged result, or null at the end. */
+		abstract EntityResult computeNext();
+
+		@Override
+		public boolean hasNext() {
+			if (next != null) {
+				return true;
+			}
+			if (remaining == 0) {
+				close();
+				return false;
+			}
+			EntityResult result = computeNext();
+			while (result != null && offset > 0) {
+				offset--;
+				result = computeNext();
+			}
+			if (result == null) {
+				close();
+				return false;
+			}
+			if (remaining > 0) {
+				remaining--;
+			}
+			next = result;
+			return true;
+		}
+
+		@Override
+		public EntityResult next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			EntityResult result = next;
+			next = null;
+			return result;
+		}
+
+		@Override
+		public abstract void close();
+	}
+
+	/** K-way merge of range results that are each in query order. */
+	private class MergingScan extends Scan {
+		private final List<QueryIterator> iterators = new ArrayList<QueryIterator>();
+		private final PriorityQueue<Head> heads;
+
+		MergingScan(Query query, List<Query> rangeQueries) {
+			super(query);
+			final Comparator<Entity> order = DatastoreOrdering.entityOrder(new ArrayList<PropertyOrder>(query
+					.getOrderList()));
+			heads = new PriorityQueue<Head>(Math.max(1, rangeQueries.size()), new Comparator<Head>() {
+				@Override
+				public int compare(Head a, Head b) {
+					return order.compare(a.result.getEntity(), b.result.getEntity());
+				}
+			});
+			// Start all ranges first so that their first batches load in parallel.
+			for (Query rangeQuery : rangeQueries) {
+				iterators.add(new QueryIterator(datastore, request(rangeQuery), pageSize, executor));
+			}
+			for (QueryIterator it : iterators) {
+				if (it.hasNext()) {
+					heads.add(new Head(it.next(), it));
+				}
+			}
+		}
+
+		@Override
+		EntityResult computeNext() {
+			Head head = heads.poll();
+			if (head == null) {
+				return null;
+			}
+			EntityResult result = head.result;
+			if (head.iterator.hasNext()) {
+				heads.add(new Head(head.iterator.next(), head.iterator));
+			}
+			return result;
+		}
+
+		@Override
+		public void close() {
+			for (QueryIterator it : iterators) {
+				it.close();
+			}
+			heads.clear();
+		}
+	}
+
+	private static class Head {
+		final EntityResult result;
+		final QueryIterator iterator;
+
+		Head(EntityResult result, QueryIterator iterator) {
+			this.result = result;
+			this.iterator = iterator;
+		}
+	}
+
+	/**
+	 * Each range is read to the end on a pool thread and its batches are
+	 * handed over through a bounded queue.
+	 */
+	private class UnorderedScan extends Scan {
+		private final BlockingQueue<List<EntityResult>> queue = new ArrayBlockingQueue<List<EntityResult>>(
+				threads * 2);
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		private final List<Future<?>> futures = new ArrayList<Future<?>>();
+		private int running;
+		private Iterator<EntityResult> current;
+
+		UnorderedScan(Query query, List<Query> rangeQueries) {
+			super(query);
+			running = rangeQueries.size();
+			for (final Query rangeQuery : rangeQueries) {
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						readRange(rangeQuery);
+					}
+				}));
+			}
+		}
+
+		private void readRange(Query rangeQuery) {
+			// The pool threads are busy reading ranges, so the prefetch uses
+			// QueryIterator's own executor.
+			QueryIterator it = new QueryIterator(datastore, request(rangeQuery), pageSize);
+			try {
+				List<EntityResult> batch = new ArrayList<EntityResult>(pageSize);
+				while (it.hasNext()) {
+					batch.add(it.next());
+					if (batch.size() == pageSize) {
+						queue.put(batch);
+						batch = new ArrayList<EntityResult>(pageSize);
+					}
+				}
+				if (!batch.isEmpty()) {
+					queue.put(batch);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				failure.compareAndSet(null, e instanceof QueryIterator.QueryException ? e.getCause() : e);
+			} finally {
+				it.close();
+			}
+			try {
+				queue.put(END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		EntityResult computeNext() {
+			while (current == null || !current.hasNext()) {
+				if (running == 0) {
+					return null;
+				}
+				List<EntityResult> batch;
+				try {
+					batch = queue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new QueryIterator.QueryException(e);
+				}
+				if (batch == END) {
+					running--;
+					if (failure.get() != null) {
+						close();
+						throw new QueryIterator.QueryException(failure.get());
+					}
+				}
+				current = batch.iterator();
+			}
+			return current.next();
+		}
+
+		@Override
+		public void close() {
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+			running = 0;
+			current = null;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.TextFormat;
+
+/**
+ * Counts operations of a hot loop and logs a summary from a background
+ * thread, instead of logging each operation.
+ *
+ * The loop only increments counters and stores a reference to the last key;
+ * formatting happens when a summary is logged. For per-entity detail, guard
+ * the log call with {@link #sample()}, which is true for about one call in
+ * {@code sampleRate}.
+ *
+ * <pre>
+ * progress.success(key);
+ * if (progress.sample()) {
+ * 	logger.info(...);
+ * }
+ * </pre>
+ */
+public class ProgressReporter implements AutoCloseable {
+	private static final Logger logger = Logger.getLogger(ProgressReporter.class.getName());
+
+	private final String name;
+	private final int sampleRate;
+	private final LongAdder ops = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private volatile Object lastKey;
+	private final long startNanos = System.nanoTime();
+	private final ScheduledExecutorService scheduler;
+
+	private long lastOps;
+	private long lastNanos = startNanos;
+
+	/**
+	 * @param intervalSeconds seconds between summaries, 0 for the final one only
+	 * @param sampleRate {@link #sample()} is true about once per this many
+	 *            calls, 0 never
+	 */
+	public ProgressReporter(String name, int intervalSeconds, int sampleRate) {
+		this.name = name;
+		this.sampleRate = sampleRate;
+		if (intervalSeconds > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "progress-" + ProgressReporter.this.name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			scheduler.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					logProgress();
+				}
+			}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		} else {
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Configured by {@code -DprogressInterval=seconds} (default 5) and
+	 * {@code -DprogressSample=N} (default 0).
+	 */
+	public static ProgressReporter fromProperties(String name) {
+		return new ProgressReporter(name, Integer.getInteger("progressInterval", 5), Integer.getInteger(
+				"progressSample", 0));
+	}
+
+	public void success() {
+		ops.increment();
+	}
+
+	/** Counts an operation; the key is only formatted when a summary is logged. */
+	public void success(Object key) {
+		ops.increment();
+		lastKey = key;
+	}
+
+	/** Counts {@code count} operations at once, e.g. a sent batch. */
+	public void success(long count, Object key) {
+		ops.add(count);
+		lastKey = key;
+	}
+
+	public void error() {
+		errors.increment();
+	}
+
+	public void error(long count) {
+		errors.add(count);
+	}
+
+	/** True for about one call in {@code sampleRate}. */
+	public boolean sample() {
+		return sampleRate > 0 && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0);
+	}
+
+	public long getOps() {
+		return ops.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/** Stops the periodic summaries and logs the final one. */
+	@Override
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		long elapsed = System.nanoTime() - startNanos;
+		long total = ops.sum();
+		logger.info(String.format("%s: done %d ops, %d errors in %.1f ms, %.1f ops/sec", name, total, errors.sum(),
+				elapsed / 1e6, elapsed == 0 ? 0.0 : total * 1e9 / elapsed));
+	}
+
+	private void logProgress() {
+		long now = System.nanoTime();
+		long total = ops.sum();
+		double rate = (total - lastOps) * 1e9 / (now - lastNanos);
+		double average = total * 1e9 / (now - startNanos);
+		lastOps = total;
+		lastNanos = now;
+		logger.info(String.format("%s: %d ops, %d errors, %.1f ops/sec (avg %.1f), last key: %s", name, total,
+				errors.sum(), rate, average, format(lastKey)));
+	}
+
+	private static String format(Object key) {
+		if (key instanceof MessageOrBuilder) {
+			return TextFormat.shortDebugString((MessageOrBuilder) key);
+		}
+		return String.valueOf(key);
+	}
+}
@@ -0,0 +1,176 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.google.api.services.datastore.DatastoreV1.EntityResult;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.QueryResultBatch;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.protobuf.ByteString;
+
+/**
+ * Iterates over all results of a query, batch by batch, following the end
+ * cursor of each batch. As soon as batch N arrives the request for batch N+1
+ * is sent in the background, so at most two batches are held in memory and
+ * the network time overlaps with the caller's processing.
+ *
+ * The query's own limit and offset apply to the whole iteration; each
+ * request asks for at most {@code pageSize} results.
+ */
+public class QueryIterator implements Iterator<EntityResult>, AutoCloseable {
+
+	private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "query-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final DatastoreRpc datastore;
+	private final RunQueryRequest request;
+	private final int pageSize;
+	private final ExecutorService executor;
+
+	/** Results still allowed by the query limit, or -1 without limit. */
+	private int remaining;
+	private int offset;
+	private Future<QueryResultBatch> nextBatch;
+	private Iterator<EntityResult> current;
+	private long batchCount;
+
+	public QueryIterator(DatastoreRpc datastore, RunQueryRequest request, int pageSize) {
+		this(datastore, request, pageSize, PREFETCH_EXECUTOR);
+	}
+
+	public QueryIterator(DatastoreRpc datastore, RunQueryRequest request, int pageSize, ExecutorService executor) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+		}
+		this.datastore = datastore;
+		this.request = request;
+		this.pageSize = pageSize;
+		this.executor = executor;
+		Query query = request.getQuery();
+		this.remaining = query.hasLimit() ? query.getLimit() : -1;
+		this.offset = query.getOffset();
+		this.nextBatch = fetch(query.hasStartCursor() ? query.getStartCursor() : null);
+	}
+
+	/**
+	 * Returns a sequential stream over the remaining results. Closing the
+	 * stream cancels the prefetch.
+	 */
+	public Stream<EntityResult> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(new Runnable() {
+					@Override
+					public void run() {
+						close();
+					}
+				});
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (current == null || !current.hasNext()) {
+			if (nextBatch == null) {
+				return false;
+			}
+			QueryResultBatch batch = await(nextBatch);
+			nextBatch = null;
+			batchCount++;
+			current = batch.getEntityResultList().iterator();
+			prefetchAfter(batch);
+		}
+		return true;
+	}
+
+	@Override
+	public EntityResult next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.next();
+	}
+
+	/** Cancels the request in flight, if any. */
+	@Override
+	public void close() {
+		if (nextBatch != null) {
+			nextBatch.cancel(true);
+			nextBatch = null;
+		}
+		current = null;
+	}
+
+	/** Number of batches received so far. */
+	public long getBatchCount() {
+		return batchCount;
+	}
+
+	private void prefetchAfter(QueryResultBatch batch) {
+		int count = batch.getEntityResultCount();
+		offset = Math.max(0, offset - batch.getSkippedResults());
+		if (remaining > 0) {
+			remaining = Math.max(0, remaining - count);
+		}
+		if (batch.getMoreResults() == QueryResultBatch.MoreResultsType.NO_MORE_RESULTS || remaining == 0
+				|| !batch.hasEndCursor() || (count == 0 && batch.getSkippedResults() == 0)) {
+			return;
+		}
+		nextBatch = fetch(batch.getEndCursor());
+	}
+
+	private Future<QueryResultBatch> fetch(ByteString cursor) {
+		RunQueryRequest.Builder req = request.toBuilder();
+		Query.Builder query = req.getQueryBuilder();
+		if (cursor != null) {
+			query.setStartCursor(cursor);
+		}
+		query.setOffset(offset);
+		query.setLimit(remaining < 0 ? pageSize : Math.min(pageSize, remaining));
+		final RunQueryRequest pageRequest = req.build();
+		return executor.submit(new Callable<QueryResultBatch>() {
+			@Override
+			public QueryResultBatch call() throws DatastoreException {
+				return datastore.runQuery(pageRequest).getBatch();
+			}
+		});
+	}
+
+	private static QueryResultBatch await(Future<QueryResultBatch> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw new QueryException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueryException(e);
+		}
+	}
+
+	/**
+	 * Thrown by {@link #hasNext()} and {@link #next()} when fetching a batch
+	 * failed. The cause is usually a {@link DatastoreException}.
+	 */
+	public static class QueryException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		QueryException(Throwable cause) {
+			super(cause);
+		}
+	}
+}
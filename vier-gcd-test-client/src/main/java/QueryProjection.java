@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.api.services.datastore.DatastoreV1.PropertyExpression;
+import com.google.api.services.datastore.DatastoreV1.PropertyReference;
+import com.google.api.services.datastore.DatastoreV1.Query;
+
+/**
+ * What a query returns: full entities, keys only (a {@code __key__}
+ * projection) or a projection of some properties. Projected results carry
+ * the key and the projected properties only, one value each; read them with
+ * {@link EntityReader}, whose getters treat the other properties as absent.
+ *
+ * Projected properties must be indexed. Some Datastore versions return
+ * projected timestamps as integer microseconds, which
+ * {@link EntityReader#getTimestampMicros} accepts as well.
+ */
+public class QueryProjection {
+
+	public static final QueryProjection FULL = new QueryProjection(Collections.<String> emptyList());
+	public static final QueryProjection KEYS_ONLY = new QueryProjection(
+			Collections.singletonList(DatastoreOrdering.KEY_PROPERTY));
+
+	private final List<String> properties;
+
+	private QueryProjection(List<String> properties) {
+		this.properties = properties;
+	}
+
+	public static QueryProjection of(String... properties) {
+		if (properties.length == 0) {
+			return FULL;
+		}
+		return new QueryProjection(Collections.unmodifiableList(new ArrayList<String>(Arrays.asList(properties))));
+	}
+
+	/**
+	 * Parses {@code full}, {@code keys} or a comma-separated list of property
+	 * names.
+	 */
+	public static QueryProjection parse(String spec) {
+		String value = spec.trim();
+		if (value.isEmpty() || "full".equalsIgnoreCase(value)) {
+			return FULL;
+		}
+		if ("keys".equalsIgnoreCase(value) || DatastoreOrdering.KEY_PROPERTY.equals(value)) {
+			return KEYS_ONLY;
+		}
+		List<String> names = new ArrayList<String>();
+		for (String name : value.split(",")) {
+			if (!name.trim().isEmpty()) {
+				names.add(name.trim());
+			}
+		}
+		return of(names.toArray(new String[names.size()]));
+	}
+
+	/** {@code -Dprojection=full|keys|name,name,...}, full by default. */
+	public static QueryProjection fromProperty() {
+		return parse(System.getProperty("projection", "full"));
+	}
+
+	public boolean isFull() {
+		return properties.isEmpty();
+	}
+
+	public boolean isKeysOnly() {
+		return properties.size() == 1 && DatastoreOrdering.KEY_PROPERTY.equals(properties.get(0));
+	}
+
+	public List<String> getProperties() {
+		return properties;
+	}
+
+	/** Replaces the projection of the query; FULL clears it. */
+	public Query.Builder apply(Query.Builder query) {
+		query.clearProjection();
+		for (String name : properties) {
+			query.addProjection(PropertyExpression.newBuilder().setProperty(
+					PropertyReference.newBuilder().setName(name)));
+		}
+		return query;
+	}
+
+	@Override
+	public String toString() {
+		if (isFull()) {
+			return "full";
+		}
+		if (isKeysOnly()) {
+			return "keys";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String name : properties) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(name);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,118 @@
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Paces writes (blindWrite, commit) and reads (lookup, runQuery) with one
+ * {@link AdaptiveRateLimiter} each, and feeds the outcome of every call back
+ * into it. Transaction begin and rollback are not limited.
+ */
+public class RateLimitedDatastoreRpc extends ForwardingDatastoreRpc {
+	private static final Logger logger = Logger.getLogger(RateLimitedDatastoreRpc.class.getName());
+
+	private final AdaptiveRateLimiter writeLimiter;
+	private final AdaptiveRateLimiter readLimiter;
+
+	public RateLimitedDatastoreRpc(DatastoreRpc delegate, AdaptiveRateLimiter writeLimiter,
+			AdaptiveRateLimiter readLimiter) {
+		super(delegate);
+		this.writeLimiter = writeLimiter;
+		this.readLimiter = readLimiter;
+	}
+
+	/**
+	 * Both limiters start at {@code -DrateLimit} requests per second and stay
+	 * between 1 and {@code -DrateLimitMax} (default 10000). They grow by
+	 * {@code -DrateLimitIncrease} (default 10) per second and halve on
+	 * throttling.
+	 */
+	public static RateLimitedDatastoreRpc fromProperties(DatastoreRpc delegate) {
+		double initial = Integer.getInteger("rateLimit", 100);
+		double max = Integer.getInteger("rateLimitMax", 10000);
+		double increase = Integer.getInteger("rateLimitIncrease", 10);
+		return new RateLimitedDatastoreRpc(delegate, new AdaptiveRateLimiter("write", initial, 1, max, increase, 0.5),
+				new AdaptiveRateLimiter("read", initial, 1, max, increase, 0.5));
+	}
+
+	public AdaptiveRateLimiter getWriteLimiter() {
+		return writeLimiter;
+	}
+
+	public AdaptiveRateLimiter getReadLimiter() {
+		return readLimiter;
+	}
+
+	public void logStats() {
+		logger.info(writeLimiter.toString());
+		logger.info(readLimiter.toString());
+	}
+
+	@Override
+	public BlindWriteResponse blindWrite(BlindWriteRequest request) throws DatastoreException {
+		acquire(writeLimiter);
+		try {
+			BlindWriteResponse response = delegate.blindWrite(request);
+			writeLimiter.onSuccess();
+			return response;
+		} catch (DatastoreException exception) {
+			writeLimiter.onError(exception);
+			throw exception;
+		}
+	}
+
+	@Override
+	public CommitResponse commit(CommitRequest request) throws DatastoreException {
+		acquire(writeLimiter);
+		try {
+			CommitResponse response = delegate.commit(request);
+			writeLimiter.onSuccess();
+			return response;
+		} catch (DatastoreException exception) {
+			writeLimiter.onError(exception);
+			throw exception;
+		}
+	}
+
+	@Override
+	public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+		acquire(readLimiter);
+		try {
+			LookupResponse response = delegate.lookup(request);
+			readLimiter.onSuccess();
+			return response;
+		} catch (DatastoreException exception) {
+			readLimiter.onError(exception);
+			throw exception;
+		}
+	}
+
+	@Override
+	public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+		acquire(readLimiter);
+		try {
+			RunQueryResponse response = delegate.runQuery(request);
+			readLimiter.onSuccess();
+			return response;
+		} catch (DatastoreException exception) {
+			readLimiter.onError(exception);
+			throw exception;
+		}
+	}
+
+	private static void acquire(AdaptiveRateLimiter limiter) {
+		try {
+			limiter.acquire();
+		} catch (InterruptedException e) {
+			// The call is sent anyway; keep the interrupt for the caller.
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,231 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.Value;
+
+/**
+ * Turns one record of a mapped input file into an entity. Subclasses find
+ * the fields of their format and pass each one, unescaped, to
+ * {@link #addField}, which converts it by the column type without going
+ * through a String for numbers.
+ *
+ * Each instance keeps a scratch buffer and is used by one thread only.
+ */
+public abstract class RecordParser {
+
+	/** Type of a column, and how its text is converted. */
+	public enum ColumnType {
+		/** The key name. */
+		KEY,
+		STRING,
+		INTEGER,
+		DOUBLE,
+		BOOLEAN,
+		/** Microseconds since the epoch, or an ISO-8601 instant. */
+		TIMESTAMP
+	}
+
+	/** A column of the input mapped to a property. */
+	public static class Column {
+		final String name;
+		final ColumnType type;
+		final byte[] nameBytes;
+
+		public Column(String name, ColumnType type) {
+			this.name = name;
+			this.type = type;
+			this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Parses {@code name:type,name:type,...}, e.g.
+		 * {@code key:key,str:string,number:integer,createDate:timestamp}.
+		 */
+		public static Column[] parseList(String spec) {
+			String[] items = spec.split(",");
+			Column[] columns = new Column[items.length];
+			for (int i = 0; i < items.length; i++) {
+				String[] parts = items[i].trim().split(":");
+				if (parts.length != 2) {
+					throw new IllegalArgumentException("column must be name:type: " + items[i]);
+				}
+				columns[i] = new Column(parts[0], ColumnType.valueOf(parts[1].toUpperCase()));
+			}
+			return columns;
+		}
+
+		@Override
+		public String toString() {
+			return name + ":" + type.name().toLowerCase();
+		}
+	}
+
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+	private final String kind;
+	/** Unescaped bytes of the current field. */
+	protected byte[] scratch = new byte[256];
+	private boolean hasKey;
+
+	protected RecordParser(String kind) {
+		this.kind = kind;
+	}
+
+	/**
+	 * Parses the record in {@code buffer[start, end)}, without the line
+	 * terminator, into an entity.
+	 *
+	 * @throws IllegalArgumentException if the record is malformed or has no
+	 *             key
+	 */
+	public Entity parse(ByteBuffer buffer, int start, int end) {
+		Entity.Builder entity = Entity.newBuilder();
+		hasKey = false;
+		parseFields(buffer, start, end, entity);
+		if (!hasKey) {
+			throw new IllegalArgumentException("record without key");
+		}
+		return entity.build();
+	}
+
+	/** Finds the fields of the record and calls {@link #addField} for each mapped one. */
+	protected abstract void parseFields(ByteBuffer buffer, int start, int end, Entity.Builder entity);
+
+	/** Converts the first {@code length} bytes of {@link #scratch} and adds them to the entity. */
+	protected void addField(Entity.Builder entity, Column column, int length) {
+		if (column.type == ColumnType.KEY) {
+			entity.setKey(Key.newBuilder().addPathElement(
+					Key.PathElement.newBuilder().setKind(kind).setName(string(length))));
+			hasKey = true;
+			return;
+		}
+		Value.Builder value = Value.newBuilder();
+		switch (column.type) {
+		case STRING:
+			value.setStringValue(string(length));
+			break;
+		case INTEGER:
+			value.setIntegerValue(parseLong(length));
+			break;
+		case DOUBLE:
+			value.setDoubleValue(Double.parseDouble(string(length)));
+			break;
+		case BOOLEAN:
+			value.setBooleanValue(parseBoolean(length));
+			break;
+		case TIMESTAMP:
+			value.setTimestampMicrosecondsValue(isDigits(length) ? parseLong(length) : parseInstant(length));
+			break;
+		default:
+			throw new IllegalStateException(column.type.name());
+		}
+		entity.addProperty(Property.newBuilder().setName(column.name).addValue(value));
+	}
+
+	/** Makes sure {@link #scratch} can hold {@code length} bytes, keeping its content. */
+	protected void ensureScratch(int length) {
+		if (scratch.length < length) {
+			byte[] bigger = new byte[Math.max(length, scratch.length * 2)];
+			System.arraycopy(scratch, 0, bigger, 0, scratch.length);
+			scratch = bigger;
+		}
+	}
+
+	/** True if the first {@code length} bytes of {@link #scratch} equal {@code name}. */
+	protected boolean scratchEquals(byte[] name, int length) {
+		if (name.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (scratch[i] != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String string(int length) {
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private boolean isDigits(int length) {
+		if (length == 0) {
+			return false;
+		}
+		for (int i = scratch[0] == '-' ? 1 : 0; i < length; i++) {
+			if (scratch[i] < '0' || scratch[i] > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long parseLong(int length) {
+		if (length == 0) {
+			throw new NumberFormatException("empty number");
+		}
+		boolean negative = scratch[0] == '-';
+		int i = negative || scratch[0] == '+' ? 1 : 0;
+		if (i == length) {
+			throw new NumberFormatException("no digits");
+		}
+		// Accumulated negative, so that Long.MIN_VALUE fits.
+		long result = 0;
+		try {
+			for (; i < length; i++) {
+				int digit = scratch[i] - '0';
+				if (digit < 0 || digit > 9) {
+					throw new NumberFormatException("not a number: " + string(length));
+				}
+				result = Math.subtractExact(Math.multiplyExact(result, 10), digit);
+			}
+			return negative ? result : Math.negateExact(result);
+		} catch (ArithmeticException e) {
+			throw new NumberFormatException("out of range: " + string(length));
+		}
+	}
+
+	/** {@code true} or {@code false}, ignoring case. */
+	private boolean parseBoolean(int length) {
+		if (equalsIgnoreCase(TRUE, length)) {
+			return true;
+		}
+		if (equalsIgnoreCase(FALSE, length)) {
+			return false;
+		}
+		throw new IllegalArgumentException("not a boolean: " + string(length));
+	}
+
+	/** Like {@link #scratchEquals}, ignoring the case of ASCII letters; {@code name} is lower case. */
+	private boolean equalsIgnoreCase(byte[] name, int length) {
+		if (name.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			int c = scratch[i];
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c != name[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long parseInstant(int length) {
+		try {
+			Instant instant = Instant.parse(string(length));
+			return TimeUnit.SECONDS.toMicros(instant.getEpochSecond()) + instant.getNano() / 1000;
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,342 @@
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionResponse;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.DatastoreV1.RollbackResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Retries failed RPCs with exponential backoff and full jitter.
+ *
+ * <ul>
+ * <li>Only transient errors (409, 429, 500, 503, 504) are retried.</li>
+ * <li>Only idempotent calls are retried: lookup, runQuery, beginTransaction,
+ * rollback, and blindWrite without insert or insertAutoId. Commit is never
+ * retried, since it may have been applied.</li>
+ * <li>Retries are limited by a budget: each call earns
+ * {@code budgetRatio} retries, so that an outage does not multiply the load.</li>
+ * </ul>
+ *
+ * With {@link #setHedgeLookups(boolean)}, a lookup that has not answered
+ * after the 95th percentile of the lookup latency so far is sent a second
+ * time, and the first response wins.
+ */
+public class RetryingDatastoreRpc extends ForwardingDatastoreRpc {
+	private static final Logger logger = Logger.getLogger(RetryingDatastoreRpc.class.getName());
+
+	/** Lookups needed before the 95th percentile is trusted for hedging. */
+	private static final int MIN_HEDGE_SAMPLES = 20;
+	/** Retries that can be saved up by calls. */
+	private static final double MAX_BUDGET = 100;
+
+	private static final ExecutorService HEDGE_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "lookup-hedge");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+	private final double budgetRatio;
+	private volatile boolean hedgeLookups;
+
+	/** Guarded by this. Starts with some retries so that early failures can be retried. */
+	private double budget = 10;
+
+	private final LatencyHistogram lookupLatency = new LatencyHistogram();
+	private final Map<RpcMethod, AtomicLong> retries = new EnumMap<RpcMethod, AtomicLong>(RpcMethod.class);
+	private final Map<RpcMethod, AtomicLong> failures = new EnumMap<RpcMethod, AtomicLong>(RpcMethod.class);
+	private final AtomicLong budgetDenied = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	/**
+	 * @param maxAttempts attempts per call, including the first
+	 * @param budgetRatio retries earned per call, e.g. 0.1 for 10%
+	 */
+	public RetryingDatastoreRpc(DatastoreRpc delegate, int maxAttempts, long initialBackoffMillis,
+			long maxBackoffMillis, double budgetRatio) {
+		super(delegate);
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+		this.budgetRatio = budgetRatio;
+		for (RpcMethod method : RpcMethod.values()) {
+			retries.put(method, new AtomicLong());
+			failures.put(method, new AtomicLong());
+		}
+	}
+
+	/**
+	 * {@code -Dretries} attempts (default 5), {@code -DretryBackoff} and
+	 * {@code -DretryBackoffMax} milliseconds (default 100 and 5000),
+	 * {@code -DretryBudget} percent (default 10), {@code -Dhedge=true} to
+	 * hedge lookups.
+	 */
+	public static RetryingDatastoreRpc fromProperties(DatastoreRpc delegate) {
+		RetryingDatastoreRpc rpc = new RetryingDatastoreRpc(delegate, Integer.getInteger("retries", 5),
+				Integer.getInteger("retryBackoff", 100), Integer.getInteger("retryBackoffMax", 5000),
+				Integer.getInteger("retryBudget", 10) / 100.0);
+		rpc.setHedgeLookups(Boolean.getBoolean("hedge"));
+		return rpc;
+	}
+
+	public void setHedgeLookups(boolean hedgeLookups) {
+		this.hedgeLookups = hedgeLookups;
+	}
+
+	/** Transient errors worth retrying. */
+	public static boolean isRetryable(DatastoreException exception) {
+		switch (exception.code) {
+		case 409:
+		case 429:
+		case 500:
+		case 503:
+		case 504:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** False if applying the mutation twice differs from applying it once. */
+	public static boolean isIdempotent(Mutation mutation) {
+		return mutation.getInsertCount() == 0 && mutation.getInsertAutoIdCount() == 0;
+	}
+
+	@Override
+	public BlindWriteResponse blindWrite(final BlindWriteRequest request) throws DatastoreException {
+		return execute(RpcMethod.BLIND_WRITE, isIdempotent(request.getMutation()), new Call<BlindWriteResponse>() {
+			@Override
+			public BlindWriteResponse call() throws DatastoreException {
+				return delegate.blindWrite(request);
+			}
+		});
+	}
+
+	@Override
+	public LookupResponse lookup(final LookupRequest request) throws DatastoreException {
+		return execute(RpcMethod.LOOKUP, true, new Call<LookupResponse>() {
+			@Override
+			public LookupResponse call() throws DatastoreException {
+				return hedgeLookups ? hedgedLookup(request) : timedLookup(request);
+			}
+		});
+	}
+
+	@Override
+	public RunQueryResponse runQuery(final RunQueryRequest request) throws DatastoreException {
+		return execute(RpcMethod.RUN_QUERY, true, new Call<RunQueryResponse>() {
+			@Override
+			public RunQueryResponse call() throws DatastoreException {
+				return delegate.runQuery(request);
+			}
+		});
+	}
+
+	@Override
+	public BeginTransactionResponse beginTransaction(final BeginTransactionRequest request) throws DatastoreException {
+		return execute(RpcMethod.BEGIN_TRANSACTION, true, new Call<BeginTransactionResponse>() {
+			@Override
+			public BeginTransactionResponse call() throws DatastoreException {
+				return delegate.beginTransaction(request);
+			}
+		});
+	}
+
+	@Override
+	public RollbackResponse rollback(final RollbackRequest request) throws DatastoreException {
+		return execute(RpcMethod.ROLLBACK, true, new Call<RollbackResponse>() {
+			@Override
+			public RollbackResponse call() throws DatastoreException {
+				return delegate.rollback(request);
+			}
+		});
+	}
+
+	public long getRetryCount(RpcMethod method) {
+		return retries.get(method).get();
+	}
+
+	/** Calls that failed after at least one retry. */
+	public long getFailureCount(RpcMethod method) {
+		return failures.get(method).get();
+	}
+
+	/** Retries not made because the budget was used up. */
+	public long getBudgetDeniedCount() {
+		return budgetDenied.get();
+	}
+
+	public long getHedgeCount() {
+		return hedges.get();
+	}
+
+	/** Hedged lookups answered by the second request. */
+	public long getHedgeWinCount() {
+		return hedgeWins.get();
+	}
+
+	public void logStats() {
+		for (RpcMethod method : RpcMethod.values()) {
+			long r = retries.get(method).get();
+			long f = failures.get(method).get();
+			if (r > 0 || f > 0) {
+				logger.info(String.format("%s: retries=%d failedAfterRetry=%d", method.getRpcName(), r, f));
+			}
+		}
+		logger.info(String.format("retry budget denied=%d, hedged lookups=%d (won %d)", budgetDenied.get(),
+				hedges.get(), hedgeWins.get()));
+	}
+
+	private <T> T execute(RpcMethod method, boolean idempotent, Call<T> call) throws DatastoreException {
+		deposit();
+		for (int attempt = 1;; attempt++) {
+			try {
+				return call.call();
+			} catch (DatastoreException exception) {
+				if (!idempotent || !isRetryable(exception) || attempt >= maxAttempts) {
+					if (attempt > 1) {
+						failures.get(method).incrementAndGet();
+					}
+					throw exception;
+				}
+				if (!withdraw()) {
+					budgetDenied.incrementAndGet();
+					if (attempt > 1) {
+						failures.get(method).incrementAndGet();
+					}
+					throw exception;
+				}
+				retries.get(method).incrementAndGet();
+				try {
+					TimeUnit.MILLISECONDS.sleep(backoffMillis(attempt));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw exception;
+				}
+			}
+		}
+	}
+
+	/** Full jitter: uniformly between 0 and the exponential bound. */
+	private long backoffMillis(int attempt) {
+		long bound = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 30));
+		return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+	}
+
+	private synchronized void deposit() {
+		budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+	}
+
+	private synchronized boolean withdraw() {
+		if (budget < 1) {
+			return false;
+		}
+		budget -= 1;
+		return true;
+	}
+
+	private LookupResponse timedLookup(LookupRequest request) throws DatastoreException {
+		long start = System.nanoTime();
+		try {
+			return delegate.lookup(request);
+		} finally {
+			lookupLatency.recordSince(start);
+		}
+	}
+
+	private LookupResponse hedgedLookup(final LookupRequest request) throws DatastoreException {
+		if (lookupLatency.getCount() < MIN_HEDGE_SAMPLES) {
+			return timedLookup(request);
+		}
+		long delay = lookupLatency.getValueAtPercentile(95.0);
+		Callable<LookupResponse> lookup = new Callable<LookupResponse>() {
+			@Override
+			public LookupResponse call() throws DatastoreException {
+				return timedLookup(request);
+			}
+		};
+		CompletionService<LookupResponse> completion = new ExecutorCompletionService<LookupResponse>(HEDGE_EXECUTOR);
+		List<Future<LookupResponse>> started = new ArrayList<Future<LookupResponse>>(2);
+		try {
+			Future<LookupResponse> primary = completion.submit(lookup);
+			started.add(primary);
+			Future<LookupResponse> done = completion.poll(delay, TimeUnit.NANOSECONDS);
+			if (done == null) {
+				hedges.incrementAndGet();
+				started.add(completion.submit(lookup));
+				done = completion.take();
+			}
+			try {
+				return winner(done, primary);
+			} catch (DatastoreException exception) {
+				if (started.size() == 1) {
+					throw exception;
+				}
+				// The other request may still succeed.
+				return winner(completion.take(), primary);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for lookup", e);
+		} finally {
+			for (Future<LookupResponse> future : started) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private LookupResponse winner(Future<LookupResponse> done, Future<LookupResponse> primary)
+			throws DatastoreException, InterruptedException {
+		try {
+			LookupResponse response = done.get();
+			if (done != primary) {
+				hedgeWins.incrementAndGet();
+			}
+			return response;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DatastoreException) {
+				throw (DatastoreException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private interface Call<T> {
+		T call() throws DatastoreException;
+	}
+}
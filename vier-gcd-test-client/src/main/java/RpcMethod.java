@@ -0,0 +1,21 @@
+/**
+ * The Datastore RPC methods, named as in the request URL.
+ */
+public enum RpcMethod {
+	BLIND_WRITE("blindWrite"),
+	LOOKUP("lookup"),
+	RUN_QUERY("runQuery"),
+	BEGIN_TRANSACTION("beginTransaction"),
+	COMMIT("commit"),
+	ROLLBACK("rollback");
+
+	private final String rpcName;
+
+	private RpcMethod(String rpcName) {
+		this.rpcName = rpcName;
+	}
+
+	public String getRpcName() {
+		return rpcName;
+	}
+}
@@ -0,0 +1,140 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, in-flight gauge, latency histogram, error counts by status code
+ * and serialized message sizes of one RPC method. Updated by
+ * {@link MetricsDatastoreRpc}, read through JMX and the Prometheus endpoint.
+ */
+public class RpcMetrics implements RpcMetricsMBean {
+
+	/** Code counted for failures that are not a DatastoreException. */
+	public static final int CLIENT_ERROR_CODE = 0;
+
+	private final RpcMethod method;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LongAdder requests = new LongAdder();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ConcurrentMap<Integer, LongAdder> errors = new ConcurrentHashMap<Integer, LongAdder>();
+	private final LongAdder requestBytes = new LongAdder();
+	private final LongAdder responseBytes = new LongAdder();
+
+	public RpcMetrics(RpcMethod method) {
+		this.method = method;
+	}
+
+	public RpcMethod getMethod() {
+		return method;
+	}
+
+	/** Starts a call; returns the start time to pass to the end methods. */
+	long begin(int requestSize) {
+		requests.increment();
+		requestBytes.add(requestSize);
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	void succeeded(long start, int responseSize) {
+		latency.recordSince(start);
+		inFlight.decrementAndGet();
+		responseBytes.add(responseSize);
+	}
+
+	void failed(long start, int code) {
+		latency.recordSince(start);
+		inFlight.decrementAndGet();
+		LongAdder counter = errors.get(code);
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+			counter = errors.putIfAbsent(code, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.increment();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/** Error counts by status code, in code order. */
+	public Map<Integer, Long> getErrorsByCode() {
+		Map<Integer, Long> result = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, LongAdder> entry : errors.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return result;
+	}
+
+	@Override
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	@Override
+	public long getErrorCount() {
+		long sum = 0;
+		for (LongAdder counter : errors.values()) {
+			sum += counter.sum();
+		}
+		return sum;
+	}
+
+	@Override
+	public String getErrorCodes() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Integer, Long> entry : getErrorsByCode().entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return latency.getMeanNanos() / 1e6;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return latency.getValueAtPercentile(50) / 1e6;
+	}
+
+	@Override
+	public double getP95Millis() {
+		return latency.getValueAtPercentile(95) / 1e6;
+	}
+
+	@Override
+	public double getP99Millis() {
+		return latency.getValueAtPercentile(99) / 1e6;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return latency.getMaxNanos() / 1e6;
+	}
+
+	@Override
+	public long getRequestBytes() {
+		return requestBytes.sum();
+	}
+
+	@Override
+	public long getResponseBytes() {
+		return responseBytes.sum();
+	}
+}
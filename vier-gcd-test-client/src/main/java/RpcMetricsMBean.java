@@ -0,0 +1,29 @@
+/**
+ * JMX view of the metrics of one Datastore RPC method. Latencies are in
+ * milliseconds and cover the whole run.
+ */
+public interface RpcMetricsMBean {
+
+	long getRequestCount();
+
+	long getErrorCount();
+
+	/** Error counts by HTTP status, e.g. {@code 409=3, 503=1}. */
+	String getErrorCodes();
+
+	int getInFlight();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP95Millis();
+
+	double getP99Millis();
+
+	double getMaxMillis();
+
+	long getRequestBytes();
+
+	long getResponseBytes();
+}
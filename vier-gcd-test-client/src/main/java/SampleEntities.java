@@ -0,0 +1,86 @@
+import java.util.Date;
+
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.Value;
+
+/**
+ * Builds the entities written by the ClientTest3/ClientTest6 put loops and
+ * reads them back in the query loops.
+ */
+public class SampleEntities {
+
+	/** Kind written by the put loops and read by the query loops. */
+	public static final String KIND = "ClientTest3";
+
+	private SampleEntities() {
+	}
+
+	/**
+	 * Creates the i-th entity: a key without parent and the three properties
+	 * {@code str}, {@code number} and {@code createDate}.
+	 */
+	public static Entity.Builder newEntity(String kind, String keyName, int i) {
+		Entity.Builder entity = Entity.newBuilder();
+		entity.setKey(Key.newBuilder().addPathElement(Key.PathElement.newBuilder().setKind(kind).setName(keyName)));
+		entity.addProperty(Property.newBuilder().setName("str").addValue(Value.newBuilder().setStringValue("string" + i)));
+		entity.addProperty(Property.newBuilder().setName("number").addValue(Value.newBuilder().setIntegerValue(i)));
+		entity.addProperty(Property.newBuilder().setName("createDate")
+				.addValue(Value.newBuilder().setTimestampMicrosecondsValue(new Date().getTime() * 1000)));
+		return entity;
+	}
+
+	public static Entity.Builder newEntity(int i) {
+		return newEntity(KIND, "keyName" + i, i);
+	}
+
+	/**
+	 * Typed accessors for the three properties, for the query loops. Reuse
+	 * one instance per loop.
+	 */
+	public static class Reader {
+		private static final int STR = 0;
+		private static final int NUMBER = 1;
+		private static final int CREATE_DATE = 2;
+
+		private final EntityReader reader = new EntityReader("str", "number", "createDate");
+
+		public Reader reset(Entity entity) {
+			reader.reset(entity);
+			return this;
+		}
+
+		public String keyName() {
+			return reader.getKeyName();
+		}
+
+		public String str() {
+			return reader.getString(STR);
+		}
+
+		public long number() {
+			return reader.getLong(NUMBER, 0);
+		}
+
+		public long createDateMicros() {
+			return reader.getTimestampMicros(CREATE_DATE, 0);
+		}
+
+		/** Leaves out the properties a projection did not return. */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("Entity: keyName:").append(keyName());
+			if (reader.has(STR)) {
+				sb.append(" str:").append(str());
+			}
+			if (reader.has(NUMBER)) {
+				sb.append(" number:").append(number());
+			}
+			if (reader.has(CREATE_DATE)) {
+				sb.append(" createDate:").append(new Date(createDateMicros() / 1000));
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionResponse;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.DatastoreV1.RollbackResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Records the latency of every RPC into a {@link LatencyHistogram} per method.
+ * Failed calls are recorded too.
+ */
+public class TimedDatastoreRpc extends ForwardingDatastoreRpc {
+	private static final Logger logger = Logger.getLogger(TimedDatastoreRpc.class.getName());
+
+	private final Map<RpcMethod, LatencyHistogram> histograms = new EnumMap<RpcMethod, LatencyHistogram>(
+			RpcMethod.class);
+	private ScheduledExecutorService reporter;
+
+	public TimedDatastoreRpc(DatastoreRpc delegate) {
+		super(delegate);
+		for (RpcMethod method : RpcMethod.values()) {
+			histograms.put(method, new LatencyHistogram());
+		}
+	}
+
+	public LatencyHistogram getHistogram(RpcMethod method) {
+		return histograms.get(method);
+	}
+
+	/** Logs the percentiles of every method that was called. */
+	public void logSummary() {
+		for (Map.Entry<RpcMethod, LatencyHistogram> entry : histograms.entrySet()) {
+			if (entry.getValue().getCount() > 0) {
+				logger.info(entry.getValue().summary(entry.getKey().getRpcName()));
+			}
+		}
+	}
+
+	/**
+	 * Logs the percentiles of the last interval every {@code seconds} from a
+	 * background thread, until {@link #stopIntervalReport()}.
+	 */
+	public synchronized void startIntervalReport(long seconds) {
+		if (reporter != null) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "latency-report");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final Map<RpcMethod, LatencyHistogram> previous = new EnumMap<RpcMethod, LatencyHistogram>(RpcMethod.class);
+		for (Map.Entry<RpcMethod, LatencyHistogram> entry : histograms.entrySet()) {
+			previous.put(entry.getKey(), entry.getValue().copy());
+		}
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				for (Map.Entry<RpcMethod, LatencyHistogram> entry : histograms.entrySet()) {
+					LatencyHistogram current = entry.getValue().copy();
+					LatencyHistogram interval = current.since(previous.get(entry.getKey()));
+					previous.put(entry.getKey(), current);
+					if (interval.getCount() > 0) {
+						logger.info("interval " + interval.summary(entry.getKey().getRpcName()));
+					}
+				}
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopIntervalReport() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+
+	@Override
+	public BlindWriteResponse blindWrite(BlindWriteRequest request) throws DatastoreException {
+		long start = System.nanoTime();
+		try {
+			return delegate.blindWrite(request);
+		} finally {
+			histograms.get(RpcMethod.BLIND_WRITE).recordSince(start);
+		}
+	}
+
+	@Override
+	public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+		long start = System.nanoTime();
+		try {
+			return delegate.lookup(request);
+		} finally {
+			histograms.get(RpcMethod.LOOKUP).recordSince(start);
+		}
+	}
+
+	@Override
+	public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+		long start = System.nanoTime();
+		try {
+			return delegate.runQuery(request);
+		} finally {
+			histograms.get(RpcMethod.RUN_QUERY).recordSince(start);
+		}
+	}
+
+	@Override
+	public BeginTransactionResponse beginTransaction(BeginTransactionRequest request) throws DatastoreException {
+		long start = System.nanoTime();
+		try {
+			return delegate.beginTransaction(request);
+		} finally {
+			histograms.get(RpcMethod.BEGIN_TRANSACTION).recordSince(start);
+		}
+	}
+
+	@Override
+	public CommitResponse commit(CommitRequest request) throws DatastoreException {
+		long start = System.nanoTime();
+		try {
+			return delegate.commit(request);
+		} finally {
+			histograms.get(RpcMethod.COMMIT).recordSince(start);
+		}
+	}
+
+	@Override
+	public RollbackResponse rollback(RollbackRequest request) throws DatastoreException {
+		long start = System.nanoTime();
+		try {
+			return delegate.rollback(request);
+		} finally {
+			histograms.get(RpcMethod.ROLLBACK).recordSince(start);
+		}
+	}
+}
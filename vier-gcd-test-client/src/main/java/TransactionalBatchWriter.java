@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.Mutation;
+import com.google.api.services.datastore.DatastoreV1.ReadOptions;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.protobuf.ByteString;
+
+/**
+ * Collects upserts by entity group, the root {@link Key.PathElement} of their
+ * keys, and commits each group in its own transaction. The transactions run
+ * in parallel on a pool; a group with more than
+ * {@link #setMaxEntitiesPerTransaction maxEntitiesPerTransaction} entities is
+ * split into several transactions.
+ *
+ * Transactions on the same group conflict, and all but one of them abort
+ * with 409. With lock stripes, the writer takes the stripe of the group for
+ * the whole transaction, so its own transactions on one group run one after
+ * the other; 0 stripes leaves them to the optimistic concurrency of the
+ * Datastore. Aborted transactions are retried with backoff up to
+ * {@link #setMaxAttempts maxAttempts} times.
+ *
+ * {@link #upsert} and {@link #flush} are not thread-safe.
+ */
+public class TransactionalBatchWriter implements AutoCloseable {
+	private static final Logger logger = Logger.getLogger(TransactionalBatchWriter.class.getName());
+
+	/** Status of a commit that lost to a concurrent transaction. */
+	public static final int CONFLICT_CODE = 409;
+
+	private final DatastoreRpc datastore;
+	private final ExecutorService executor;
+	private final ReentrantLock[] stripes;
+	private int maxEntitiesPerTransaction = 500;
+	private int maxAttempts = 5;
+	private boolean readBeforeWrite;
+
+	private final Map<Key.PathElement, List<Entity>> groups = new LinkedHashMap<Key.PathElement, List<Entity>>();
+
+	private final AtomicLong transactions = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong aborts = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong entities = new AtomicLong();
+	private final LatencyHistogram commitLatency = new LatencyHistogram();
+	private final LatencyHistogram lockWait = new LatencyHistogram();
+
+	public TransactionalBatchWriter(DatastoreRpc datastore, int threads, int lockStripes) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		if (lockStripes < 0) {
+			throw new IllegalArgumentException("lockStripes must not be negative: " + lockStripes);
+		}
+		this.datastore = datastore;
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "tx-writer-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.stripes = new ReentrantLock[lockStripes];
+		for (int i = 0; i < lockStripes; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	public void setMaxEntitiesPerTransaction(int maxEntitiesPerTransaction) {
+		if (maxEntitiesPerTransaction < 1) {
+			throw new IllegalArgumentException("maxEntitiesPerTransaction must be positive: "
+					+ maxEntitiesPerTransaction);
+		}
+		this.maxEntitiesPerTransaction = maxEntitiesPerTransaction;
+	}
+
+	/** Attempts per transaction, including the first; 1 does not retry aborts. */
+	public void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Looks up the keys inside the transaction before committing, as a
+	 * read-modify-write would. This widens the conflict window by one RPC.
+	 */
+	public void setReadBeforeWrite(boolean readBeforeWrite) {
+		this.readBeforeWrite = readBeforeWrite;
+	}
+
+	public void upsert(Entity entity) {
+		Key.PathElement root = entity.getKey().getPathElement(0);
+		List<Entity> group = groups.get(root);
+		if (group == null) {
+			group = new ArrayList<Entity>();
+			groups.put(root, group);
+		}
+		group.add(entity);
+	}
+
+	public void upsert(Entity.Builder entity) {
+		upsert(entity.build());
+	}
+
+	/**
+	 * Commits the pending groups and waits for all transactions. The pending
+	 * entities are discarded even if some transactions fail; the first
+	 * failure is rethrown after the others finished.
+	 */
+	public void flush() throws DatastoreException, InterruptedException {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (Map.Entry<Key.PathElement, List<Entity>> entry : groups.entrySet()) {
+			List<Entity> group = entry.getValue();
+			for (int from = 0; from < group.size(); from += maxEntitiesPerTransaction) {
+				final Key.PathElement root = entry.getKey();
+				final List<Entity> chunk = group.subList(from, Math.min(group.size(), from
+						+ maxEntitiesPerTransaction));
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						commit(root, chunk);
+						return null;
+					}
+				}));
+			}
+		}
+		DatastoreException failure = null;
+		try {
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof DatastoreException)) {
+						throw new IllegalStateException(e.getCause());
+					}
+					if (failure == null) {
+						failure = (DatastoreException) e.getCause();
+					}
+				}
+			}
+		} finally {
+			groups.clear();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void commit(Key.PathElement root, List<Entity> chunk) throws DatastoreException, InterruptedException {
+		ReentrantLock lock = null;
+		if (stripes.length > 0) {
+			lock = stripes[(root.hashCode() & Integer.MAX_VALUE) % stripes.length];
+			long start = System.nanoTime();
+			lock.lockInterruptibly();
+			lockWait.recordSince(start);
+		}
+		try {
+			Mutation mutation = Mutation.newBuilder().addAllUpsert(chunk).build();
+			transactions.incrementAndGet();
+			for (int attempt = 1;; attempt++) {
+				long start = System.nanoTime();
+				try {
+					attempt(mutation);
+					commitLatency.recordSince(start);
+					commits.incrementAndGet();
+					entities.addAndGet(chunk.size());
+					return;
+				} catch (DatastoreException e) {
+					commitLatency.recordSince(start);
+					if (e.code != CONFLICT_CODE) {
+						failures.incrementAndGet();
+						throw e;
+					}
+					aborts.incrementAndGet();
+					if (attempt >= maxAttempts) {
+						failures.incrementAndGet();
+						throw e;
+					}
+					TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(10L << Math.min(attempt, 8)));
+				}
+			}
+		} finally {
+			if (lock != null) {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void attempt(Mutation mutation) throws DatastoreException {
+		ByteString transaction = datastore.beginTransaction(BeginTransactionRequest.getDefaultInstance())
+				.getTransaction();
+		if (readBeforeWrite) {
+			LookupRequest.Builder lookup = LookupRequest.newBuilder();
+			lookup.setReadOptions(ReadOptions.newBuilder().setTransaction(transaction));
+			for (Entity entity : mutation.getUpsertList()) {
+				lookup.addKey(entity.getKey());
+			}
+			try {
+				datastore.lookup(lookup.build());
+			} catch (DatastoreException e) {
+				rollbackQuietly(transaction);
+				throw e;
+			}
+		}
+		// A failed commit ends the transaction; there is nothing to roll back.
+		datastore.commit(CommitRequest.newBuilder().setTransaction(transaction).setMutation(mutation).build());
+	}
+
+	private void rollbackQuietly(ByteString transaction) {
+		try {
+			datastore.rollback(RollbackRequest.newBuilder().setTransaction(transaction).build());
+		} catch (DatastoreException e) {
+			logger.fine("rollback failed: " + e.getMessage());
+		}
+	}
+
+	/** Transactions started by {@link #flush}, each counted once whatever its attempts. */
+	public long getTransactionCount() {
+		return transactions.get();
+	}
+
+	public long getCommitCount() {
+		return commits.get();
+	}
+
+	/** Commits that failed with 409, including those retried later. */
+	public long getAbortCount() {
+		return aborts.get();
+	}
+
+	/** Transactions given up, after maxAttempts aborts or another error. */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	public long getEntityCount() {
+		return entities.get();
+	}
+
+	/** Aborted attempts over all commit attempts. */
+	public double getAbortRate() {
+		long attempts = commits.get() + aborts.get();
+		return attempts == 0 ? 0 : (double) aborts.get() / attempts;
+	}
+
+	/** Latency of one attempt, from beginTransaction to the commit response. */
+	public LatencyHistogram getCommitLatency() {
+		return commitLatency;
+	}
+
+	public LatencyHistogram getLockWait() {
+		return lockWait;
+	}
+
+	/**
+	 * Logs counts, abort rate and throughput. {@code elapsedMillis} is the
+	 * wall time of the writes.
+	 */
+	public void logSummary(long elapsedMillis) {
+		logger.info(String.format("%d transactions: %d committed, %d aborts (%.1f%% of attempts), %d failed, "
+				+ "%.1f commits/sec, %.1f entities/sec", getTransactionCount(), getCommitCount(), getAbortCount(),
+				getAbortRate() * 100, getFailureCount(), elapsedMillis == 0 ? 0.0 : getCommitCount() * 1000.0
+						/ elapsedMillis, elapsedMillis == 0 ? 0.0 : getEntityCount() * 1000.0 / elapsedMillis));
+		logger.info(commitLatency.summary("commit"));
+		if (lockWait.getCount() > 0) {
+			logger.info(lockWait.summary("lock wait"));
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+}
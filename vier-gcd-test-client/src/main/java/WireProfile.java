@@ -0,0 +1,107 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Per-phase timings and payload sizes collected by
+ * {@link WireProfilingDatastoreRpc}, plus the time the caller spends
+ * building the entities ({@link Phase#BUILD}).
+ */
+public class WireProfile {
+	private static final Logger logger = Logger.getLogger(WireProfile.class.getName());
+
+	public enum Phase {
+		/** Building the entity and request protos, timed by the caller. */
+		BUILD,
+		/** {@code request.toByteArray()}. */
+		SERIALIZE,
+		/** Adding the Authorization header, including token refreshes. */
+		AUTH,
+		/** Sending the request and reading the whole response body. */
+		NETWORK,
+		/** {@code XxxResponse.parseFrom(bytes)}. */
+		PARSE
+	}
+
+	private final Map<Phase, LatencyHistogram> phases = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+	private final Map<RpcMethod, LongAdder> calls = new EnumMap<RpcMethod, LongAdder>(RpcMethod.class);
+	private final Map<RpcMethod, LongAdder> requestBytes = new EnumMap<RpcMethod, LongAdder>(RpcMethod.class);
+	private final Map<RpcMethod, LongAdder> responseBytes = new EnumMap<RpcMethod, LongAdder>(RpcMethod.class);
+
+	public WireProfile() {
+		for (Phase phase : Phase.values()) {
+			phases.put(phase, new LatencyHistogram());
+		}
+		for (RpcMethod method : RpcMethod.values()) {
+			calls.put(method, new LongAdder());
+			requestBytes.put(method, new LongAdder());
+			responseBytes.put(method, new LongAdder());
+		}
+	}
+
+	public void record(Phase phase, long nanos) {
+		phases.get(phase).recordNanos(nanos);
+	}
+
+	/** Records the time from {@code startNanos} to now and returns now. */
+	public long recordSince(Phase phase, long startNanos) {
+		long now = System.nanoTime();
+		phases.get(phase).recordNanos(now - startNanos);
+		return now;
+	}
+
+	void recordBytes(RpcMethod method, int requestSize, int responseSize) {
+		calls.get(method).increment();
+		requestBytes.get(method).add(requestSize);
+		responseBytes.get(method).add(responseSize);
+	}
+
+	public LatencyHistogram getPhase(Phase phase) {
+		return phases.get(phase);
+	}
+
+	public long getRequestBytes(RpcMethod method) {
+		return requestBytes.get(method).sum();
+	}
+
+	public long getResponseBytes(RpcMethod method) {
+		return responseBytes.get(method).sum();
+	}
+
+	/**
+	 * Logs the percentiles and share of the total time of every phase, the
+	 * client-side (build, serialize, auth, parse) versus network split and
+	 * the payload sizes of every RPC method that was called.
+	 */
+	public void logSummary() {
+		long total = 0;
+		for (LatencyHistogram histogram : phases.values()) {
+			total += histogram.getTotalNanos();
+		}
+		if (total == 0) {
+			return;
+		}
+		for (Map.Entry<Phase, LatencyHistogram> entry : phases.entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			if (histogram.getCount() == 0) {
+				continue;
+			}
+			logger.info(String.format("%s total=%.3f ms (%.1f%%)", histogram.summary(entry.getKey().name()
+					.toLowerCase()), histogram.getTotalNanos() / 1e6, 100.0 * histogram.getTotalNanos() / total));
+		}
+		long network = phases.get(Phase.NETWORK).getTotalNanos();
+		logger.info(String.format("client %.3f ms (%.1f%%), network %.3f ms (%.1f%%)", (total - network) / 1e6,
+				100.0 * (total - network) / total, network / 1e6, 100.0 * network / total));
+		for (RpcMethod method : RpcMethod.values()) {
+			long count = calls.get(method).sum();
+			if (count == 0) {
+				continue;
+			}
+			long sent = getRequestBytes(method);
+			long received = getResponseBytes(method);
+			logger.info(String.format("%s: calls=%d request=%d bytes (%d/call) response=%d bytes (%d/call)",
+					method.getRpcName(), count, sent, sent / count, received, received / count));
+		}
+	}
+}
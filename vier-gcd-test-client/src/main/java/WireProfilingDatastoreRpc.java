@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionRequest;
+import com.google.api.services.datastore.DatastoreV1.BeginTransactionResponse;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.CommitRequest;
+import com.google.api.services.datastore.DatastoreV1.CommitResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RollbackRequest;
+import com.google.api.services.datastore.DatastoreV1.RollbackResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.api.services.datastore.client.DatastoreOptions;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * Sends the RPCs over HTTP itself instead of through the {@link
+ * com.google.api.services.datastore.client.Datastore} client, so that each
+ * call can be split into serialize, auth, network and parse phases. The
+ * timings and the payload sizes go to a {@link WireProfile}.
+ *
+ * The credential is applied by calling {@link Credential#intercept} before
+ * sending rather than as an interceptor, so token refreshes are counted as
+ * auth time. A 401 is not retried with a fresh token.
+ */
+public class WireProfilingDatastoreRpc implements DatastoreRpc {
+	private static final String PROTOBUF_TYPE = "application/x-protobuf";
+
+	private final HttpRequestFactory requestFactory;
+	private final Credential credential;
+	private final String baseUrl;
+	private final WireProfile profile;
+
+	public WireProfilingDatastoreRpc(DatastoreOptions options, HttpTransport transport, WireProfile profile) {
+		this.requestFactory = transport.createRequestFactory(ClientFactory.get().initializer(null));
+		this.credential = options.getCredential();
+		this.baseUrl = options.getHost() + "/datastore/v1beta1/datasets/" + options.getDataset() + "/";
+		this.profile = profile;
+	}
+
+	public WireProfile getProfile() {
+		return profile;
+	}
+
+	@Override
+	public BlindWriteResponse blindWrite(BlindWriteRequest request) throws DatastoreException {
+		return call(RpcMethod.BLIND_WRITE, request, new Parser<BlindWriteResponse>() {
+			@Override
+			public BlindWriteResponse parse(byte[] bytes) throws InvalidProtocolBufferException {
+				return BlindWriteResponse.parseFrom(bytes);
+			}
+		});
+	}
+
+	@Override
+	public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+		return call(RpcMethod.LOOKUP, request, new Parser<LookupResponse>() {
+			@Override
+			public LookupResponse parse(byte[] bytes) throws InvalidProtocolBufferException {
+				return LookupResponse.parseFrom(bytes);
+			}
+		});
+	}
+
+	@Override
+	public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+		return call(RpcMethod.RUN_QUERY, request, new Parser<RunQueryResponse>() {
+			@Override
+			public RunQueryResponse parse(byte[] bytes) throws InvalidProtocolBufferException {
+				return RunQueryResponse.parseFrom(bytes);
+			}
+		});
+	}
+
+	@Override
+	public BeginTransactionResponse beginTransaction(BeginTransactionRequest request) throws DatastoreException {
+		return call(RpcMethod.BEGIN_TRANSACTION, request, new Parser<BeginTransactionResponse>() {
+			@Override
+			public BeginTransactionResponse parse(byte[] bytes) throws InvalidProtocolBufferException {
+				return BeginTransactionResponse.parseFrom(bytes);
+			}
+		});
+	}
+
+	@Override
+	public CommitResponse commit(CommitRequest request) throws DatastoreException {
+		return call(RpcMethod.COMMIT, request, new Parser<CommitResponse>() {
+			@Override
+			public CommitResponse parse(byte[] bytes) throws InvalidProtocolBufferException {
+				return CommitResponse.parseFrom(bytes);
+			}
+		});
+	}
+
+	@Override
+	public RollbackResponse rollback(RollbackRequest request) throws DatastoreException {
+		return call(RpcMethod.ROLLBACK, request, new Parser<RollbackResponse>() {
+			@Override
+			public RollbackResponse parse(byte[] bytes) throws InvalidProtocolBufferException {
+				return RollbackResponse.parseFrom(bytes);
+			}
+		});
+	}
+
+	private <T extends Message> T call(RpcMethod method, Message request, Parser<T> parser)
+			throws DatastoreException {
+		String methodName = method.getRpcName();
+		try {
+			long time = System.nanoTime();
+			byte[] payload = request.toByteArray();
+			time = profile.recordSince(WireProfile.Phase.SERIALIZE, time);
+
+			HttpRequest httpRequest = requestFactory.buildPostRequest(new GenericUrl(baseUrl + methodName),
+					new ByteArrayContent(PROTOBUF_TYPE, payload));
+			httpRequest.setThrowExceptionOnExecuteError(false);
+			if (credential != null) {
+				credential.intercept(httpRequest);
+			}
+			time = profile.recordSince(WireProfile.Phase.AUTH, time);
+
+			HttpResponse httpResponse = httpRequest.execute();
+			byte[] body;
+			try {
+				InputStream content = httpResponse.getContent();
+				body = content == null ? new byte[0] : IOUtils.toByteArray(content);
+			} finally {
+				httpResponse.disconnect();
+			}
+			time = profile.recordSince(WireProfile.Phase.NETWORK, time);
+			if (!httpResponse.isSuccessStatusCode()) {
+				throw new DatastoreException(methodName, httpResponse.getStatusCode(), new String(body, "UTF-8"),
+						null);
+			}
+
+			T response = parser.parse(body);
+			profile.recordSince(WireProfile.Phase.PARSE, time);
+			profile.recordBytes(method, payload.length, body.length);
+			return response;
+		} catch (IOException e) {
+			throw new DatastoreException(methodName, RpcMetrics.CLIENT_ERROR_CODE, e.getMessage(), e);
+		}
+	}
+
+	private interface Parser<T> {
+		T parse(byte[] bytes) throws InvalidProtocolBufferException;
+	}
+}
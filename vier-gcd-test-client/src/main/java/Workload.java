@@ -0,0 +1,199 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A benchmark workload in the style of YCSB, read from a properties file:
+ * the operation mix, how keys are chosen, entity size, threads and run
+ * durations. See {@code src/main/resources/workloads} for the bundled
+ * definitions and the meaning of each property.
+ *
+ * Any property can be overridden with {@code -Dworkload.<name>=value}.
+ */
+public class Workload {
+
+	/** How a worker picks the key of its next operation. */
+	public enum KeyDistribution {
+		/** Every loaded key equally likely. */
+		UNIFORM,
+		/** A few keys get most operations (Zipf constant 0.99). */
+		ZIPFIAN,
+		/** Recently written keys are the most likely; writes add new keys. */
+		LATEST
+	}
+
+	/** What a query operation reads. */
+	public enum QueryOrder {
+		/** {@code queryLimit} entities from the chosen key on, in key order. */
+		KEY,
+		/** The newest {@code queryLimit} entities by {@code createDate}. */
+		CREATE_DATE
+	}
+
+	private final String name;
+	private final String kind;
+	private final int recordCount;
+	private final boolean load;
+	private final KeyStrategy keyStrategy;
+	private final KeyDistribution keyDistribution;
+	private final double readProportion;
+	private final double writeProportion;
+	private final double queryProportion;
+	private final QueryOrder queryOrder;
+	private final int queryLimit;
+	private final int entitySize;
+	private final int threads;
+	private final int warmupSeconds;
+	private final int measureSeconds;
+
+	Workload(String name, Properties properties) {
+		this.name = name;
+		this.kind = get(properties, "kind", "Workload");
+		this.recordCount = Integer.parseInt(get(properties, "recordCount", "10000"));
+		this.load = Boolean.parseBoolean(get(properties, "load", "true"));
+		this.keyStrategy = KeyStrategy.valueOf(get(properties, "keyStrategy", "hashed").toUpperCase());
+		this.keyDistribution = KeyDistribution.valueOf(get(properties, "keyDistribution", "uniform").toUpperCase());
+		this.readProportion = Double.parseDouble(get(properties, "readProportion", "0"));
+		this.writeProportion = Double.parseDouble(get(properties, "writeProportion", "0"));
+		this.queryProportion = Double.parseDouble(get(properties, "queryProportion", "0"));
+		this.queryOrder = "createDate".equalsIgnoreCase(get(properties, "queryOrder", "key")) ? QueryOrder.CREATE_DATE
+				: QueryOrder.KEY;
+		this.queryLimit = Integer.parseInt(get(properties, "queryLimit", "10"));
+		this.entitySize = Integer.parseInt(get(properties, "entitySize", "100"));
+		this.threads = Integer.parseInt(get(properties, "threads", "16"));
+		this.warmupSeconds = Integer.parseInt(get(properties, "warmupSeconds", "10"));
+		this.measureSeconds = Integer.parseInt(get(properties, "measureSeconds", "60"));
+
+		if (readProportion < 0 || writeProportion < 0 || queryProportion < 0
+				|| readProportion + writeProportion + queryProportion <= 0) {
+			throw new IllegalArgumentException("workload " + name + " has no operations");
+		}
+		if (keyStrategy == KeyStrategy.UUID) {
+			throw new IllegalArgumentException("keyStrategy uuid cannot be used for a workload");
+		}
+		if (recordCount < 1) {
+			throw new IllegalArgumentException("recordCount must be positive: " + recordCount);
+		}
+	}
+
+	/**
+	 * Loads {@code nameOrFile}: a properties file if one exists at that path,
+	 * otherwise the bundled {@code workloads/<name>.properties}.
+	 *
+	 * @throws IllegalArgumentException if there is no such workload
+	 */
+	public static Workload load(String nameOrFile) throws IOException {
+		Properties properties = new Properties();
+		File file = new File(nameOrFile);
+		String name;
+		InputStream in;
+		if (file.isFile()) {
+			name = file.getName().replaceFirst("\\.properties$", "");
+			in = new FileInputStream(file);
+		} else {
+			name = nameOrFile;
+			in = Workload.class.getResourceAsStream("/workloads/" + nameOrFile + ".properties");
+			if (in == null) {
+				throw new IllegalArgumentException("no workload file or bundled workload named " + nameOrFile);
+			}
+		}
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return new Workload(name, properties);
+	}
+
+	private static String get(Properties properties, String key, String defaultValue) {
+		return System.getProperty("workload." + key, properties.getProperty(key, defaultValue)).trim();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getKind() {
+		return kind;
+	}
+
+	/** Number of keys in the key space, written first if {@link #isLoad()}. */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	public boolean isLoad() {
+		return load;
+	}
+
+	public KeyStrategy getKeyStrategy() {
+		return keyStrategy;
+	}
+
+	public KeyDistribution getKeyDistribution() {
+		return keyDistribution;
+	}
+
+	/** Share of lookups; the three proportions need not add up to 1. */
+	public double getReadProportion() {
+		return readProportion;
+	}
+
+	public double getWriteProportion() {
+		return writeProportion;
+	}
+
+	public double getQueryProportion() {
+		return queryProportion;
+	}
+
+	public QueryOrder getQueryOrder() {
+		return queryOrder;
+	}
+
+	public int getQueryLimit() {
+		return queryLimit;
+	}
+
+	/** Length of the unindexed {@code payload} string of each entity. */
+	public int getEntitySize() {
+		return entitySize;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getWarmupSeconds() {
+		return warmupSeconds;
+	}
+
+	public int getMeasureSeconds() {
+		return measureSeconds;
+	}
+
+	/** The settings, for the benchmark output. */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("name", name);
+		map.put("kind", kind);
+		map.put("recordCount", recordCount);
+		map.put("load", load);
+		map.put("keyStrategy", keyStrategy.name().toLowerCase());
+		map.put("keyDistribution", keyDistribution.name().toLowerCase());
+		map.put("readProportion", readProportion);
+		map.put("writeProportion", writeProportion);
+		map.put("queryProportion", queryProportion);
+		map.put("queryOrder", queryOrder == QueryOrder.CREATE_DATE ? "createDate" : "key");
+		map.put("queryLimit", queryLimit);
+		map.put("entitySize", entitySize);
+		map.put("threads", threads);
+		map.put("warmupSeconds", warmupSeconds);
+		map.put("measureSeconds", measureSeconds);
+		return map;
+	}
+}
@@ -0,0 +1,128 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.BlindWriteResponse;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupResponse;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryResponse;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+
+/**
+ * Writes every blindWrite, lookup and runQuery request to a log file before
+ * forwarding it, so that the traffic can be sent again by
+ * {@link WorkloadReplayer}. Other RPCs are forwarded without being recorded.
+ *
+ * The log starts with {@link #MAGIC}, the format version and the wall-clock
+ * start time in milliseconds. Each record is a varint {@link RpcMethod}
+ * ordinal, a varint offset in nanoseconds from the start and the
+ * length-delimited serialized request.
+ *
+ * A write error is logged once and stops the recording; the RPCs still go
+ * through.
+ */
+public class WorkloadRecorder extends ForwardingDatastoreRpc implements Closeable {
+	private static final Logger logger = Logger.getLogger(WorkloadRecorder.class.getName());
+
+	static final int MAGIC = 0x47434457; // "GCDW"
+	static final int VERSION = 1;
+
+	private final File file;
+	private final OutputStream stream;
+	private final CodedOutputStream output;
+	private final long startNanos = System.nanoTime();
+	private final Map<RpcMethod, AtomicLong> counts = new EnumMap<RpcMethod, AtomicLong>(RpcMethod.class);
+	private boolean failed;
+
+	public WorkloadRecorder(DatastoreRpc delegate, File file) throws IOException {
+		super(delegate);
+		this.file = file;
+		this.stream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		this.output = CodedOutputStream.newInstance(stream);
+		for (RpcMethod method : RpcMethod.values()) {
+			counts.put(method, new AtomicLong());
+		}
+		output.writeFixed32NoTag(MAGIC);
+		output.writeUInt32NoTag(VERSION);
+		output.writeUInt64NoTag(System.currentTimeMillis());
+	}
+
+	/**
+	 * Wraps {@code delegate} when {@code -Drecord=file} is set, otherwise
+	 * returns null.
+	 */
+	public static WorkloadRecorder fromProperties(DatastoreRpc delegate) throws IOException {
+		String path = System.getProperty("record");
+		if (path == null) {
+			return null;
+		}
+		logger.info("recording requests to " + path);
+		return new WorkloadRecorder(delegate, new File(path));
+	}
+
+	@Override
+	public BlindWriteResponse blindWrite(BlindWriteRequest request) throws DatastoreException {
+		record(RpcMethod.BLIND_WRITE, request);
+		return delegate.blindWrite(request);
+	}
+
+	@Override
+	public LookupResponse lookup(LookupRequest request) throws DatastoreException {
+		record(RpcMethod.LOOKUP, request);
+		return delegate.lookup(request);
+	}
+
+	@Override
+	public RunQueryResponse runQuery(RunQueryRequest request) throws DatastoreException {
+		record(RpcMethod.RUN_QUERY, request);
+		return delegate.runQuery(request);
+	}
+
+	private void record(RpcMethod method, Message request) {
+		long offset = System.nanoTime() - startNanos;
+		synchronized (this) {
+			if (failed) {
+				return;
+			}
+			try {
+				output.writeUInt32NoTag(method.ordinal());
+				output.writeUInt64NoTag(offset);
+				output.writeBytesNoTag(request.toByteString());
+			} catch (IOException e) {
+				failed = true;
+				logger.log(Level.WARNING, "stopped recording to " + file, e);
+				return;
+			}
+		}
+		counts.get(method).incrementAndGet();
+	}
+
+	/** Flushes and closes the log and logs how many requests were recorded. */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			output.flush();
+		} finally {
+			stream.close();
+		}
+		StringBuilder sb = new StringBuilder("recorded to ").append(file).append(':');
+		for (Map.Entry<RpcMethod, AtomicLong> entry : counts.entrySet()) {
+			if (entry.getValue().get() > 0) {
+				sb.append(' ').append(entry.getKey().getRpcName()).append('=').append(entry.getValue().get());
+			}
+		}
+		logger.info(sb.toString());
+	}
+}
@@ -0,0 +1,250 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Sends the requests of a {@link WorkloadRecorder} log again through a
+ * {@link DatastoreRpc}, from a pool of workers.
+ *
+ * The log is read sequentially on the calling thread, which dispatches each
+ * request at its recorded offset divided by the speed factor: 1 keeps the
+ * original pacing, N replays N times faster and 0 sends as fast as the
+ * workers allow. At most two requests per worker are queued, so a replay
+ * that cannot keep up falls behind instead of buffering the whole log; the
+ * delay is reported as the schedule lag, and the latency from the intended
+ * send time includes it.
+ */
+public class WorkloadReplayer {
+	private static final Logger logger = Logger.getLogger(WorkloadReplayer.class.getName());
+
+	private final DatastoreRpc datastore;
+	private final int threads;
+	private final double speed;
+
+	private final LatencyHistogram lag = new LatencyHistogram();
+	private final LatencyHistogram intended = new LatencyHistogram();
+	private final Map<RpcMethod, AtomicLong> sent = new EnumMap<RpcMethod, AtomicLong>(RpcMethod.class);
+	private final Map<RpcMethod, AtomicLong> errors = new EnumMap<RpcMethod, AtomicLong>(RpcMethod.class);
+	private long elapsedNanos;
+
+	public WorkloadReplayer(DatastoreRpc datastore, int threads, double speed) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		if (speed < 0) {
+			throw new IllegalArgumentException("speed must not be negative: " + speed);
+		}
+		this.datastore = datastore;
+		this.threads = threads;
+		this.speed = speed;
+		for (RpcMethod method : RpcMethod.values()) {
+			sent.put(method, new AtomicLong());
+			errors.put(method, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Parses {@code -Dspeed}: a factor, or {@code max} for 0 (as fast as
+	 * possible). Defaults to 1.
+	 */
+	public static double speedFromProperty() {
+		String value = System.getProperty("speed", "1");
+		return "max".equalsIgnoreCase(value) ? 0 : Double.parseDouble(value);
+	}
+
+	/** Replays the whole log and waits for the last response. */
+	public void replay(File file) throws IOException, InterruptedException {
+		final AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "replay-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final Semaphore permits = new Semaphore(threads * 2);
+		LogReader reader = new LogReader(file);
+		long start = System.nanoTime();
+		try {
+			logger.info(String.format("replaying %s recorded at %tc, %d threads, speed %s", file,
+					reader.getStartMillis(), threads, speed == 0 ? "max" : speed));
+			Entry entry;
+			while ((entry = reader.next()) != null) {
+				long target = start;
+				if (speed > 0) {
+					target += (long) (entry.offsetNanos / speed);
+					waitUntil(target);
+				}
+				permits.acquire();
+				final Entry task = entry;
+				final long scheduled = target;
+				final long dispatched = System.nanoTime();
+				if (speed > 0) {
+					lag.recordNanos(Math.max(0, dispatched - target));
+				}
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							send(task);
+						} finally {
+							permits.release();
+							intended.recordSince(speed > 0 ? scheduled : dispatched);
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} finally {
+			executor.shutdownNow();
+			reader.close();
+			elapsedNanos = System.nanoTime() - start;
+		}
+	}
+
+	private void send(Entry entry) {
+		sent.get(entry.method).incrementAndGet();
+		try {
+			switch (entry.method) {
+			case BLIND_WRITE:
+				datastore.blindWrite(BlindWriteRequest.parseFrom(entry.request));
+				break;
+			case LOOKUP:
+				datastore.lookup(LookupRequest.parseFrom(entry.request));
+				break;
+			case RUN_QUERY:
+				datastore.runQuery(RunQueryRequest.parseFrom(entry.request));
+				break;
+			default:
+				throw new IllegalStateException("not replayable: " + entry.method);
+			}
+		} catch (DatastoreException e) {
+			errors.get(entry.method).incrementAndGet();
+			logger.log(Level.FINE, entry.method.getRpcName() + " failed", e);
+		} catch (InvalidProtocolBufferException e) {
+			errors.get(entry.method).incrementAndGet();
+			logger.log(Level.WARNING, "corrupt " + entry.method.getRpcName() + " request", e);
+		}
+	}
+
+	private static void waitUntil(long targetNanos) throws InterruptedException {
+		long remaining;
+		while ((remaining = targetNanos - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Logs the requests and errors per method, the throughput, the schedule
+	 * lag and the latency from the intended send time. The per-method RPC
+	 * latency is that of the {@link TimedDatastoreRpc} the replay goes
+	 * through.
+	 */
+	public void logSummary() {
+		long total = 0;
+		for (RpcMethod method : RpcMethod.values()) {
+			long count = sent.get(method).get();
+			if (count > 0) {
+				logger.info(String.format("%s: sent=%d errors=%d", method.getRpcName(), count, errors.get(method)
+						.get()));
+			}
+			total += count;
+		}
+		logger.info(String.format("replayed %d requests in %.3f s (%.1f/s)", total, elapsedNanos / 1e9,
+				elapsedNanos > 0 ? total * 1e9 / elapsedNanos : 0));
+		if (lag.getCount() > 0) {
+			logger.info(lag.summary("schedule lag"));
+		}
+		logger.info(intended.summary("latency from intended start"));
+	}
+
+	/** One recorded request. */
+	static class Entry {
+		final RpcMethod method;
+		final long offsetNanos;
+		final ByteString request;
+
+		Entry(RpcMethod method, long offsetNanos, ByteString request) {
+			this.method = method;
+			this.offsetNanos = offsetNanos;
+			this.request = request;
+		}
+	}
+
+	/** Reads a log through a buffered stream over a {@link FileChannel}. */
+	static class LogReader implements Closeable {
+		private final InputStream stream;
+		private final CodedInputStream input;
+		private final long startMillis;
+
+		LogReader(File file) throws IOException {
+			stream = new BufferedInputStream(Channels.newInputStream(FileChannel.open(file.toPath(),
+					StandardOpenOption.READ)), 1 << 16);
+			input = CodedInputStream.newInstance(stream);
+			if (input.readFixed32() != WorkloadRecorder.MAGIC) {
+				stream.close();
+				throw new IOException("not a workload log: " + file);
+			}
+			int version = input.readUInt32();
+			if (version != WorkloadRecorder.VERSION) {
+				stream.close();
+				throw new IOException("unsupported workload log version " + version + ": " + file);
+			}
+			startMillis = input.readUInt64();
+		}
+
+		long getStartMillis() {
+			return startMillis;
+		}
+
+		/** Returns the next entry, or null at the end of the log. */
+		Entry next() throws IOException {
+			// The size limit applies to the whole stream, not to one record.
+			input.resetSizeCounter();
+			if (input.isAtEnd()) {
+				return null;
+			}
+			int ordinal = input.readUInt32();
+			if (ordinal >= RpcMethod.values().length) {
+				throw new IOException("unknown method " + ordinal);
+			}
+			long offset = input.readUInt64();
+			return new Entry(RpcMethod.values()[ordinal], offset, input.readBytes());
+		}
+
+		@Override
+		public void close() throws IOException {
+			stream.close();
+		}
+	}
+}
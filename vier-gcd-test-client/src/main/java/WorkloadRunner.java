@@ -0,0 +1,323 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.DatastoreV1.Key;
+import com.google.api.services.datastore.DatastoreV1.LookupRequest;
+import com.google.api.services.datastore.DatastoreV1.Property;
+import com.google.api.services.datastore.DatastoreV1.PropertyOrder;
+import com.google.api.services.datastore.DatastoreV1.Query;
+import com.google.api.services.datastore.DatastoreV1.RunQueryRequest;
+import com.google.api.services.datastore.DatastoreV1.Value;
+import com.google.api.services.datastore.client.DatastoreException;
+import com.google.api.services.datastore.client.DatastoreHelper;
+
+/**
+ * Runs a {@link Workload}: optionally loads its key space, then keeps
+ * {@code threads} workers issuing the mix of lookups, writes and queries
+ * back to back for the warmup and the measurement period. Only operations
+ * of the measurement period are in the {@link Result}.
+ *
+ * Entities are the {@link SampleEntities} ones plus an unindexed
+ * {@code payload} string of {@code entitySize} characters, if not 0.
+ */
+public class WorkloadRunner {
+	private static final Logger logger = Logger.getLogger(WorkloadRunner.class.getName());
+
+	public enum Operation {
+		READ, WRITE, QUERY
+	}
+
+	private final DatastoreRpc datastore;
+	private final Workload workload;
+	private final KeyChooser keys;
+	private final String payload;
+
+	/** Stats the workers record into; replaced when the measurement starts. */
+	private volatile OperationStats[] stats = newStats();
+
+	public WorkloadRunner(DatastoreRpc datastore, Workload workload) {
+		this.datastore = datastore;
+		this.workload = workload;
+		this.keys = KeyChooser.create(workload.getKeyDistribution(), workload.getRecordCount());
+		StringBuilder sb = new StringBuilder(workload.getEntitySize());
+		for (int i = 0; i < workload.getEntitySize(); i++) {
+			sb.append((char) ('a' + ThreadLocalRandom.current().nextInt(26)));
+		}
+		this.payload = sb.toString();
+	}
+
+	/**
+	 * Loads the key space if the workload asks for it, then runs the warmup
+	 * and the measurement.
+	 */
+	public Result run() throws InterruptedException {
+		if (workload.isLoad()) {
+			load();
+		}
+		logger.info("running workload " + workload.getName() + " with " + workload.getThreads() + " threads: "
+				+ workload.getWarmupSeconds() + " s warmup, " + workload.getMeasureSeconds() + " s measurement");
+
+		ExecutorService executor = Executors.newFixedThreadPool(workload.getThreads());
+		try {
+			long start = System.nanoTime();
+			final long measureStart = start + TimeUnit.SECONDS.toNanos(workload.getWarmupSeconds());
+			final long end = measureStart + TimeUnit.SECONDS.toNanos(workload.getMeasureSeconds());
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < workload.getThreads(); t++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						runWorker(end);
+						return null;
+					}
+				}));
+			}
+			TimeUnit.NANOSECONDS.sleep(measureStart - System.nanoTime());
+			stats = newStats();
+			Instant measureStartTime = Instant.now();
+			await(futures);
+			return new Result(workload, measureStartTime, workload.getMeasureSeconds(), stats);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Writes keys {@code 0..recordCount-1} with one {@link BatchWriter} per thread. */
+	private void load() throws InterruptedException {
+		final int threads = workload.getThreads();
+		final ProgressReporter progress = ProgressReporter.fromProperties("load");
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				final int first = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws DatastoreException {
+						BatchWriter writer = new BatchWriter(datastore, 500);
+						for (int i = first; i < workload.getRecordCount(); i += threads) {
+							writer.upsert(newEntity(i));
+							progress.success();
+						}
+						writer.flush();
+						return null;
+					}
+				}));
+			}
+			await(futures);
+		} finally {
+			executor.shutdownNow();
+			progress.close();
+		}
+		logger.info("loaded " + workload.getRecordCount() + " entities into " + workload.getKind());
+	}
+
+	private void runWorker(long end) {
+		double total = workload.getReadProportion() + workload.getWriteProportion() + workload.getQueryProportion();
+		double readBelow = workload.getReadProportion() / total;
+		double writeBelow = readBelow + workload.getWriteProportion() / total;
+		while (System.nanoTime() < end) {
+			double r = ThreadLocalRandom.current().nextDouble();
+			Operation operation = r < readBelow ? Operation.READ : r < writeBelow ? Operation.WRITE
+					: Operation.QUERY;
+			OperationStats current = stats[operation.ordinal()];
+			long t0 = System.nanoTime();
+			try {
+				execute(operation);
+				current.latency.recordSince(t0);
+			} catch (DatastoreException exception) {
+				current.errors.increment();
+				logger.log(Level.FINE, "error", exception);
+			}
+		}
+	}
+
+	private void execute(Operation operation) throws DatastoreException {
+		switch (operation) {
+		case READ:
+			LookupRequest.Builder lookup = LookupRequest.newBuilder();
+			lookup.addKey(key(keys.next()));
+			datastore.lookup(lookup.build());
+			break;
+		case WRITE:
+			BlindWriteRequest.Builder write = BlindWriteRequest.newBuilder();
+			write.getMutationBuilder().addUpsert(newEntity(keys.nextWrite()));
+			datastore.blindWrite(write.build());
+			break;
+		case QUERY:
+			RunQueryRequest.Builder req = RunQueryRequest.newBuilder();
+			Query.Builder query = req.getQueryBuilder();
+			query.addKindBuilder().setName(workload.getKind());
+			if (workload.getQueryOrder() == Workload.QueryOrder.CREATE_DATE) {
+				query.addOrder(DatastoreHelper.makeOrder("createDate", PropertyOrder.Direction.DESCENDING));
+			} else {
+				KeyRangeSplitter.restrict(query, DatastoreOrdering.KEY_PROPERTY,
+						Value.newBuilder().setKeyValue(key(keys.next())).build(), null);
+			}
+			query.setLimit(workload.getQueryLimit());
+			datastore.runQuery(req.build());
+			break;
+		default:
+			throw new IllegalStateException(operation.name());
+		}
+	}
+
+	private Key key(int i) {
+		return Key.newBuilder()
+				.addPathElement(
+						Key.PathElement.newBuilder().setKind(workload.getKind())
+								.setName(workload.getKeyStrategy().keyName(i))).build();
+	}
+
+	private Entity.Builder newEntity(int i) {
+		Entity.Builder entity = SampleEntities.newEntity(workload.getKind(), workload.getKeyStrategy().keyName(i), i);
+		if (payload.isEmpty()) {
+			return entity;
+		}
+		entity.addProperty(Property.newBuilder().setName("payload")
+				.addValue(Value.newBuilder().setStringValue(payload).setIndexed(false)));
+		return entity;
+	}
+
+	private static OperationStats[] newStats() {
+		OperationStats[] stats = new OperationStats[Operation.values().length];
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new OperationStats();
+		}
+		return stats;
+	}
+
+	private static void await(List<Future<?>> futures) throws InterruptedException {
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+
+	private static class OperationStats {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder errors = new LongAdder();
+	}
+
+	/**
+	 * Outcome of the measurement period, as JSON or CSV. Latencies are in
+	 * milliseconds. {@code -Dlabel} (for example the client version) is
+	 * included so that runs can be told apart.
+	 */
+	public static class Result {
+		private final Workload workload;
+		private final Instant startTime;
+		private final int seconds;
+		private final OperationStats[] stats;
+		private final String label = System.getProperty("label", "");
+
+		Result(Workload workload, Instant startTime, int seconds, OperationStats[] stats) {
+			this.workload = workload;
+			this.startTime = startTime;
+			this.seconds = seconds;
+			this.stats = stats;
+		}
+
+		public long getCount(Operation operation) {
+			return stats[operation.ordinal()].latency.getCount();
+		}
+
+		public long getErrorCount(Operation operation) {
+			return stats[operation.ordinal()].errors.sum();
+		}
+
+		public LatencyHistogram getLatency(Operation operation) {
+			return stats[operation.ordinal()].latency;
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("label", label);
+			map.put("startTime", startTime.toString());
+			map.put("javaVersion", System.getProperty("java.version"));
+			map.put("workload", workload.toMap());
+			long total = 0;
+			Map<String, Object> operations = new LinkedHashMap<String, Object>();
+			for (Operation operation : Operation.values()) {
+				if (getCount(operation) + getErrorCount(operation) > 0) {
+					operations.put(operation.name().toLowerCase(), operationMap(operation));
+					total += getCount(operation);
+				}
+			}
+			map.put("opsPerSecond", round((double) total / seconds));
+			map.put("operations", operations);
+			return map;
+		}
+
+		private Map<String, Object> operationMap(Operation operation) {
+			LatencyHistogram latency = getLatency(operation);
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("count", latency.getCount());
+			map.put("errors", getErrorCount(operation));
+			map.put("opsPerSecond", round((double) latency.getCount() / seconds));
+			map.put("meanMs", round(latency.getMeanNanos() / 1e6));
+			map.put("p50Ms", round(latency.getValueAtPercentile(50) / 1e6));
+			map.put("p95Ms", round(latency.getValueAtPercentile(95) / 1e6));
+			map.put("p99Ms", round(latency.getValueAtPercentile(99) / 1e6));
+			map.put("p999Ms", round(latency.getValueAtPercentile(99.9) / 1e6));
+			map.put("maxMs", round(latency.getMaxNanos() / 1e6));
+			return map;
+		}
+
+		public void writeJson(Writer out) throws IOException {
+			out.write(ClientFactory.get().getJsonFactory().toPrettyString(toMap()));
+			out.write('\n');
+		}
+
+		public static final String CSV_HEADER = "label,startTime,workload,threads,operation,count,errors,"
+				+ "opsPerSecond,meanMs,p50Ms,p95Ms,p99Ms,p999Ms,maxMs";
+
+		/** One line per operation type that ran, without header. */
+		public void writeCsv(Writer out) throws IOException {
+			for (Operation operation : Operation.values()) {
+				if (getCount(operation) + getErrorCount(operation) == 0) {
+					continue;
+				}
+				StringBuilder line = new StringBuilder();
+				line.append(csv(label)).append(',').append(startTime).append(',').append(csv(workload.getName()))
+						.append(',').append(workload.getThreads()).append(',')
+						.append(operation.name().toLowerCase());
+				for (Object value : operationMap(operation).values()) {
+					line.append(',').append(value);
+				}
+				out.write(line.append('\n').toString());
+			}
+		}
+
+		private static String csv(String value) {
+			if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+				return value;
+			}
+			return '"' + value.replace("\"", "\"\"") + '"';
+		}
+
+		private static double round(double value) {
+			return Math.round(value * 1000) / 1000.0;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.datastore.DatastoreV1.BlindWriteRequest;
+import com.google.api.services.datastore.DatastoreV1.Entity;
+import com.google.api.services.datastore.client.DatastoreException;
+
+/**
+ * Writes the entities 1..N from several workers sharing one
+ * {@link DatastoreRpc} client. Each worker takes the next key number from a
+ * shared counter, so every key is written exactly once whatever the worker
+ * count is.
+ */
+public class WriteLoadGenerator {
+	private static final Logger logger = Logger.getLogger(WriteLoadGenerator.class.getName());
+
+	public enum ThreadMode {
+		/** Fixed pool of platform threads, one per worker. */
+		PLATFORM,
+		/** One virtual thread per worker (Java 21 or later). */
+		VIRTUAL
+	}
+
+	private final DatastoreRpc datastore;
+	private final int entityCount;
+	private final int workers;
+	private final ThreadMode threadMode;
+	private int batchSize;
+	private String kind = SampleEntities.KIND;
+	private KeyStrategy keyStrategy = KeyStrategy.SEQUENTIAL;
+	private WireProfile profile;
+
+	public WriteLoadGenerator(DatastoreRpc datastore, int entityCount, int workers, ThreadMode threadMode) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("workers must be positive: " + workers);
+		}
+		this.datastore = datastore;
+		this.entityCount = entityCount;
+		this.workers = workers;
+		this.threadMode = threadMode;
+	}
+
+	/**
+	 * Makes each worker send its upserts through its own {@link BatchWriter}.
+	 * 0 (default) sends one entity per blindWrite.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setKind(String kind) {
+		this.kind = kind;
+	}
+
+	/** How the entities are named; {@link KeyStrategy#SEQUENTIAL} by default. */
+	public void setKeyStrategy(KeyStrategy keyStrategy) {
+		this.keyStrategy = keyStrategy;
+	}
+
+	/**
+	 * Records the time each worker spends building its entities and requests
+	 * as {@link WireProfile.Phase#BUILD}; null (default) does not.
+	 */
+	public void setWireProfile(WireProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Runs all workers to completion and logs per-worker and aggregate stats.
+	 */
+	public List<WorkerStats> run() throws InterruptedException {
+		final AtomicInteger next = new AtomicInteger(1);
+		final CountDownLatch startGate = new CountDownLatch(1);
+		ExecutorService executor = newExecutor();
+		List<Future<WorkerStats>> futures = new ArrayList<Future<WorkerStats>>();
+		try {
+			for (int w = 0; w < workers; w++) {
+				final WorkerStats stats = new WorkerStats(w);
+				futures.add(executor.submit(new Callable<WorkerStats>() {
+					@Override
+					public WorkerStats call() throws Exception {
+						startGate.await();
+						runWorker(stats, next);
+						return stats;
+					}
+				}));
+			}
+			long start = System.nanoTime();
+			startGate.countDown();
+			List<WorkerStats> results = new ArrayList<WorkerStats>();
+			for (Future<WorkerStats> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					logger.log(Level.SEVERE, "worker failed", e.getCause());
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			logStats(results, elapsed);
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void runWorker(WorkerStats stats, AtomicInteger next) {
+		BatchWriter writer = batchSize > 0 ? new BatchWriter(datastore, batchSize) : null;
+		// Entities handed to the writer; each is written, pending or lost.
+		long queued = 0;
+		long start = System.nanoTime();
+		for (int i = next.getAndIncrement(); i <= entityCount; i = next.getAndIncrement()) {
+			long t0 = System.nanoTime();
+			try {
+				if (writer != null) {
+					Entity entity = SampleEntities.newEntity(kind, keyStrategy.keyName(i), i).build();
+					if (profile != null) {
+						profile.recordSince(WireProfile.Phase.BUILD, t0);
+					}
+					queued++;
+					writer.upsert(entity);
+				} else {
+					BlindWriteRequest.Builder req = BlindWriteRequest.newBuilder();
+					req.getMutationBuilder().addUpsert(SampleEntities.newEntity(kind, keyStrategy.keyName(i), i));
+					BlindWriteRequest request = req.build();
+					if (profile != null) {
+						profile.recordSince(WireProfile.Phase.BUILD, t0);
+					}
+					datastore.blindWrite(request);
+					stats.ops++;
+				}
+			} catch (DatastoreException exception) {
+				if (writer == null) {
+					stats.errors++;
+				}
+				logger.log(Level.SEVERE, "error", exception);
+			}
+			if (writer != null) {
+				countBatches(stats, writer, queued);
+			}
+			stats.maxNanos = Math.max(stats.maxNanos, System.nanoTime() - t0);
+		}
+		if (writer != null) {
+			try {
+				writer.flush();
+			} catch (DatastoreException exception) {
+				logger.log(Level.SEVERE, "error", exception);
+			}
+			countBatches(stats, writer, queued);
+		}
+		stats.nanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Counts the entities the writer has sent as ops, and those dropped with
+	 * a failed batch as errors.
+	 */
+	private static void countBatches(WorkerStats stats, BatchWriter writer, long queued) {
+		stats.ops = writer.getEntityCount();
+		stats.errors = queued - writer.getEntityCount() - writer.getPendingCount();
+	}
+
+	private ExecutorService newExecutor() {
+		if (threadMode == ThreadMode.VIRTUAL) {
+			// Looked up reflectively so that the project still builds and runs
+			// on JDKs without virtual threads.
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				logger.warning("virtual threads are not available on this JVM (" + System.getProperty("java.version")
+						+ "), falling back to platform threads.");
+			}
+		}
+		return Executors.newFixedThreadPool(workers);
+	}
+
+	private void logStats(List<WorkerStats> results, long elapsedNanos) {
+		long ops = 0;
+		long errors = 0;
+		for (WorkerStats stats : results) {
+			logger.info(stats.toString());
+			ops += stats.ops;
+			errors += stats.errors;
+		}
+		logger.info(String.format("%d workers (%s threads, %s keys): %d ops, %d errors in %.1f ms, %.1f ops/sec", workers,
+				threadMode.name().toLowerCase(), keyStrategy.name().toLowerCase(), ops, errors, elapsedNanos / 1e6, ops * 1e9 / elapsedNanos));
+	}
+
+	/**
+	 * Counters of a single worker. Only written by the worker thread and read
+	 * after it has finished.
+	 */
+	public static class WorkerStats {
+		final int worker;
+		long ops;
+		long errors;
+		long nanos;
+		long maxNanos;
+
+		WorkerStats(int worker) {
+			this.worker = worker;
+		}
+
+		public double getOpsPerSecond() {
+			return nanos == 0 ? 0.0 : ops * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("worker %d: %d ops, %d errors, %.1f ms, %.1f ops/sec, avg %.2f ms, max %.2f ms",
+					worker, ops, errors, nanos / 1e6, getOpsPerSecond(), ops == 0 ? 0.0 : nanos / 1e6 / ops,
+					maxNanos / 1e6);
+		}
+	}
+}